@@ -0,0 +1,33 @@
+package me.steppenwiesel.spongereloaded.benchmarks;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks like the JMH launcher does, but writes the results to jmh-result.json unless told otherwise,
+ * so the results of two releases can be compared.<br>
+ * Usage: java -jar benchmarks/target/benchmarks.jar [JMH options]
+ * @author Steppenwiesel
+ *
+ */
+public final class BenchmarkMain {
+
+	private BenchmarkMain() {
+	}
+
+	public static void main(final String[] args) throws Exception {
+		final CommandLineOptions cli = new CommandLineOptions(args);
+		if (cli.shouldHelp() || cli.shouldList() || cli.shouldListWithParams() || cli.shouldListProfilers() || cli.shouldListResultFormats()) {
+			org.openjdk.jmh.Main.main(args);
+			return;
+		}
+		final ChainedOptionsBuilder options = new OptionsBuilder().parent(cli);
+		if (!cli.getResultFormat().hasValue()) options.resultFormat(ResultFormatType.JSON);
+		if (!cli.getResult().hasValue()) options.result("jmh-result.json");
+		new Runner(options.build()).run();
+	}
+
+}
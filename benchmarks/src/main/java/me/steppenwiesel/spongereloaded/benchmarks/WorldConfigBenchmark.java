@@ -0,0 +1,112 @@
+package me.steppenwiesel.spongereloaded.benchmarks;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import me.steppenwiesel.spongereloaded.MemoryContext;
+import me.steppenwiesel.spongereloaded.MemoryWorld;
+import me.steppenwiesel.spongereloaded.WorldConfig;
+
+import org.bukkit.block.Block;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the scans of {@link WorldConfig} in a world of water with sponges scattered through it.<br>
+ * The world is frozen, so queued block changes are checked and done without changing anything and every call does the same work.
+ * Blocks of the in-memory world are slower to reach than the ones of a server, so compare the results of two builds
+ * instead of reading them as server timings.
+ * @author Steppenwiesel
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WorldConfigBenchmark {
+
+	/** the edge of the watery cube, in blocks */
+	private static final int SIZE = 64;
+	/** how many different blocks the benchmarks cycle through */
+	private static final int PROBES = 1024;
+
+	/** the radius of the sponges */
+	@Param({ "1", "2", "4", "8" })
+	public int radius;
+
+	/** the share of blocks that are sponges, from none to all of them */
+	@Param({ "0", "0.001", "0.01", "0.1", "1" })
+	public double density;
+
+	private WorldConfig wconf;
+	private Block[] probes;
+	private int next;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		final MemoryWorld memory = new MemoryWorld("benchmark", 128);
+		final Random random = new Random(42);
+		for (int x = 0; x < SIZE; x++)
+			for (int z = 0; z < SIZE; z++)
+				for (int y = 0; y < SIZE; y++)
+					memory.set(x, y, z, random.nextDouble() < density ? WorldConfig.ID_SPONGE : WorldConfig.ID_STATIONARY_WATER, 0);
+		memory.setFrozen(true);
+		final Map<String, Object> settings = new HashMap<>();
+		settings.put("radius", radius);
+		// every range check has to scan, the memo would answer most of them
+		settings.put("range_memo", false);
+		settings.put("flow_frontier_ticks", 0);
+		final MemoryContext context = new MemoryContext(settings);
+		wconf = context.getWorldConfig(memory.getWorld());
+		// blocks far enough from the edge for their whole range to be inside the cube
+		probes = new Block[PROBES];
+		final int margin = radius + 1;
+		for (int i = 0; i < PROBES; i++)
+			probes[i] = memory.getBlock(margin + random.nextInt(SIZE - 2 * margin), margin + random.nextInt(SIZE - 2 * margin),
+					margin + random.nextInt(SIZE - 2 * margin));
+		// index every chunk before measuring
+		for (final Block i : probes)
+			wconf.spongeInRange(i);
+	}
+
+	private Block probe() {
+		return probes[next++ & (PROBES - 1)];
+	}
+
+	@Benchmark
+	public boolean spongeInRange() {
+		return wconf.spongeInRange(probe());
+	}
+
+	@Benchmark
+	public int removeSuckables() {
+		wconf.removeSuckables(probe());
+		return wconf.getWriteQueue().drain(Integer.MAX_VALUE, Long.MAX_VALUE);
+	}
+
+	@Benchmark
+	public int callPhysics() {
+		wconf.callPhysics(probe());
+		return wconf.getWriteQueue().drain(Integer.MAX_VALUE, Long.MAX_VALUE);
+	}
+
+	@Benchmark
+	public boolean isSuckable() {
+		return wconf.isSuckable(probe());
+	}
+
+}
@@ -0,0 +1,102 @@
+package me.steppenwiesel.spongereloaded.harness;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.bukkit.event.Cancellable;
+import org.bukkit.event.Event;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.Listener;
+
+/**
+ * Calls the event handlers of listeners the way the server does: in the order of their priority, skipping handlers that
+ * ignore cancelled events once an event is cancelled.
+ * @author Steppenwiesel
+ *
+ */
+final class EventBus {
+
+	/**
+	 * one method annotated with {@link EventHandler}.
+	 */
+	private static final class Handler {
+		final Listener listener;
+		final Method method;
+		final EventHandler info;
+
+		Handler(final Listener listener, final Method method) {
+			this.listener = listener;
+			this.method = method;
+			this.info = method.getAnnotation(EventHandler.class);
+		}
+	}
+
+	private final List<Handler> handlers = new ArrayList<>();
+	/** the handlers for each type of event, in the order they are called */
+	private final Map<Class<?>, List<Handler>> byEvent = new HashMap<>();
+	private long called;
+
+	/**
+	 * @param listeners the listeners whose handlers to call.
+	 */
+	EventBus(final List<Listener> listeners) {
+		for (final Listener listener : listeners)
+			for (final Method method : listener.getClass().getMethods()) {
+				if (!method.isAnnotationPresent(EventHandler.class) || method.getParameterTypes().length != 1) continue;
+				// the listeners of the plugin are not public
+				method.setAccessible(true);
+				handlers.add(new Handler(listener, method));
+			}
+	}
+
+	/**
+	 * call the handlers of an event.
+	 * @param event
+	 * @return the event.
+	 */
+	<T extends Event> T call(final T event) {
+		called++;
+		for (final Handler i : handlers(event.getClass())) {
+			if (i.info.ignoreCancelled() && event instanceof Cancellable && ((Cancellable) event).isCancelled()) continue;
+			try {
+				i.method.invoke(i.listener, event);
+			} catch (final InvocationTargetException e) {
+				throw new IllegalStateException("Handler " + i.method + " failed", e.getCause());
+			} catch (final IllegalAccessException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+		return event;
+	}
+
+	/**
+	 * @return the number of events called so far.
+	 */
+	long getCalled() {
+		return called;
+	}
+
+	private List<Handler> handlers(final Class<?> type) {
+		List<Handler> list = byEvent.get(type);
+		if (list == null) {
+			list = new ArrayList<>();
+			for (final Handler i : handlers)
+				if (i.method.getParameterTypes()[0].isAssignableFrom(type)) list.add(i);
+			Collections.sort(list, new Comparator<Handler>() {
+				@Override
+				public int compare(final Handler a, final Handler b) {
+					return a.info.priority().compareTo(b.info.priority());
+				}
+			});
+			byEvent.put(type, list);
+		}
+		return list;
+	}
+
+}
@@ -0,0 +1,182 @@
+package me.steppenwiesel.spongereloaded.harness;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import me.steppenwiesel.spongereloaded.BlockKey;
+import me.steppenwiesel.spongereloaded.LongHashSet;
+import me.steppenwiesel.spongereloaded.LongQueue;
+import me.steppenwiesel.spongereloaded.MemoryWorld;
+import me.steppenwiesel.spongereloaded.WorldConfig;
+
+import org.bukkit.block.Block;
+import org.bukkit.block.BlockFace;
+import org.bukkit.event.block.BlockFromToEvent;
+
+/**
+ * Lets water and lava flow roughly the way the server does.<br>
+ * A fluid block is updated a while after it was placed or one of its neighbors changed: water every 5 ticks, lava every 30.
+ * An update first checks what feeds the block. Flowing blocks without a feed dry up, two water sources next to each other
+ * make a new one. Then the fluid falls down if it can, or spreads sideways one level further, each step asking the
+ * listeners with a {@link BlockFromToEvent} first. Unlike the server, fluids spread to every side instead of the nearest drop.
+ * @author Steppenwiesel
+ *
+ */
+final class FluidSimulator {
+
+	private static final int WATER_TICKS = 5;
+	private static final int LAVA_TICKS = 30;
+	/** the data of falling fluids */
+	private static final int FALLING = 8;
+	/** the server does at most this many scheduled block updates per tick */
+	private static final int MAX_UPDATES_PER_TICK = 65536;
+	private static final BlockFace[] SIDES = { BlockFace.NORTH, BlockFace.EAST, BlockFace.SOUTH, BlockFace.WEST };
+
+	private final Simulation sim;
+	private final MemoryWorld memory;
+	/** the blocks to update, mapped by the tick they are due */
+	private final Map<Long, LongQueue> due = new HashMap<>();
+	/** the same blocks as in {@link #due}, to schedule every block once */
+	private final LongHashSet scheduled = new LongHashSet();
+	private long updates;
+
+	FluidSimulator(final Simulation sim, final MemoryWorld memory) {
+		this.sim = sim;
+		this.memory = memory;
+	}
+
+	/**
+	 * update a block a while from now if it is a fluid.
+	 * @param x
+	 * @param y
+	 * @param z
+	 */
+	void schedule(final int x, final int y, final int z) {
+		final int id = memory.getTypeId(x, y, z);
+		if (!isFluid(id)) return;
+		final long key = BlockKey.pack(x, y, z);
+		if (!scheduled.add(key)) return;
+		final long tick = sim.getTick() + (isWater(id) ? WATER_TICKS : LAVA_TICKS);
+		LongQueue queue = due.get(tick);
+		if (queue == null) due.put(tick, queue = new LongQueue());
+		queue.push(key);
+	}
+
+	/**
+	 * do the updates that are due in this tick.
+	 * @param tick
+	 */
+	void tick(final long tick) {
+		final LongQueue queue = due.remove(tick);
+		if (queue == null) return;
+		int n = 0;
+		while (!queue.isEmpty() && n++ < MAX_UPDATES_PER_TICK) {
+			final long key = queue.poll();
+			scheduled.remove(key);
+			update(BlockKey.x(key), BlockKey.y(key), BlockKey.z(key));
+		}
+		// the rest waits for the next tick, like on the server
+		if (!queue.isEmpty()) {
+			final LongQueue next = due.get(tick + 1);
+			if (next == null) {
+				due.put(tick + 1, queue);
+			} else {
+				while (!queue.isEmpty())
+					next.push(queue.poll());
+			}
+		}
+	}
+
+	/**
+	 * @return the number of fluid updates done so far.
+	 */
+	long getUpdates() {
+		return updates;
+	}
+
+	/**
+	 * @return true if no update is waiting.
+	 */
+	boolean isSettled() {
+		return scheduled.isEmpty();
+	}
+
+	private void update(final int x, final int y, final int z) {
+		final int id = memory.getTypeId(x, y, z);
+		if (!isFluid(id)) return;
+		updates++;
+		final boolean water = isWater(id);
+		final int flowing = water ? WorldConfig.ID_WATER : WorldConfig.ID_LAVA;
+		final int still = water ? WorldConfig.ID_STATIONARY_WATER : WorldConfig.ID_STATIONARY_LAVA;
+		final int step = water ? 1 : 2;
+		final Block block = memory.getBlock(x, y, z);
+		int level = memory.getData(x, y, z);
+		if (level != 0) {
+			// what feeds this block
+			int expected;
+			if (isSame(memory.getTypeId(x, y + 1, z), water)) {
+				expected = FALLING;
+			} else {
+				int min = Integer.MAX_VALUE - step, sources = 0;
+				for (final BlockFace face : SIDES) {
+					final int nx = x + face.getModX(), nz = z + face.getModZ();
+					if (!isSame(memory.getTypeId(nx, y, nz), water)) continue;
+					final int l = memory.getData(nx, y, nz);
+					if (l == 0) sources++;
+					min = Math.min(min, l >= FALLING ? 0 : l);
+				}
+				expected = min + step > 7 ? -1 : min + step;
+				final int below = memory.getTypeId(x, y - 1, z);
+				if (water && sources >= 2 && (isSolid(below) || isSame(below, true) && memory.getData(x, y - 1, z) == 0)) expected = 0;
+			}
+			if (expected < 0) {
+				block.setTypeIdAndData(0, (byte) 0, true);
+				return;
+			}
+			if (expected != level) {
+				// changing the block schedules the next update
+				block.setTypeIdAndData(flowing, (byte) expected, true);
+				return;
+			}
+		}
+		final int below = y > 0 ? memory.getTypeId(x, y - 1, z) : -1;
+		if (canFlowInto(below)) {
+			flow(block, BlockFace.DOWN, flowing, FALLING);
+		} else if (!isSame(below, water)) {
+			final int spread = (level >= FALLING ? 0 : level) + step;
+			if (spread <= 7)
+				for (final BlockFace face : SIDES)
+					if (canFlowInto(memory.getTypeId(x + face.getModX(), y, z + face.getModZ())))
+						flow(block, face, flowing, spread);
+		}
+		// done spreading until a neighbor changes
+		if (memory.getTypeId(x, y, z) == flowing)
+			block.setTypeIdAndData(still, (byte) level, false);
+	}
+
+	private void flow(final Block from, final BlockFace face, final int id, final int level) {
+		if (sim.call(new BlockFromToEvent(from, face)).isCancelled()) return;
+		from.getRelative(face).setTypeIdAndData(id, (byte) level, true);
+	}
+
+	static boolean isFluid(final int id) {
+		return id >= WorldConfig.ID_WATER && id <= WorldConfig.ID_STATIONARY_LAVA;
+	}
+
+	private static boolean isWater(final int id) {
+		return id == WorldConfig.ID_WATER || id == WorldConfig.ID_STATIONARY_WATER;
+	}
+
+	private static boolean isSame(final int id, final boolean water) {
+		return isFluid(id) && isWater(id) == water;
+	}
+
+	private static boolean canFlowInto(final int id) {
+		return id == 0 || id == WorldConfig.ID_FIRE;
+	}
+
+	private static boolean isSolid(final int id) {
+		return id > 0 && !isFluid(id) && id != WorldConfig.ID_FIRE;
+	}
+
+}
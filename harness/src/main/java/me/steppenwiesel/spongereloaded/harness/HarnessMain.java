@@ -0,0 +1,55 @@
+package me.steppenwiesel.spongereloaded.harness;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Plays scripted scenes against the event handlers of the plugin in an in-memory world, without a server, and reports
+ * events per second, blocks the plugin touched per event and the time of the simulated ticks.<br>
+ * Usage: java -jar harness/target/harness.jar [scenario...], all scenarios if none are named.
+ * @author Steppenwiesel
+ *
+ */
+public final class HarnessMain {
+
+	private HarnessMain() {
+	}
+
+	public static void main(final String[] args) {
+		final List<Scenario> scenarios = new ArrayList<>();
+		for (final String arg : args) {
+			try {
+				scenarios.add(Scenario.valueOf(arg.toUpperCase(Locale.ROOT)));
+			} catch (final IllegalArgumentException e) {
+				System.err.println("Unknown scenario " + arg + ", known are:");
+				for (final Scenario i : Scenario.values())
+					System.err.println("  " + i.getName());
+				System.exit(2);
+			}
+		}
+		if (scenarios.isEmpty())
+			for (final Scenario i : Scenario.values())
+				scenarios.add(i);
+		System.out.println(Report.HEADER);
+		for (final Scenario i : scenarios)
+			System.out.println(run(i));
+	}
+
+	/**
+	 * play a scenario in a new simulation.
+	 * @param scenario
+	 * @return what happened.
+	 */
+	static Report run(final Scenario scenario) {
+		final Map<String, Object> settings = new HashMap<>();
+		scenario.configure(settings);
+		final Simulation sim = new Simulation(settings);
+		final long start = System.nanoTime();
+		scenario.play(sim);
+		return sim.report(scenario.getName(), System.nanoTime() - start);
+	}
+
+}
@@ -0,0 +1,89 @@
+package me.steppenwiesel.spongereloaded.harness;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * What happened while a scenario ran.
+ * @author Steppenwiesel
+ *
+ */
+final class Report {
+
+	static final String HEADER = String.format(Locale.ROOT, "%-16s %6s %9s %11s %14s %10s %10s %10s %10s", "scenario", "ticks", "events",
+			"events/s", "blocks/event", "changes", "mspt avg", "mspt p95", "mspt max");
+
+	private final String name;
+	private final long ticks;
+	private final long events;
+	private final long nanos;
+	/** the blocks the plugin looked at or changed */
+	private final long blocksTouched;
+	/** all block changes, by the plugin and by the simulation */
+	private final long blockChanges;
+	private final long fluidUpdates;
+	/** the time spent in each tick, sorted */
+	private final long[] tickNanos;
+
+	Report(final String name, final long ticks, final long events, final long nanos, final long blocksTouched, final long blockChanges,
+			final long fluidUpdates, final long[] tickNanos) {
+		this.name = name;
+		this.ticks = ticks;
+		this.events = events;
+		this.nanos = nanos;
+		this.blocksTouched = blocksTouched;
+		this.blockChanges = blockChanges;
+		this.fluidUpdates = fluidUpdates;
+		this.tickNanos = tickNanos.clone();
+		Arrays.sort(this.tickNanos);
+	}
+
+	/**
+	 * @return the events called per second of wall time.
+	 */
+	double getEventsPerSecond() {
+		return nanos == 0 ? 0 : events * 1e9 / nanos;
+	}
+
+	/**
+	 * @return the blocks the plugin looked at or changed per event.
+	 */
+	double getBlocksPerEvent() {
+		return events == 0 ? 0 : (double) blocksTouched / events;
+	}
+
+	/**
+	 * @return the average time of a simulated tick in milliseconds.
+	 */
+	double getMeanMspt() {
+		if (tickNanos.length == 0) return 0;
+		long sum = 0;
+		for (final long i : tickNanos)
+			sum += i;
+		return sum / 1e6 / tickNanos.length;
+	}
+
+	/**
+	 * @param fraction the share of ticks that were faster, from 0 to 1.
+	 * @return the time of that tick in milliseconds.
+	 */
+	double getMspt(final double fraction) {
+		if (tickNanos.length == 0) return 0;
+		return tickNanos[Math.min(tickNanos.length - 1, (int) (fraction * tickNanos.length))] / 1e6;
+	}
+
+	long getEvents() {
+		return events;
+	}
+
+	long getFluidUpdates() {
+		return fluidUpdates;
+	}
+
+	@Override
+	public String toString() {
+		return String.format(Locale.ROOT, "%-16s %6d %9d %11.0f %14.2f %10d %10.3f %10.3f %10.3f", name, ticks, events, getEventsPerSecond(),
+				getBlocksPerEvent(), blockChanges, getMeanMspt(), getMspt(0.95), getMspt(1));
+	}
+
+}
@@ -0,0 +1,125 @@
+package me.steppenwiesel.spongereloaded.harness;
+
+import java.util.Locale;
+import java.util.Map;
+
+import me.steppenwiesel.spongereloaded.MemoryWorld;
+import me.steppenwiesel.spongereloaded.WorldConfig;
+
+import org.bukkit.Material;
+import org.bukkit.block.BlockFace;
+
+/**
+ * The scripted scenes the harness can play.
+ * @author Steppenwiesel
+ *
+ */
+enum Scenario {
+
+	/**
+	 * a player drains a walled-in ocean by placing sponges layer by layer, one per tick.
+	 */
+	OCEAN_DRAIN {
+		@Override
+		void play(final Simulation sim) {
+			final MemoryWorld w = sim.getMemory();
+			w.fill(-33, 0, -33, 32, 63, 32, STONE);
+			w.fill(-32, 40, -32, 31, 62, 31, WorldConfig.ID_STATIONARY_WATER);
+			w.fill(-32, 63, -32, 31, 63, 31, 0);
+			for (int y = 60; y >= 45; y -= 5)
+				for (int x = -10; x <= 10; x += 5)
+					for (int z = -10; z <= 10; z += 5) {
+						sim.placeSponge(x, y, z);
+						sim.tick();
+					}
+			sim.run(200);
+		}
+	},
+
+	/**
+	 * lava falls down from a source onto a sponge on the way, then the sponge is broken and the lava falls on.
+	 */
+	LAVA_FALL {
+		@Override
+		void configure(final Map<String, Object> settings) {
+			settings.put("soak_lava", true);
+		}
+
+		@Override
+		void play(final Simulation sim) {
+			final MemoryWorld w = sim.getMemory();
+			w.fill(-16, 0, -16, 15, 9, 15, STONE);
+			sim.placeSponge(2, 20, 0);
+			sim.pour(0, 30, 0, false);
+			sim.run(400);
+			sim.breakBlock(2, 20, 0);
+			sim.run(800);
+		}
+	},
+
+	/**
+	 * a sticky piston pushes a sponge back and forth through a pool of water.
+	 */
+	PISTON_MACHINE {
+		@Override
+		void play(final Simulation sim) {
+			final MemoryWorld w = sim.getMemory();
+			w.fill(-13, 19, -13, 12, 31, 12, STONE);
+			w.fill(-12, 20, -12, 11, 30, 11, WorldConfig.ID_STATIONARY_WATER);
+			w.set(-1, 25, 0, Material.PISTON_STICKY_BASE.getId(), 5);
+			sim.placeSponge(0, 25, 0);
+			sim.run(10);
+			for (int i = 0; i < 50; i++) {
+				sim.extendPiston(-1, 25, 0, BlockFace.EAST);
+				sim.run(4);
+				sim.retractPiston(-1, 25, 0, BlockFace.EAST);
+				sim.run(4);
+			}
+			sim.run(100);
+		}
+	},
+
+	/**
+	 * TNT goes off in a grid of sponges that keep a lake dry, the sponges vanish without events.
+	 */
+	TNT_FIELD {
+		@Override
+		void play(final Simulation sim) {
+			final MemoryWorld w = sim.getMemory();
+			w.fill(-21, 19, -21, 20, 36, 20, STONE);
+			w.fill(-20, 20, -20, 19, 35, 19, WorldConfig.ID_STATIONARY_WATER);
+			for (int x = -18; x <= 18; x += 4)
+				for (int z = -18; z <= 18; z += 4)
+					sim.placeSponge(x, 28, z);
+			sim.run(50);
+			for (int i = 0; i < 5; i++) {
+				sim.explode(-12 + 6 * i, 28, -12 + 6 * i, 4);
+				sim.run(20);
+			}
+			sim.run(200);
+		}
+	};
+
+	private static final int STONE = Material.STONE.getId();
+
+	/**
+	 * change the settings for this scenario.
+	 * @param settings the settings that differ from the default configuration.
+	 */
+	void configure(final Map<String, Object> settings) {
+	}
+
+	/**
+	 * build the scene and play it.
+	 * @param sim
+	 */
+	abstract void play(Simulation sim);
+
+	/**
+	 * @return the name used on the command line.
+	 */
+	String getName() {
+		return name().toLowerCase(Locale.ROOT);
+	}
+
+}
@@ -0,0 +1,250 @@
+package me.steppenwiesel.spongereloaded.harness;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import me.steppenwiesel.spongereloaded.MemoryContext;
+import me.steppenwiesel.spongereloaded.MemoryWorld;
+import me.steppenwiesel.spongereloaded.Metrics;
+import me.steppenwiesel.spongereloaded.WorldConfig;
+
+import org.bukkit.Chunk;
+import org.bukkit.Material;
+import org.bukkit.World;
+import org.bukkit.block.Block;
+import org.bukkit.block.BlockFace;
+import org.bukkit.event.Event;
+import org.bukkit.event.block.BlockBreakEvent;
+import org.bukkit.event.block.BlockPhysicsEvent;
+import org.bukkit.event.block.BlockPistonExtendEvent;
+import org.bukkit.event.block.BlockPistonRetractEvent;
+import org.bukkit.event.block.BlockPlaceEvent;
+import org.bukkit.event.world.ChunkLoadEvent;
+import org.bukkit.event.world.ChunkUnloadEvent;
+import org.bukkit.inventory.ItemStack;
+
+/**
+ * A server with one in-memory world, the listeners of the plugin and a {@link FluidSimulator}.<br>
+ * Block changes that apply physics call a {@link BlockPhysicsEvent} for each neighbor, and fluids next to the change get
+ * updated a while later, so the handlers feed each other the way they do on a server. Everything runs on the calling thread.
+ * @author Steppenwiesel
+ *
+ */
+final class Simulation implements MemoryWorld.Observer {
+
+	/** how long a piston takes to move a block */
+	private static final int PISTON_TICKS = 2;
+	private static final BlockFace[] FACES = { BlockFace.EAST, BlockFace.WEST, BlockFace.UP, BlockFace.DOWN, BlockFace.SOUTH, BlockFace.NORTH };
+
+	private final MemoryWorld memory;
+	private final World world;
+	private final MemoryContext context;
+	private final EventBus bus;
+	private final FluidSimulator fluids;
+	/** block changes to do later, mapped by their tick */
+	private final Map<Long, List<Runnable>> later = new HashMap<>();
+	private long tick;
+	private long blockChanges;
+	/** the time spent in each tick so far */
+	private long[] tickNanos = new long[1024];
+
+	/**
+	 * @param settings the settings that differ from the default configuration.
+	 */
+	Simulation(final Map<String, ?> settings) {
+		this.memory = new MemoryWorld("harness", 128);
+		this.world = memory.getWorld();
+		this.context = new MemoryContext(settings);
+		this.bus = new EventBus(context.createListeners());
+		this.fluids = new FluidSimulator(this, memory);
+		memory.setObserver(this);
+	}
+
+	MemoryWorld getMemory() {
+		return memory;
+	}
+
+	long getTick() {
+		return tick;
+	}
+
+	<T extends Event> T call(final T event) {
+		return bus.call(event);
+	}
+
+	@Override
+	public void blockChanged(final Block block, final int oldId, final boolean applyPhysics) {
+		blockChanges++;
+		final int id = block.getTypeId();
+		// placed flowing fluids schedule their update, resting ones wait for a neighbor to change
+		if (id == WorldConfig.ID_WATER || id == WorldConfig.ID_LAVA) fluids.schedule(block.getX(), block.getY(), block.getZ());
+		if (applyPhysics) applyPhysics(block);
+	}
+
+	@Override
+	public void chunkLoaded(final Chunk chunk) {
+		bus.call(new ChunkLoadEvent(chunk, false));
+	}
+
+	@Override
+	public void chunkUnloaded(final Chunk chunk) {
+		bus.call(new ChunkUnloadEvent(chunk));
+	}
+
+	/**
+	 * tell the neighbors of a changed block about the change.
+	 * @param block
+	 */
+	private void applyPhysics(final Block block) {
+		final int id = block.getTypeId();
+		for (final BlockFace face : FACES) {
+			final Block neighbor = block.getRelative(face);
+			if (bus.call(new BlockPhysicsEvent(neighbor, id)).isCancelled()) continue;
+			fluids.schedule(neighbor.getX(), neighbor.getY(), neighbor.getZ());
+		}
+	}
+
+	/**
+	 * run one tick: fluid updates, block changes that were due, then the work of the plugin at the end of the tick.
+	 */
+	void tick() {
+		final long start = System.nanoTime();
+		fluids.tick(tick);
+		final List<Runnable> due = later.remove(tick);
+		if (due != null)
+			for (final Runnable i : due)
+				i.run();
+		context.tick();
+		if (tick == tickNanos.length) tickNanos = Arrays.copyOf(tickNanos, tickNanos.length * 2);
+		tickNanos[(int) tick++] = System.nanoTime() - start;
+	}
+
+	/**
+	 * @param ticks the number of ticks to run.
+	 */
+	void run(final int ticks) {
+		for (int i = 0; i < ticks; i++)
+			tick();
+	}
+
+	private void later(final int ticks, final Runnable change) {
+		List<Runnable> list = later.get(tick + ticks);
+		if (list == null) later.put(tick + ticks, list = new ArrayList<>());
+		list.add(change);
+	}
+
+	/**
+	 * start a fluid, as a bucket or a dispenser would.
+	 */
+	void pour(final int x, final int y, final int z, final boolean water) {
+		memory.getBlock(x, y, z).setTypeIdAndData(water ? WorldConfig.ID_WATER : WorldConfig.ID_LAVA, (byte) 0, true);
+	}
+
+	/**
+	 * place a sponge, as a player would.
+	 * @return false if a handler cancelled the placement.
+	 */
+	boolean placeSponge(final int x, final int y, final int z) {
+		final int oldId = memory.getTypeId(x, y, z), oldData = memory.getData(x, y, z);
+		memory.set(x, y, z, WorldConfig.ID_SPONGE, 0);
+		final Block block = memory.getBlock(x, y, z);
+		final BlockPlaceEvent event = new BlockPlaceEvent(block, null, block.getRelative(BlockFace.DOWN), new ItemStack(Material.SPONGE, 1), null, true);
+		if (bus.call(event).isCancelled()) {
+			memory.set(x, y, z, oldId, oldData);
+			return false;
+		}
+		blockChanges++;
+		applyPhysics(block);
+		return true;
+	}
+
+	/**
+	 * break a block, as a player would.
+	 * @return false if a handler cancelled breaking it.
+	 */
+	boolean breakBlock(final int x, final int y, final int z) {
+		final Block block = memory.getBlock(x, y, z);
+		if (bus.call(new BlockBreakEvent(block, null)).isCancelled()) return false;
+		block.setTypeIdAndData(0, (byte) 0, true);
+		return true;
+	}
+
+	/**
+	 * extend a piston, moving the block in front of it one block further.
+	 * @param x the position of the piston.
+	 * @param face the direction the piston faces.
+	 */
+	void extendPiston(final int x, final int y, final int z, final BlockFace face) {
+		final Block piston = memory.getBlock(x, y, z);
+		final Block front = piston.getRelative(face), target = front.getRelative(face);
+		final int id = front.getTypeId();
+		final boolean moves = id != 0 && !FluidSimulator.isFluid(id);
+		final List<Block> blocks = moves ? Collections.singletonList(front) : Collections.<Block> emptyList();
+		if (bus.call(new BlockPistonExtendEvent(piston, blocks, face)).isCancelled()) return;
+		front.setTypeIdAndData(Material.PISTON_EXTENSION.getId(), (byte) 0, true);
+		if (!moves) return;
+		target.setTypeIdAndData(Material.PISTON_MOVING_PIECE.getId(), (byte) 0, true);
+		later(PISTON_TICKS, new Runnable() {
+			@Override
+			public void run() {
+				target.setTypeIdAndData(id, (byte) 0, true);
+			}
+		});
+	}
+
+	/**
+	 * retract a sticky piston, pulling the block in front of its head back.
+	 * @param x the position of the piston.
+	 * @param face the direction the piston faces.
+	 */
+	void retractPiston(final int x, final int y, final int z, final BlockFace face) {
+		final Block piston = memory.getBlock(x, y, z);
+		final Block head = piston.getRelative(face), pulled = head.getRelative(face);
+		final int id = pulled.getTypeId();
+		final boolean moves = id != 0 && !FluidSimulator.isFluid(id);
+		final List<Block> blocks = moves ? Collections.singletonList(pulled) : Collections.<Block> emptyList();
+		if (bus.call(new BlockPistonRetractEvent(piston, blocks, face)).isCancelled()) return;
+		if (!moves) {
+			head.setTypeIdAndData(0, (byte) 0, true);
+			return;
+		}
+		head.setTypeIdAndData(Material.PISTON_MOVING_PIECE.getId(), (byte) 0, true);
+		pulled.setTypeIdAndData(0, (byte) 0, true);
+		later(PISTON_TICKS, new Runnable() {
+			@Override
+			public void run() {
+				head.setTypeIdAndData(id, (byte) 0, true);
+			}
+		});
+	}
+
+	/**
+	 * blow up the blocks in a sphere, as TNT would. Fluids resist, everything else is gone without an event for the plugin.
+	 * @param radius
+	 */
+	void explode(final int x, final int y, final int z, final int radius) {
+		for (int dx = -radius; dx <= radius; dx++)
+			for (int dy = -radius; dy <= radius; dy++)
+				for (int dz = -radius; dz <= radius; dz++) {
+					if (dx * dx + dy * dy + dz * dz > radius * radius) continue;
+					final int id = memory.getTypeId(x + dx, y + dy, z + dz);
+					if (id == 0 || FluidSimulator.isFluid(id)) continue;
+					memory.getBlock(x + dx, y + dy, z + dz).setTypeIdAndData(0, (byte) 0, true);
+				}
+	}
+
+	/**
+	 * @return what happened in this simulation so far.
+	 */
+	Report report(final String name, final long nanos) {
+		final Metrics.WorldMetrics metrics = context.getMetrics().world(world.getName());
+		final long[] ticks = Arrays.copyOf(tickNanos, (int) tick);
+		return new Report(name, tick, bus.getCalled(), nanos, metrics.blocksScanned.sum() + metrics.blocksWritten.sum(), blockChanges,
+				fluids.getUpdates(), ticks);
+	}
+
+}
@@ -0,0 +1,179 @@
+package me.steppenwiesel.spongereloaded;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.bukkit.Bukkit;
+import org.bukkit.ChunkSnapshot;
+import org.bukkit.World;
+import org.bukkit.block.Block;
+import org.bukkit.plugin.Plugin;
+
+/**
+ * Plans the block changes of sponges with a large radius in the background.<br>
+ * The chunks in range are copied into snapshots on the main thread and searched in parallel on a fork-join pool.
+ * The found blocks are handed to the {@link BlockWriteQueue} on the main thread, one chunk after the other.
+ * @author Steppenwiesel
+ *
+ */
+public final class AbsorbPlanner {
+
+	private final Plugin plugin;
+	private final ForkJoinPool pool;
+
+	/**
+	 * @param plugin the plugin used to schedule the plans back to the main thread.
+	 * @param threads the number of worker threads.
+	 */
+	public AbsorbPlanner(final Plugin plugin, final int threads) {
+		this.plugin = plugin;
+		this.pool = new ForkJoinPool(threads);
+	}
+
+	/**
+	 * plan the removal or physics update of the suckable blocks in range.
+	 * @param wconf the world.
+	 * @param policy the settings to plan with.
+	 * @param center the center of the range.
+	 * @param radius the radius of the range, its shape is taken from the settings.
+	 * @param clear true to remove the blocks, false to call their physics.
+	 * @param timer measures the time spent taking the snapshots.
+	 * @return false if the planner is shut down and nothing was planned.
+	 */
+	public boolean submit(final WorldConfig wconf, final WorldPolicy policy, final Block center, final int radius, final boolean clear, final Metrics.Timer timer) {
+		final long start = System.nanoTime();
+		final World world = wconf.getWorld();
+		final int x = center.getX(), y = center.getY(), z = center.getZ();
+		final int minY = BlockKey.clampY(y - radius, world.getMaxHeight()), maxY = BlockKey.clampY(y + radius, world.getMaxHeight());
+		final List<ChunkPlan> plans = new ArrayList<>();
+		for (int cx = (x - radius) >> 4; cx <= (x + radius) >> 4; cx++)
+			for (int cz = (z - radius) >> 4; cz <= (z + radius) >> 4; cz++) {
+				// unloaded chunks are skipped by the write queue anyway
+				if (!world.isChunkLoaded(cx, cz)) continue;
+				plans.add(new ChunkPlan(world.getChunkAt(cx, cz).getChunkSnapshot(false, false, false), policy, x, y, z, radius, minY, maxY));
+			}
+		final Metrics.WorldMetrics metrics = wconf.getMetrics();
+		try {
+			pool.execute(new Runnable() {
+				@Override
+				public void run() {
+					ForkJoinTask.invokeAll(plans);
+					if (!plugin.isEnabled()) return;
+					try {
+						Bukkit.getScheduler().runTask(plugin, new Runnable() {
+							@Override
+							public void run() {
+								apply(wconf, plans, center, radius, clear);
+							}
+						});
+					} catch (final RuntimeException e) {
+						// plugin got disabled meanwhile, the plan is not needed anymore
+					}
+				}
+			});
+		} catch (final RejectedExecutionException e) {
+			return false;
+		}
+		metrics.record(timer, start);
+		return true;
+	}
+
+	private static void apply(final WorldConfig wconf, final List<ChunkPlan> plans, final Block center, final int radius, final boolean clear) {
+		final long start = System.nanoTime();
+		final Object jfr = Tracing.beginScan();
+		final BlockWriteQueue writes = wconf.getWriteQueue();
+		long visited = 0;
+		int modified = 0;
+		synchronized (writes) {
+			for (final ChunkPlan plan : plans) {
+				final long[] blocks = plan.getRawResult();
+				for (int i = 0; i < plan.count; i++) {
+					final long key = blocks[i];
+					if (clear)
+						writes.clear(BlockKey.x(key), BlockKey.y(key), BlockKey.z(key));
+					else
+						writes.trigger(BlockKey.x(key), BlockKey.y(key), BlockKey.z(key));
+				}
+				visited += plan.visited;
+				modified += plan.count;
+			}
+		}
+		final Metrics.WorldMetrics metrics = wconf.getMetrics();
+		metrics.blocksScanned.add(visited);
+		metrics.record(metrics.applyPlan, start);
+		Tracing.scan(jfr, clear ? "removeSuckables" : "callPhysics", center, radius, visited, modified);
+	}
+
+	/**
+	 * stop all workers and drop the outstanding plans.
+	 */
+	public void shutdown() {
+		pool.shutdownNow();
+	}
+
+	/**
+	 * Finds the suckable blocks in range within one chunk snapshot.
+	 */
+	private static final class ChunkPlan extends RecursiveTask<long[]> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final ChunkSnapshot snapshot;
+		private final WorldPolicy policy;
+		private final RangeShape shape;
+		private final int centerX, centerY, centerZ, radius;
+		private final int minX, maxX, minY, maxY, minZ, maxZ;
+		/** the number of blocks found */
+		int count;
+		/** the number of blocks looked at */
+		long visited;
+
+		ChunkPlan(final ChunkSnapshot snapshot, final WorldPolicy policy, final int x, final int y, final int z, final int radius, final int minY, final int maxY) {
+			this.snapshot = snapshot;
+			this.policy = policy;
+			this.shape = policy.getShape();
+			this.centerX = x;
+			this.centerY = y;
+			this.centerZ = z;
+			this.radius = radius;
+			// the cube around the range, cut down to this chunk
+			final int baseX = snapshot.getX() << 4, baseZ = snapshot.getZ() << 4;
+			this.minX = Math.max(x - radius, baseX);
+			this.maxX = Math.min(x + radius, baseX + 15);
+			this.minY = minY;
+			this.maxY = maxY;
+			this.minZ = Math.max(z - radius, baseZ);
+			this.maxZ = Math.min(z + radius, baseZ + 15);
+		}
+
+		@Override
+		protected long[] compute() {
+			long[] blocks = new long[64];
+			for (int y = minY; y <= maxY; y++) {
+				if ((y & 15) == 0 || y == minY) {
+					// nothing to find in empty sections
+					if (snapshot.isSectionEmpty(y >> 4)) {
+						y |= 15;
+						continue;
+					}
+				}
+				for (int x = minX; x <= maxX; x++)
+					for (int z = minZ; z <= maxZ; z++) {
+						if (!shape.contains(x - centerX, y - centerY, z - centerZ, radius)) continue;
+						visited++;
+						if (!policy.isSuckable(snapshot.getBlockTypeId(x & 15, y, z & 15))) continue;
+						if (count == blocks.length) blocks = Arrays.copyOf(blocks, count * 2);
+						blocks[count++] = BlockKey.pack(x, y, z);
+					}
+			}
+			return blocks;
+		}
+
+	}
+
+}
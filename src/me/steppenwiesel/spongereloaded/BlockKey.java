@@ -0,0 +1,113 @@
+package me.steppenwiesel.spongereloaded;
+
+/**
+ * Packs block and chunk coordinates into primitive {@code long} keys.<br>
+ * Block keys use 26 bits for x and z and 12 bits for y, which covers the whole 30 million block world border.
+ * @author Steppenwiesel
+ *
+ */
+public final class BlockKey {
+
+	private BlockKey() {
+	}
+
+	/**
+	 * pack the coordinates of a block into a single key.
+	 * @param x
+	 * @param y
+	 * @param z
+	 * @return the packed key.
+	 */
+	public static long pack(final int x, final int y, final int z) {
+		return ((long) (x & 0x3FFFFFF) << 38) | ((long) (z & 0x3FFFFFF) << 12) | (y & 0xFFF);
+	}
+
+	/**
+	 * @param key a key created by {@link #pack(int, int, int)}
+	 * @return the x coordinate.
+	 */
+	public static int x(final long key) {
+		return (int) (key >> 38);
+	}
+
+	/**
+	 * @param key a key created by {@link #pack(int, int, int)}
+	 * @return the y coordinate.
+	 */
+	public static int y(final long key) {
+		return (int) (key & 0xFFF);
+	}
+
+	/**
+	 * @param key a key created by {@link #pack(int, int, int)}
+	 * @return the z coordinate.
+	 */
+	public static int z(final long key) {
+		return (int) (key << 26 >> 38);
+	}
+
+	/**
+	 * pack the coordinates of a chunk into a single key.
+	 * @param cx chunk x
+	 * @param cz chunk z
+	 * @return the packed key.
+	 */
+	public static long chunk(final int cx, final int cz) {
+		return ((long) cx << 32) | (cz & 0xFFFFFFFFL);
+	}
+
+	/**
+	 * @param key a block key
+	 * @return the key of the chunk containing the block.
+	 */
+	public static long chunkOf(final long key) {
+		return chunk(x(key) >> 4, z(key) >> 4);
+	}
+
+	/**
+	 * @param chunkKey a key created by {@link #chunk(int, int)}
+	 * @return the chunk x coordinate.
+	 */
+	public static int chunkX(final long chunkKey) {
+		return (int) (chunkKey >> 32);
+	}
+
+	/**
+	 * @param chunkKey a key created by {@link #chunk(int, int)}
+	 * @return the chunk z coordinate.
+	 */
+	public static int chunkZ(final long chunkKey) {
+		return (int) chunkKey;
+	}
+
+	/**
+	 * check whether a y coordinate is within the height limits of a world.
+	 * @param y
+	 * @param maxHeight the height of the world.
+	 * @return true if so, false otherwise.
+	 */
+	public static boolean isValidY(final int y, final int maxHeight) {
+		return y >= 0 && y < maxHeight;
+	}
+
+	/**
+	 * @param y
+	 * @param maxHeight the height of the world.
+	 * @return the nearest y coordinate within the height limits of a world.
+	 */
+	public static int clampY(final int y, final int maxHeight) {
+		return Math.max(0, Math.min(y, maxHeight - 1));
+	}
+
+	/**
+	 * spread the bits of a key for use in open addressing tables.
+	 * @param key
+	 * @return the mixed hash.
+	 */
+	static int mix(final long key) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		h ^= h >>> 32;
+		return (int) (h ^ (h >>> 16));
+	}
+
+}
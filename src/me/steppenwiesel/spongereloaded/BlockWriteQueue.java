@@ -0,0 +1,375 @@
+package me.steppenwiesel.spongereloaded;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+import org.bukkit.Chunk;
+import org.bukkit.World;
+import org.bukkit.block.Block;
+
+/**
+ * Collects the block changes of a world so they can be spread over several ticks.<br>
+ * All queued removals are done before any queued physics update, and every change checks the block again right before it is done.<br>
+ * A block is queued for a removal and for a physics update at most once, no matter how many sponges around it changed.<br>
+ * Once a sponge was removed, queued removals check again that a sponge is in range, so they do not dry the range of a gone sponge.<br>
+ * Changes are grouped by chunk and done one chunk at a time, section by section. A chunk is not split over two ticks unless
+ * it has more changes than fit into one tick, so the server sends each client a single multi-block update per chunk.<br>
+ * The queue is thread-safe. Its lock is only held to queue or take blocks, the blocks are checked and changed outside of it.
+ * @author Steppenwiesel
+ *
+ */
+public final class BlockWriteQueue {
+
+	/** how many changes to take at once, and to do between two looks at the clock */
+	private static final int CLOCK_INTERVAL = 64;
+
+	private final WorldConfig wconf;
+	private final World world;
+	private final StripedCounter written;
+	/** suckable blocks to remove */
+	private final ChunkBatches clears;
+	/** the same blocks as in {@link #clears}, to skip blocks that are queued already */
+	private final LongHashSet queuedClears = new LongHashSet();
+	/** true if a sponge was removed while removals were queued */
+	private boolean recheckClears;
+	/** suckable blocks whose physics should be triggered */
+	private final ChunkBatches triggers;
+	/** the same blocks as in {@link #triggers}, to skip blocks that are queued already */
+	private final LongHashSet queuedTriggers = new LongHashSet();
+
+	/**
+	 * @param wconf the world to change blocks in.
+	 * @param written counts the changed blocks.
+	 */
+	public BlockWriteQueue(final WorldConfig wconf, final StripedCounter written) {
+		this.wconf = wconf;
+		this.world = wconf.getWorld();
+		this.written = written;
+		final int sections = (world.getMaxHeight() + 15) >> 4;
+		this.clears = new ChunkBatches(sections);
+		this.triggers = new ChunkBatches(sections);
+	}
+
+	/**
+	 * queue the removal of a suckable block.
+	 * @param block
+	 */
+	public void clear(final Block block) {
+		clear(block.getX(), block.getY(), block.getZ());
+	}
+
+	/**
+	 * queue the removal of a suckable block.
+	 * @param x
+	 * @param y
+	 * @param z
+	 */
+	public synchronized void clear(final int x, final int y, final int z) {
+		final long key = BlockKey.pack(x, y, z);
+		if (queuedClears.add(key)) clears.push(key);
+	}
+
+	/**
+	 * queue the removal of suckable blocks.
+	 * @param keys the packed keys of the blocks, emptied.
+	 */
+	public synchronized void clearAll(final LongQueue keys) {
+		while (!keys.isEmpty()) {
+			final long key = keys.poll();
+			if (queuedClears.add(key)) clears.push(key);
+		}
+	}
+
+	/**
+	 * make the queued removals check again that a sponge is in range, because a sponge was removed.
+	 */
+	public synchronized void spongeRemoved() {
+		if (!clears.isEmpty()) recheckClears = true;
+	}
+
+	/**
+	 * queue a physics update for a suckable block.
+	 * @param block
+	 */
+	public void trigger(final Block block) {
+		trigger(block.getX(), block.getY(), block.getZ());
+	}
+
+	/**
+	 * queue a physics update for a suckable block.
+	 * @param x
+	 * @param y
+	 * @param z
+	 */
+	public synchronized void trigger(final int x, final int y, final int z) {
+		final long key = BlockKey.pack(x, y, z);
+		if (queuedTriggers.add(key)) triggers.push(key);
+	}
+
+	/**
+	 * queue physics updates for suckable blocks.
+	 * @param keys the packed keys of the blocks, emptied.
+	 */
+	public synchronized void triggerAll(final LongQueue keys) {
+		while (!keys.isEmpty()) {
+			final long key = keys.poll();
+			if (queuedTriggers.add(key)) triggers.push(key);
+		}
+	}
+
+	/**
+	 * @return the number of queued changes.
+	 */
+	public synchronized int size() {
+		return clears.size() + triggers.size();
+	}
+
+	/**
+	 * do queued changes until the queue is empty or a budget is used up.
+	 * @param maxBlocks the maximum number of changes to do.
+	 * @param deadline the {@link System#nanoTime()} at which to stop.
+	 * @return the number of changes done.
+	 */
+	public int drain(final int maxBlocks, final long deadline) {
+		synchronized (this) {
+			if (clears.isEmpty() && triggers.isEmpty()) return 0;
+		}
+		final long start = System.nanoTime();
+		final Object jfr = Tracing.beginBlockWrites();
+		final long[] batch = new long[CLOCK_INTERVAL];
+		int done = 0, modified = 0;
+		// the chunk of the last batch, looked up once per tick
+		long chunkKey = 0;
+		Chunk chunk = null;
+		boolean resolved = false;
+		while (done < maxBlocks) {
+			if (done > 0 && System.nanoTime() >= deadline) break;
+			final boolean clear, recheck;
+			final int count;
+			synchronized (this) {
+				if (clears.isEmpty() && triggers.isEmpty()) break;
+				// removals first, physics updates of removed blocks are skipped anyway
+				clear = !clears.isEmpty();
+				final ChunkBatches batches = clear ? clears : triggers;
+				if (!batches.inChunk()) {
+					// keep the changes of a chunk together, unless they would never fit
+					if (done > 0 && batches.nextChunkSize() > maxBlocks - done) break;
+					batches.nextChunk();
+				}
+				count = batches.take(batch, Math.min(batch.length, maxBlocks - done));
+				final LongHashSet queued = clear ? queuedClears : queuedTriggers;
+				for (int i = 0; i < count; i++)
+					queued.remove(batch[i]);
+				recheck = clear && recheckClears;
+				if (clears.isEmpty()) recheckClears = false;
+			}
+			done += count;
+			// a batch never spans two chunks
+			if (!resolved || BlockKey.chunkOf(batch[0]) != chunkKey) {
+				chunkKey = BlockKey.chunkOf(batch[0]);
+				final int cx = BlockKey.chunkX(chunkKey), cz = BlockKey.chunkZ(chunkKey);
+				chunk = world.isChunkLoaded(cx, cz) ? world.getChunkAt(cx, cz) : null;
+				resolved = true;
+			}
+			if (chunk == null) continue;
+			for (int i = 0; i < count; i++) {
+				final long key = batch[i];
+				final Block block = chunk.getBlock(BlockKey.x(key) & 15, BlockKey.y(key), BlockKey.z(key) & 15);
+				if (!wconf.isSuckable(block)) continue;
+				if (recheck && !wconf.spongeInRange(block)) continue;
+				if (clear)
+					block.setTypeIdAndData(0, (byte) 0, false);
+				else
+					triggerPhysics(block);
+				written.increment();
+				modified++;
+			}
+		}
+		Tracing.blockWrites(jfr, world, modified, size());
+		return done;
+	}
+
+	/**
+	 * make the server update a suckable block.<br>
+	 * Resting water and lava only need to be turned into their flowing kind, which is what the server does itself when a neighbor changes.
+	 * Everything else is replaced by air and set again.
+	 * @param block
+	 */
+	private static void triggerPhysics(final Block block) {
+		final int id = block.getTypeId();
+		final byte data = block.getData();
+		if (id == WorldConfig.ID_STATIONARY_WATER)
+			block.setTypeIdAndData(WorldConfig.ID_WATER, data, true);
+		else if (id == WorldConfig.ID_STATIONARY_LAVA)
+			block.setTypeIdAndData(WorldConfig.ID_LAVA, data, true);
+		else {
+			block.setTypeIdAndData(0, (byte) 0, false);
+			block.setTypeIdAndData(id, data, true);
+		}
+	}
+
+	/**
+	 * do all queued changes at once.
+	 */
+	public void flush() {
+		drain(Integer.MAX_VALUE, Long.MAX_VALUE);
+	}
+
+	/**
+	 * drop the queued changes of an unloaded chunk, they would be skipped anyway.
+	 * @param cx chunk x
+	 * @param cz chunk z
+	 */
+	public synchronized void evict(final int cx, final int cz) {
+		final long chunkKey = BlockKey.chunk(cx, cz);
+		clears.evict(chunkKey, queuedClears);
+		triggers.evict(chunkKey, queuedTriggers);
+	}
+
+	/**
+	 * @return the approximate number of bytes the queue takes on the heap.
+	 */
+	public synchronized long estimateBytes() {
+		return clears.estimateBytes() + triggers.estimateBytes() + queuedClears.estimateBytes() + queuedTriggers.estimateBytes();
+	}
+
+	/**
+	 * Queued blocks of one kind, grouped by chunk. The chunks are done in the order they were first queued in.
+	 */
+	private static final class ChunkBatches {
+
+		/** the queued blocks of each chunk, except the current one */
+		private final LongObjectHashMap<LongQueue> byChunk = new LongObjectHashMap<>();
+		/** the chunks in {@link #byChunk}, in the order they were first queued in */
+		private final LongQueue order = new LongQueue();
+		/** emptied queues, kept to be used again */
+		private final ArrayDeque<LongQueue> spare = new ArrayDeque<>();
+		/** the blocks of the current chunk, sorted by section */
+		private long[] current = new long[256];
+		/** scratch space for sorting */
+		private long[] unsorted = new long[256];
+		private int position, length;
+		private long currentChunk;
+		/** counts the blocks per section while sorting */
+		private final int[] sectionStart;
+		private int size;
+
+		ChunkBatches(final int sections) {
+			sectionStart = new int[sections + 1];
+		}
+
+		void push(final long key) {
+			final long chunkKey = BlockKey.chunkOf(key);
+			LongQueue blocks = byChunk.get(chunkKey);
+			if (blocks == null) {
+				blocks = spare.isEmpty() ? new LongQueue() : spare.poll();
+				byChunk.put(chunkKey, blocks);
+				order.push(chunkKey);
+			}
+			blocks.push(key);
+			size++;
+		}
+
+		int size() {
+			return size;
+		}
+
+		boolean isEmpty() {
+			return size == 0;
+		}
+
+		/**
+		 * @return true if the current chunk has blocks left.
+		 */
+		boolean inChunk() {
+			return position < length;
+		}
+
+		/**
+		 * @return the number of blocks of the chunk {@link #nextChunk()} would start with.
+		 */
+		int nextChunkSize() {
+			skipEvicted();
+			return byChunk.get(order.peek()).size();
+		}
+
+		/**
+		 * make the next chunk the current one and sort its blocks by section.
+		 */
+		void nextChunk() {
+			skipEvicted();
+			currentChunk = order.poll();
+			final LongQueue blocks = byChunk.remove(currentChunk);
+			length = blocks.size();
+			position = 0;
+			if (current.length < length) {
+				current = new long[Integer.highestOneBit(length) << 1];
+				unsorted = new long[current.length];
+			}
+			final int sections = sectionStart.length - 1;
+			Arrays.fill(sectionStart, 0);
+			for (int i = 0; i < length; i++) {
+				unsorted[i] = blocks.poll();
+				sectionStart[Math.min(BlockKey.y(unsorted[i]) >> 4, sections - 1) + 1]++;
+			}
+			for (int i = 1; i <= sections; i++)
+				sectionStart[i] += sectionStart[i - 1];
+			for (int i = 0; i < length; i++)
+				current[sectionStart[Math.min(BlockKey.y(unsorted[i]) >> 4, sections - 1)]++] = unsorted[i];
+			spare.push(blocks);
+		}
+
+		/**
+		 * drop the chunks at the head of {@link #order} whose blocks were evicted. Only call while blocks are left.
+		 */
+		private void skipEvicted() {
+			while (!byChunk.containsKey(order.peek()))
+				order.poll();
+		}
+
+		/**
+		 * drop the blocks of a chunk. Its entry in {@link #order} is skipped later.
+		 * @param chunkKey the packed key of the chunk.
+		 * @param forget the set to remove the dropped blocks from.
+		 */
+		void evict(final long chunkKey, final LongHashSet forget) {
+			if (inChunk() && currentChunk == chunkKey) {
+				for (int i = position; i < length; i++)
+					forget.remove(current[i]);
+				size -= length - position;
+				position = length;
+			}
+			final LongQueue blocks = byChunk.remove(chunkKey);
+			if (blocks == null) return;
+			size -= blocks.size();
+			while (!blocks.isEmpty())
+				forget.remove(blocks.poll());
+			spare.push(blocks);
+		}
+
+		long estimateBytes() {
+			long bytes = byChunk.estimateBytes() + order.estimateBytes() + 16 + 8L * (current.length + unsorted.length);
+			for (int i = byChunk.nextSlot(0); i >= 0; i = byChunk.nextSlot(i + 1))
+				bytes += byChunk.valueAt(i).estimateBytes();
+			for (final LongQueue queue : spare)
+				bytes += queue.estimateBytes();
+			return bytes;
+		}
+
+		/**
+		 * take the next blocks of the current chunk.
+		 * @param into the array to take the block keys into.
+		 * @param max the maximum number of blocks to take.
+		 * @return the number of blocks taken.
+		 */
+		int take(final long[] into, final int max) {
+			final int count = Math.min(max, length - position);
+			System.arraycopy(current, position, into, 0, count);
+			position += count;
+			size -= count;
+			return count;
+		}
+
+	}
+
+}
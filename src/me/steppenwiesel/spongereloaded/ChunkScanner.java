@@ -0,0 +1,87 @@
+package me.steppenwiesel.spongereloaded;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.bukkit.Bukkit;
+import org.bukkit.ChunkSnapshot;
+import org.bukkit.plugin.Plugin;
+
+/**
+ * Searches chunk snapshots for sponges on a small pool of worker threads.<br>
+ * The results are handed back to the {@link SpongeIndex} on the main thread.
+ * @author Steppenwiesel
+ *
+ */
+public final class ChunkScanner {
+
+	private final Plugin plugin;
+	private final ThreadPoolExecutor executor;
+
+	/**
+	 * @param plugin the plugin used to schedule the results back to the main thread.
+	 * @param threads the number of worker threads.
+	 * @param queueSize the maximum number of chunks waiting to be scanned.
+	 */
+	public ChunkScanner(final Plugin plugin, final int threads, final int queueSize) {
+		this.plugin = plugin;
+		final AtomicInteger count = new AtomicInteger();
+		this.executor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+					@Override
+					public Thread newThread(final Runnable r) {
+						final Thread thread = new Thread(r, "SpongeReloaded chunk scanner #" + count.incrementAndGet());
+						thread.setDaemon(true);
+						thread.setPriority(Thread.MIN_PRIORITY);
+						return thread;
+					}
+				});
+		this.executor.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * queue a chunk snapshot for scanning.
+	 * @param index the index to publish the result to.
+	 * @param chunkKey the packed key of the chunk.
+	 * @param ticket passed back to {@link SpongeIndex#publish(long, Object, LongHashSet)} to detect outdated results.
+	 * @param snapshot the snapshot to scan.
+	 * @param maxHeight the height of the world.
+	 * @return false if the queue is full and the chunk was not queued.
+	 */
+	public boolean submit(final SpongeIndex index, final long chunkKey, final Object ticket, final ChunkSnapshot snapshot, final int maxHeight) {
+		try {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					final LongHashSet result = SpongeIndex.scan(snapshot, maxHeight);
+					if (!plugin.isEnabled()) return;
+					try {
+						Bukkit.getScheduler().runTask(plugin, new Runnable() {
+							@Override
+							public void run() {
+								index.publish(chunkKey, ticket, result);
+							}
+						});
+					} catch (final RuntimeException e) {
+						// plugin got disabled meanwhile, the result is not needed anymore
+					}
+				}
+			});
+			return true;
+		} catch (final RejectedExecutionException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * stop all workers and drop the queued chunks.
+	 */
+	public void shutdown() {
+		executor.shutdownNow();
+	}
+
+}
@@ -0,0 +1,74 @@
+package me.steppenwiesel.spongereloaded;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+
+/**
+ * Watches the data folder and reloads the configuration when config.yml or recipe.cfg changes.
+ * @author Steppenwiesel
+ *
+ */
+public final class ConfigWatcher implements Runnable {
+
+	/** editors often write a file in several steps, wait for them to finish */
+	private static final long SETTLE_MILLIS = 1000;
+
+	private final SpongeReloadedPlugin plugin;
+	private final WatchService watcher;
+	private final Thread thread;
+
+	/**
+	 * start watching the data folder of the plugin.
+	 * @param plugin
+	 * @throws IOException If the folder can not be watched.
+	 */
+	public ConfigWatcher(final SpongeReloadedPlugin plugin) throws IOException {
+		this.plugin = plugin;
+		this.watcher = FileSystems.getDefault().newWatchService();
+		plugin.getDataFolder().toPath().register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+		this.thread = new Thread(this, "SpongeReloaded config watcher");
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (true) {
+				WatchKey key = watcher.take();
+				boolean changed = false;
+				do {
+					for (final WatchEvent<?> event : key.pollEvents()) {
+						final Object context = event.context();
+						if (!(context instanceof Path)) continue;
+						final String name = context.toString();
+						changed |= name.equals("config.yml") || name.equals("recipe.cfg");
+					}
+					key.reset();
+				} while ((key = watcher.poll(SETTLE_MILLIS, java.util.concurrent.TimeUnit.MILLISECONDS)) != null);
+				if (changed) plugin.scheduleReload(null);
+			}
+		} catch (final InterruptedException | ClosedWatchServiceException e) {
+			// stopped
+		}
+	}
+
+	/**
+	 * stop watching.
+	 */
+	public void close() {
+		try {
+			watcher.close();
+		} catch (final IOException e) {
+			// nothing to do
+		}
+		thread.interrupt();
+	}
+
+}
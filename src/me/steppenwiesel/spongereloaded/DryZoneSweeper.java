@@ -0,0 +1,194 @@
+package me.steppenwiesel.spongereloaded;
+
+import org.bukkit.World;
+
+/**
+ * Checks the ranges of the known sponges of a world again, a few blocks per tick.<br>
+ * Suckable blocks that got into range without an event (flows that started before a chunk was loaded, world edits,
+ * blocks set without physics) are removed this way. Chunks whose sponges changed recently are checked first, then all
+ * chunks of the index take turns. Chunks without players nearby are skipped.<br>
+ * One thread sweeps at a time. The chunks to check are taken from the index under the lock of the world,
+ * the blocks are looked at without it.
+ * @author Steppenwiesel
+ *
+ */
+public final class DryZoneSweeper {
+
+	private final WorldConfig wconf;
+	private final World world;
+	private final SpongeIndex index;
+	private final Metrics.WorldMetrics metrics;
+	/** chunks whose sponges changed recently, checked before the others */
+	private final LongQueue changed = new LongQueue();
+	private final LongHashSet changedSet = new LongHashSet();
+	/** the chunks left in the current round */
+	private final LongQueue round = new LongQueue();
+	/** the sponges left in the current chunk */
+	private final LongQueue sponges = new LongQueue();
+	/** the sponge whose range is being checked, and how far */
+	private int spongeX, spongeY, spongeZ;
+	private WorldPolicy policy;
+	private OffsetTable offsets;
+	private int cursor;
+
+	/**
+	 * @param wconf the world to check.
+	 */
+	public DryZoneSweeper(final WorldConfig wconf) {
+		this.wconf = wconf;
+		this.world = wconf.getWorld();
+		this.index = wconf.getSpongeIndex();
+		this.metrics = wconf.getMetrics();
+	}
+
+	/**
+	 * check the sponges of this chunk soon. Callers must hold the lock of the world.
+	 * @param cx chunk x
+	 * @param cz chunk z
+	 */
+	public void markChanged(final int cx, final int cz) {
+		final long chunkKey = BlockKey.chunk(cx, cz);
+		if (changedSet.add(chunkKey)) changed.push(chunkKey);
+	}
+
+	/**
+	 * forget about an unloaded chunk. Its sponges are checked again when it is loaded. Callers must hold the lock of the world.
+	 * @param cx chunk x
+	 * @param cz chunk z
+	 */
+	public void evict(final int cx, final int cz) {
+		// the queued entry is skipped, the chunk has no sponges in the index anymore.
+		// A range that is being checked goes on, blocks of unloaded chunks are skipped there
+		changedSet.remove(BlockKey.chunk(cx, cz));
+	}
+
+	/**
+	 * @return the approximate number of bytes the sweeper takes on the heap.
+	 */
+	public long estimateBytes() {
+		// the sweeping thread may change the others meanwhile, this is an estimate anyway
+		return changed.estimateBytes() + changedSet.estimateBytes() + round.estimateBytes() + sponges.estimateBytes();
+	}
+
+	/**
+	 * check blocks until the budget is used up.
+	 * @param budget the maximum number of blocks to look at.
+	 * @param players the packed chunk keys of the chunks players are in.
+	 * @param playerCount the number of entries in players.
+	 * @param distance how many chunks away from a player a chunk is still checked.
+	 * @return the number of blocks looked at.
+	 */
+	public int sweep(final int budget, final long[] players, final int playerCount, final int distance) {
+		if (playerCount == 0) return 0;
+		int done = 0;
+		// every step costs at least one, so the loop ends even if there is nothing to check
+		while (done < budget) {
+			if (offsets != null) {
+				done += sweepRange(budget - done);
+			} else if (!sponges.isEmpty()) {
+				nextSponge(sponges.poll());
+				done++;
+			} else if (!nextChunk(players, playerCount, distance)) {
+				break;
+			} else
+				done++;
+		}
+		return done;
+	}
+
+	/**
+	 * look at the next blocks in range of the current sponge.
+	 * @return the number of blocks looked at.
+	 */
+	private int sweepRange(final int budget) {
+		final int maxHeight = world.getMaxHeight();
+		final BlockWriteQueue writes = wconf.getWriteQueue();
+		int done = 0, repaired = 0;
+		long lastChunk = 0;
+		boolean known = false, loaded = false;
+		while (done < budget && cursor < offsets.size()) {
+			final int i = cursor++;
+			done++;
+			final int y = spongeY + offsets.y(i);
+			if (!BlockKey.isValidY(y, maxHeight)) continue;
+			final int x = spongeX + offsets.x(i), z = spongeZ + offsets.z(i);
+			final long chunkKey = BlockKey.chunk(x >> 4, z >> 4);
+			if (!known || chunkKey != lastChunk) {
+				// never load chunks just to check them
+				lastChunk = chunkKey;
+				known = true;
+				loaded = world.isChunkLoaded(x >> 4, z >> 4);
+			}
+			if (!loaded || !policy.isSuckable(world.getBlockTypeIdAt(x, y, z))) continue;
+			writes.clear(x, y, z);
+			repaired++;
+		}
+		if (cursor >= offsets.size()) offsets = null;
+		metrics.blocksScanned.add(done);
+		metrics.blocksRepaired.add(repaired);
+		return done;
+	}
+
+	/**
+	 * start checking the range of a sponge, unless it is gone.
+	 * @param key the packed key of the sponge.
+	 */
+	private void nextSponge(final long key) {
+		final int x = BlockKey.x(key), y = BlockKey.y(key), z = BlockKey.z(key);
+		if (!world.isChunkLoaded(x >> 4, z >> 4) || world.getBlockTypeIdAt(x, y, z) != WorldConfig.ID_SPONGE) return;
+		final WorldPolicy policy = wconf.getPolicy(world.getBlockAt(x, y, z));
+		// flood mode only keeps connected blocks dry, so the range may hold water on purpose
+		if (!policy.isEnabled() || policy.isFlood()) return;
+		this.policy = policy;
+		spongeX = x;
+		spongeY = y;
+		spongeZ = z;
+		offsets = policy.getAbsorbOffsets();
+		cursor = 0;
+	}
+
+	/**
+	 * take the sponges of the next chunk to check.
+	 * @return false if there are no chunks to check.
+	 */
+	private boolean nextChunk(final long[] players, final int playerCount, final int distance) {
+		synchronized (wconf) {
+			return nextChunkLocked(players, playerCount, distance);
+		}
+	}
+
+	private boolean nextChunkLocked(final long[] players, final int playerCount, final int distance) {
+		long chunkKey;
+		if (!changed.isEmpty()) {
+			chunkKey = changed.poll();
+			changedSet.remove(chunkKey);
+			// not scanned yet, try again later
+			if (index.isPending(chunkKey)) {
+				markChanged(BlockKey.chunkX(chunkKey), BlockKey.chunkZ(chunkKey));
+				return true;
+			}
+		} else {
+			if (round.isEmpty()) {
+				for (final long key : index.chunkKeys())
+					round.push(key);
+				if (round.isEmpty()) return false;
+			}
+			chunkKey = round.poll();
+		}
+		if (!nearPlayer(chunkKey, players, playerCount, distance)) return true;
+		final LongHashSet set = index.getSponges(chunkKey);
+		if (set == null) return true;
+		for (int i = set.nextSlot(0); i >= 0; i = set.nextSlot(i + 1))
+			sponges.push(set.keyAt(i));
+		return true;
+	}
+
+	private static boolean nearPlayer(final long chunkKey, final long[] players, final int playerCount, final int distance) {
+		final int cx = BlockKey.chunkX(chunkKey), cz = BlockKey.chunkZ(chunkKey);
+		for (int i = 0; i < playerCount; i++)
+			if (Math.abs(BlockKey.chunkX(players[i]) - cx) <= distance && Math.abs(BlockKey.chunkZ(players[i]) - cz) <= distance)
+				return true;
+		return false;
+	}
+
+}
@@ -0,0 +1,59 @@
+package me.steppenwiesel.spongereloaded;
+
+import org.bukkit.Material;
+import org.bukkit.block.Block;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.block.BlockSpreadEvent;
+import org.bukkit.event.player.PlayerInteractEvent;
+import org.bukkit.inventory.ItemStack;
+
+/**
+ * Keeps fire out of the range of sponges.<br>
+ * Registered while sponges soak up fire in at least one world.
+ * @author Steppenwiesel
+ *
+ */
+final class FireListener implements Listener {
+
+	private final SpongeContext plugin;
+
+	FireListener(final SpongeContext plugin) {
+		this.plugin = plugin;
+	}
+
+	/**
+	 * react to a player using a lighter
+	 * @param event
+	 */
+	@EventHandler(priority = EventPriority.HIGH, ignoreCancelled = true)
+	public void onPlayerInteract(final PlayerInteractEvent event) {
+		final long start = System.nanoTime();
+		final Object jfr = Tracing.beginHandler();
+		final ItemStack item = event.getItem();
+		if (item != null && item.getTypeId() == Material.FLINT_AND_STEEL.getId() && event.getClickedBlock() != null && event.getBlockFace() != null) {
+			final Block newBlock = event.getClickedBlock().getRelative(event.getBlockFace());
+			final WorldConfig wconf = plugin.getWorldConfig(newBlock.getWorld());
+			if (wconf.isFireSuckable(newBlock))
+				event.setCancelled(wconf.spongeInRange(newBlock));
+		}
+		plugin.handled(HandlerType.PLAYER_INTERACT, start, jfr, event.getClickedBlock(), event.isCancelled());
+	}
+
+	/**
+	 * react to spreading fire
+	 * @param event
+	 */
+	@EventHandler(priority = EventPriority.HIGH, ignoreCancelled = true)
+	public void onBlockSpread(final BlockSpreadEvent event) {
+		final long start = System.nanoTime();
+		final Object jfr = Tracing.beginHandler();
+		final Block source = event.getSource();
+		final WorldConfig wconf = plugin.getWorldConfig(source.getWorld());
+		if (wconf.isSuckable(source))
+			event.setCancelled(wconf.spongeInRange(event.getBlock()));
+		plugin.handled(HandlerType.BLOCK_SPREAD, start, jfr, event.getBlock(), event.isCancelled());
+	}
+
+}
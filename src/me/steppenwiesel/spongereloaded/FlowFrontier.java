@@ -0,0 +1,163 @@
+package me.steppenwiesel.spongereloaded;
+
+/**
+ * Remembers the blocks water and lava were kept out of, grouped by chunk.<br>
+ * Fluids at the edge of a sponge range try to flow into the same blocks every fluid tick. Once a flow was cancelled,
+ * the next tries are cancelled by a single lookup instead of a range check. Blocks stay in range until a sponge nearby
+ * is removed, so only removals forget the chunks around them. Each chunk also remembers the sponges that kept fluids
+ * out of it. They are confirmed once per tick before the chunk cancels flows, in case they disappeared without an event.
+ * Everything is forgotten after a while anyway.
+ * @author Steppenwiesel
+ *
+ */
+final class FlowFrontier {
+
+	/** the frontier starts over when it holds this many blocks */
+	private static final int MAX_SIZE = 1 << 18;
+
+	/** the block is not remembered */
+	static final int UNKNOWN = 0;
+	/** the block is remembered, and the sponges of its chunk were confirmed in this tick */
+	static final int CONFIRMED = 1;
+	/** the block is remembered, but the sponges of its chunk have to be confirmed first */
+	static final int UNCONFIRMED = 2;
+
+	/**
+	 * The blocks in range of one chunk, and the sponges that keep fluids out of them.
+	 */
+	private static final class Edge {
+		/** packed block keys of the blocks in range */
+		final LongHashSet blocks = new LongHashSet();
+		/** packed block keys of the sponges the blocks are in range of */
+		final LongHashSet sponges = new LongHashSet();
+		/** the tick the sponges were confirmed in */
+		int confirmed;
+	}
+
+	/** the edges, mapped by the packed chunk key */
+	private final LongObjectHashMap<Edge> chunks = new LongObjectHashMap<>();
+	private int size;
+	/** the ticks until everything is forgotten */
+	private int ticksLeft;
+	/** counts the ticks, to confirm the sponges of a chunk once per tick */
+	private int tick = 1;
+
+	/**
+	 * @param lifetime the number of ticks blocks are remembered.
+	 */
+	FlowFrontier(final int lifetime) {
+		ticksLeft = lifetime;
+	}
+
+	/**
+	 * @param x
+	 * @param y
+	 * @param z
+	 * @return {@link #UNKNOWN} if no flow into this block was cancelled before, otherwise whether the sponges of its chunk
+	 *         were confirmed in this tick.
+	 */
+	int lookup(final int x, final int y, final int z) {
+		final Edge edge = chunks.get(BlockKey.chunk(x >> 4, z >> 4));
+		if (edge == null || !edge.blocks.contains(BlockKey.pack(x, y, z))) return UNKNOWN;
+		return edge.confirmed == tick ? CONFIRMED : UNCONFIRMED;
+	}
+
+	/**
+	 * collect the sponges that keep fluids out of the chunk of this block.
+	 * @param x
+	 * @param z
+	 * @param into the queue to put the packed sponge keys into.
+	 */
+	void sponges(final int x, final int z, final LongQueue into) {
+		final Edge edge = chunks.get(BlockKey.chunk(x >> 4, z >> 4));
+		if (edge == null) return;
+		for (int i = edge.sponges.nextSlot(0); i >= 0; i = edge.sponges.nextSlot(i + 1))
+			into.push(edge.sponges.keyAt(i));
+	}
+
+	/**
+	 * remember that the sponges of the chunk of this block are still there.
+	 * @param x
+	 * @param z
+	 */
+	void confirm(final int x, final int z) {
+		final Edge edge = chunks.get(BlockKey.chunk(x >> 4, z >> 4));
+		if (edge != null) edge.confirmed = tick;
+	}
+
+	/**
+	 * remember a block a flow was cancelled into.
+	 * @param x
+	 * @param y
+	 * @param z
+	 * @param sponge the packed key of the sponge the block is in range of.
+	 */
+	void add(final int x, final int y, final int z, final long sponge) {
+		if (size >= MAX_SIZE) clear();
+		final long chunkKey = BlockKey.chunk(x >> 4, z >> 4);
+		Edge edge = chunks.get(chunkKey);
+		if (edge == null) {
+			edge = new Edge();
+			// the range check that found the sponge confirmed it
+			edge.confirmed = tick;
+			chunks.put(chunkKey, edge);
+		}
+		edge.sponges.add(sponge);
+		if (edge.blocks.add(BlockKey.pack(x, y, z))) size++;
+	}
+
+	/**
+	 * forget the blocks of all chunks a sponge at this block may have kept fluids out of.
+	 * @param x
+	 * @param z
+	 * @param range the largest range of any sponge in the world.
+	 */
+	void invalidate(final int x, final int z, final int range) {
+		if (size == 0) return;
+		for (int cx = (x - range) >> 4; cx <= (x + range) >> 4; cx++)
+			for (int cz = (z - range) >> 4; cz <= (z + range) >> 4; cz++)
+				evict(BlockKey.chunk(cx, cz));
+	}
+
+	/**
+	 * forget the blocks of a chunk.
+	 * @param chunkKey the packed key of the chunk.
+	 */
+	void evict(final long chunkKey) {
+		final Edge edge = chunks.remove(chunkKey);
+		if (edge != null) size -= edge.blocks.size();
+	}
+
+	/**
+	 * count a tick, and forget everything once the lifetime is over.
+	 * @param lifetime the number of ticks blocks are remembered.
+	 */
+	void tick(final int lifetime) {
+		tick++;
+		if (--ticksLeft > 0) return;
+		ticksLeft = lifetime;
+		if (size > 0) clear();
+	}
+
+	void clear() {
+		chunks.clear();
+		size = 0;
+	}
+
+	int size() {
+		return size;
+	}
+
+	/**
+	 * @return the approximate number of bytes the frontier takes on the heap.
+	 */
+	long estimateBytes() {
+		long bytes = 32 + chunks.estimateBytes();
+		for (int i = chunks.nextSlot(0); i >= 0; i = chunks.nextSlot(i + 1)) {
+			final Edge edge = chunks.valueAt(i);
+			bytes += 24 + edge.blocks.estimateBytes() + edge.sponges.estimateBytes();
+		}
+		return bytes;
+	}
+
+}
@@ -0,0 +1,58 @@
+package me.steppenwiesel.spongereloaded;
+
+import org.bukkit.Material;
+import org.bukkit.block.Block;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.block.BlockFromToEvent;
+import org.bukkit.event.player.PlayerBucketEmptyEvent;
+
+/**
+ * Keeps water and lava out of the range of sponges.<br>
+ * Registered while sponges soak up water or lava in at least one world.
+ * @author Steppenwiesel
+ *
+ */
+final class FluidListener implements Listener {
+
+	private final SpongeContext plugin;
+
+	FluidListener(final SpongeContext plugin) {
+		this.plugin = plugin;
+	}
+
+	/**
+	 * react to players emptying a bucket.
+	 * @param event
+	 */
+	@EventHandler(priority = EventPriority.HIGH, ignoreCancelled = true)
+	public void onPlayerBucketEmpty(final PlayerBucketEmptyEvent event) {
+		final long start = System.nanoTime();
+		final Object jfr = Tracing.beginHandler();
+		final Material bucket = event.getBucket();
+		final WorldConfig wconf = plugin.getWorldConfig(event.getBlockClicked().getWorld());
+		final Block block = event.getBlockClicked().getRelative(event.getBlockFace());
+		if (wconf.bucketContainsSuckable(bucket, block))
+			event.setCancelled(wconf.spongeInRange(block));
+		plugin.handled(HandlerType.PLAYER_BUCKET_EMPTY, start, jfr, event.getBlockClicked(), event.isCancelled());
+	}
+
+	/**
+	 * react to flowing water/lava.
+	 * @param event
+	 */
+	@EventHandler(priority = EventPriority.HIGH, ignoreCancelled = true)
+	public void onBlockFromTo(final BlockFromToEvent event) {
+		final long start = System.nanoTime();
+		final Object jfr = Tracing.beginHandler();
+		final Block from = event.getBlock();
+		final Block to = event.getToBlock();
+		final WorldConfig wconf = plugin.getWorldConfig(to.getWorld());
+		if (wconf.isSuckable(from)) {
+			event.setCancelled(wconf.isFlowBlocked(from, to));
+		}
+		plugin.handled(HandlerType.BLOCK_FROM_TO, start, jfr, to, event.isCancelled());
+	}
+
+}
@@ -0,0 +1,39 @@
+package me.steppenwiesel.spongereloaded;
+
+/**
+ * The event handlers of {@link SpongeReloadedPlugin}, used to label measurements.
+ * @author Steppenwiesel
+ *
+ */
+public enum HandlerType {
+
+	CHUNK_LOAD("onChunkLoad"),
+	CHUNK_UNLOAD("onChunkUnload"),
+	BLOCK_PLACE("onBlockPlace"),
+	PLAYER_BUCKET_EMPTY("onPlayerBucketEmpty"),
+	PLAYER_INTERACT("onPlayerInteract"),
+	BLOCK_SPREAD("onBlockSpread"),
+	BLOCK_FROM_TO("onBlockFromTo"),
+	BLOCK_BREAK("onBlockBreak"),
+	BLOCK_BURN("onBlockBurn"),
+	BLOCK_PHYSICS("onBlockPhysics"),
+	BLOCK_PISTON_EXTEND("onBlockPistonExtend"),
+	BLOCK_PISTON_RETRACT("onBlockPistonRetract"),
+	ENTITY_CHANGE_BLOCK("onEntityChangeBlock"),
+	ENTITY_EXPLODE("onEntityExplode"),
+	BLOCK_EXPLODE("onBlockExplode");
+
+	private final String method;
+
+	private HandlerType(final String method) {
+		this.method = method;
+	}
+
+	/**
+	 * @return the name of the handler method.
+	 */
+	public String getMethod() {
+		return method;
+	}
+
+}
@@ -0,0 +1,153 @@
+package me.steppenwiesel.spongereloaded;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * The JDK Flight Recorder events of the plugin. Only loaded by {@link Tracing} if the JVM has a flight recorder.<br>
+ * All events are disabled by default, enable them in the recording settings, e.g. {@code spongereloaded.Scan#enabled=true}.<br>
+ * Events are begun when the work starts and committed when it ends, so their start time and duration line up with
+ * GC pauses and the other events of the recording.
+ * @author Steppenwiesel
+ *
+ */
+final class JfrEvents {
+
+	@Name("spongereloaded.Scan")
+	@Label("Sponge Scan")
+	@Description("A scan of the blocks around a sponge or a block")
+	@Category("SpongeReloaded")
+	@Enabled(false)
+	@StackTrace(false)
+	static final class ScanEvent extends Event {
+		@Label("Scan")
+		String scan;
+		@Label("World")
+		String world;
+		@Label("X")
+		int x;
+		@Label("Y")
+		int y;
+		@Label("Z")
+		int z;
+		@Label("Radius")
+		int radius;
+		@Label("Blocks Visited")
+		long blocksVisited;
+		@Label("Blocks Modified")
+		long blocksModified;
+	}
+
+	@Name("spongereloaded.Handler")
+	@Label("Sponge Event Handler")
+	@Description("A call of an event handler of the plugin")
+	@Category("SpongeReloaded")
+	@Enabled(false)
+	@StackTrace(false)
+	static final class HandlerEvent extends Event {
+		@Label("Handler")
+		String handler;
+		@Label("World")
+		String world;
+		@Label("X")
+		int x;
+		@Label("Y")
+		int y;
+		@Label("Z")
+		int z;
+		@Label("Cancelled")
+		boolean cancelled;
+	}
+
+	@Name("spongereloaded.BlockWrites")
+	@Label("Sponge Block Writes")
+	@Description("Queued block changes done in one tick")
+	@Category("SpongeReloaded")
+	@Enabled(false)
+	@StackTrace(false)
+	static final class BlockWritesEvent extends Event {
+		@Label("World")
+		String world;
+		@Label("Blocks Modified")
+		int blocksModified;
+		@Label("Blocks Queued")
+		int blocksQueued;
+	}
+
+	private static final EventType SCAN = EventType.getEventType(ScanEvent.class);
+	private static final EventType HANDLER = EventType.getEventType(HandlerEvent.class);
+	private static final EventType BLOCK_WRITES = EventType.getEventType(BlockWritesEvent.class);
+
+	private JfrEvents() {
+	}
+
+	static boolean isScanEnabled() {
+		return SCAN.isEnabled();
+	}
+
+	static boolean isHandlerEnabled() {
+		return HANDLER.isEnabled();
+	}
+
+	static boolean isBlockWritesEnabled() {
+		return BLOCK_WRITES.isEnabled();
+	}
+
+	static Object beginScan() {
+		final ScanEvent event = new ScanEvent();
+		event.begin();
+		return event;
+	}
+
+	static Object beginHandler() {
+		final HandlerEvent event = new HandlerEvent();
+		event.begin();
+		return event;
+	}
+
+	static Object beginBlockWrites() {
+		final BlockWritesEvent event = new BlockWritesEvent();
+		event.begin();
+		return event;
+	}
+
+	static void scan(final Object started, final String scan, final String world, final int x, final int y, final int z, final int radius,
+			final long blocksVisited, final long blocksModified) {
+		final ScanEvent event = (ScanEvent) started;
+		event.scan = scan;
+		event.world = world;
+		event.x = x;
+		event.y = y;
+		event.z = z;
+		event.radius = radius;
+		event.blocksVisited = blocksVisited;
+		event.blocksModified = blocksModified;
+		event.commit();
+	}
+
+	static void handler(final Object started, final String handler, final String world, final int x, final int y, final int z, final boolean cancelled) {
+		final HandlerEvent event = (HandlerEvent) started;
+		event.handler = handler;
+		event.world = world;
+		event.x = x;
+		event.y = y;
+		event.z = z;
+		event.cancelled = cancelled;
+		event.commit();
+	}
+
+	static void blockWrites(final Object started, final String world, final int blocksModified, final int blocksQueued) {
+		final BlockWritesEvent event = (BlockWritesEvent) started;
+		event.world = world;
+		event.blocksModified = blocksModified;
+		event.blocksQueued = blocksQueued;
+		event.commit();
+	}
+
+}
@@ -0,0 +1,118 @@
+package me.steppenwiesel.spongereloaded;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts durations in buckets that grow exponentially, with four buckets per power of two.<br>
+ * Recording takes a few atomic increments, the relative error of the percentiles is at most 25%.<br>
+ * Like the {@link StripedCounter}, each thread counts in one of several stripes, which are only added up when the histogram is read.
+ * @author Steppenwiesel
+ *
+ */
+public final class LatencyHistogram {
+
+	private static final int SUB_BUCKETS = 4;
+	private static final int BUCKETS = 64 * SUB_BUCKETS;
+	private static final int STRIPES = 8;
+	/** the buckets of one stripe, plus padding that keeps the stripes on different cache lines */
+	private static final int STRIPE_LENGTH = BUCKETS + 8;
+
+	private final AtomicLongArray counts = new AtomicLongArray(STRIPES * STRIPE_LENGTH);
+	private final StripedCounter count = new StripedCounter();
+	private final StripedCounter sum = new StripedCounter();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * record a duration.
+	 * @param nanos
+	 */
+	public void record(long nanos) {
+		if (nanos < 0) nanos = 0;
+		counts.incrementAndGet(((int) Thread.currentThread().getId() & (STRIPES - 1)) * STRIPE_LENGTH + bucket(nanos));
+		count.increment();
+		sum.add(nanos);
+		long m;
+		while (nanos > (m = max.get()) && !max.compareAndSet(m, nanos));
+	}
+
+	private static int bucket(final long nanos) {
+		if (nanos < SUB_BUCKETS) return (int) nanos;
+		final int exp = 63 - Long.numberOfLeadingZeros(nanos);
+		return exp * SUB_BUCKETS + (int) ((nanos >>> (exp - 2)) & (SUB_BUCKETS - 1));
+	}
+
+	/**
+	 * @param bucket
+	 * @return the largest duration that falls into the bucket.
+	 */
+	private static long upperBound(final int bucket) {
+		if (bucket < SUB_BUCKETS) return bucket;
+		final int exp = bucket / SUB_BUCKETS;
+		final long lower = (1L << exp) + ((long) (bucket % SUB_BUCKETS) << (exp - 2));
+		return lower + (1L << (exp - 2)) - 1;
+	}
+
+	/**
+	 * @param bucket
+	 * @return the number of durations in the bucket, added up over all stripes.
+	 */
+	private long countIn(final int bucket) {
+		long n = 0;
+		for (int i = 0; i < STRIPES; i++)
+			n += counts.get(i * STRIPE_LENGTH + bucket);
+		return n;
+	}
+
+	/**
+	 * @return the number of recorded durations.
+	 */
+	public long getCount() {
+		return count.sum();
+	}
+
+	/**
+	 * @return the sum of all recorded durations.
+	 */
+	public long getSum() {
+		return sum.sum();
+	}
+
+	/**
+	 * @return the longest recorded duration.
+	 */
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * @param percentile between 0 and 100.
+	 * @return the duration below which the given percentage of the recorded durations lie, 0 if nothing was recorded.
+	 */
+	public long getPercentile(final double percentile) {
+		final long[] buckets = new long[BUCKETS];
+		long total = 0;
+		for (int i = 0; i < BUCKETS; i++)
+			total += buckets[i] = countIn(i);
+		if (total == 0) return 0;
+		final long wanted = (long) Math.ceil(total * percentile / 100.0);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += buckets[i];
+			if (seen >= wanted && seen > 0) return Math.min(upperBound(i), getMax());
+		}
+		return getMax();
+	}
+
+	/**
+	 * @param nanos
+	 * @return the number of recorded durations up to this one (inclusive, rounded to whole powers of two).
+	 */
+	public long getCountBelow(final long nanos) {
+		long n = 0;
+		for (int i = 0; i < BUCKETS && upperBound(i) <= nanos; i++)
+			n += countIn(i);
+		return n;
+	}
+
+}
@@ -0,0 +1,189 @@
+package me.steppenwiesel.spongereloaded;
+
+/**
+ * A set of primitive {@code long} values using open addressing with linear probing.<br>
+ * Used to store packed block coordinates without boxing them.
+ * @author Steppenwiesel
+ *
+ */
+public final class LongHashSet {
+
+	private static final long FREE = 0L;
+
+	private long[] keys;
+	private boolean hasFree;
+	private int size;
+	private int mask;
+
+	/**
+	 * create an empty set. No memory is allocated until the first value is added.
+	 */
+	public LongHashSet() {
+		keys = new long[0];
+		mask = -1;
+	}
+
+	/**
+	 * @param value
+	 * @return true if the value is in this set.
+	 */
+	public boolean contains(final long value) {
+		if (value == FREE) return hasFree;
+		if (keys.length == 0) return false;
+		int i = BlockKey.mix(value) & mask;
+		long k;
+		while ((k = keys[i]) != FREE) {
+			if (k == value) return true;
+			i = (i + 1) & mask;
+		}
+		return false;
+	}
+
+	/**
+	 * @param value
+	 * @return true if the set did not contain the value before.
+	 */
+	public boolean add(final long value) {
+		if (value == FREE) {
+			if (hasFree) return false;
+			hasFree = true;
+			size++;
+			return true;
+		}
+		if ((size + 1) * 2 > keys.length) grow();
+		int i = BlockKey.mix(value) & mask;
+		long k;
+		while ((k = keys[i]) != FREE) {
+			if (k == value) return false;
+			i = (i + 1) & mask;
+		}
+		keys[i] = value;
+		size++;
+		return true;
+	}
+
+	/**
+	 * @param value
+	 * @return true if the value was in this set.
+	 */
+	public boolean remove(final long value) {
+		if (value == FREE) {
+			if (!hasFree) return false;
+			hasFree = false;
+			size--;
+			return true;
+		}
+		if (keys.length == 0) return false;
+		int i = BlockKey.mix(value) & mask;
+		long k;
+		while ((k = keys[i]) != FREE) {
+			if (k == value) {
+				shiftKeys(i);
+				size--;
+				return true;
+			}
+			i = (i + 1) & mask;
+		}
+		return false;
+	}
+
+	/**
+	 * remove all values but keep the allocated memory.
+	 */
+	public void clear() {
+		if (size == 0) return;
+		java.util.Arrays.fill(keys, FREE);
+		hasFree = false;
+		size = 0;
+	}
+
+	/**
+	 * @return the number of values in this set.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return true if there are no values in this set.
+	 */
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * @return the approximate number of bytes this set takes on the heap.
+	 */
+	public long estimateBytes() {
+		// object header and fields, array header and slots
+		return 32 + 16 + 8L * keys.length;
+	}
+
+	/**
+	 * find the next occupied slot, used to iterate over the set without allocating.<br>
+	 * Iterate with {@code for (int i = set.nextSlot(0); i >= 0; i = set.nextSlot(i + 1))}.
+	 * @param slot the first slot to look at.
+	 * @return the next occupied slot at or after the given one, or -1 if there is none.
+	 */
+	public int nextSlot(int slot) {
+		for (; slot < keys.length; slot++)
+			if (keys[slot] != FREE) return slot;
+		if (slot == keys.length && hasFree) return slot;
+		return -1;
+	}
+
+	/**
+	 * @param slot a slot returned by {@link #nextSlot(int)}
+	 * @return the value stored in this slot.
+	 */
+	public long keyAt(final int slot) {
+		return slot == keys.length ? FREE : keys[slot];
+	}
+
+	/**
+	 * copy all values of this set into a new array.
+	 * @return the values, in no particular order.
+	 */
+	public long[] toArray() {
+		final long[] result = new long[size];
+		int n = 0;
+		if (hasFree) result[n++] = FREE;
+		for (final long k : keys)
+			if (k != FREE) result[n++] = k;
+		return result;
+	}
+
+	private void shiftKeys(int pos) {
+		// backward shift deletion, keeps probe sequences intact without tombstones
+		int last;
+		long k;
+		while (true) {
+			pos = ((last = pos) + 1) & mask;
+			while (true) {
+				if ((k = keys[pos]) == FREE) {
+					keys[last] = FREE;
+					return;
+				}
+				final int slot = BlockKey.mix(k) & mask;
+				if (last <= pos ? last >= slot || slot > pos : last >= slot && slot > pos) break;
+				pos = (pos + 1) & mask;
+			}
+			keys[last] = k;
+		}
+	}
+
+	private void grow() {
+		final long[] old = keys;
+		final int capacity = Math.max(16, old.length * 2);
+		keys = new long[capacity];
+		mask = capacity - 1;
+		for (final long k : old) {
+			if (k == FREE) continue;
+			int i = BlockKey.mix(k) & mask;
+			while (keys[i] != FREE)
+				i = (i + 1) & mask;
+			keys[i] = k;
+		}
+	}
+
+}
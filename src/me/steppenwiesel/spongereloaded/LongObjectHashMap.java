@@ -0,0 +1,235 @@
+package me.steppenwiesel.spongereloaded;
+
+import java.util.Arrays;
+
+/**
+ * A map from primitive {@code long} keys to objects using open addressing with linear probing.<br>
+ * Used to look up per-chunk data by packed chunk coordinates without boxing them.
+ * @author Steppenwiesel
+ *
+ * @param <V> the type of the values.
+ */
+public final class LongObjectHashMap<V> {
+
+	private static final long FREE = 0L;
+
+	private long[] keys;
+	private Object[] values;
+	private Object freeValue;
+	private boolean hasFree;
+	private int size;
+	private int mask;
+
+	/**
+	 * create an empty map.
+	 */
+	public LongObjectHashMap() {
+		keys = new long[16];
+		values = new Object[16];
+		mask = 15;
+	}
+
+	/**
+	 * @param key
+	 * @return the value mapped to the key, or null if there is none.
+	 */
+	@SuppressWarnings("unchecked")
+	public V get(final long key) {
+		if (key == FREE) return (V) freeValue;
+		int i = BlockKey.mix(key) & mask;
+		long k;
+		while ((k = keys[i]) != FREE) {
+			if (k == key) return (V) values[i];
+			i = (i + 1) & mask;
+		}
+		return null;
+	}
+
+	/**
+	 * @param key
+	 * @return true if a value is mapped to the key.
+	 */
+	public boolean containsKey(final long key) {
+		if (key == FREE) return hasFree;
+		int i = BlockKey.mix(key) & mask;
+		long k;
+		while ((k = keys[i]) != FREE) {
+			if (k == key) return true;
+			i = (i + 1) & mask;
+		}
+		return false;
+	}
+
+	/**
+	 * @param key
+	 * @param value must not be null.
+	 * @return the previous value, or null if there was none.
+	 */
+	@SuppressWarnings("unchecked")
+	public V put(final long key, final V value) {
+		if (key == FREE) {
+			final V old = (V) freeValue;
+			if (!hasFree) size++;
+			hasFree = true;
+			freeValue = value;
+			return old;
+		}
+		int i = BlockKey.mix(key) & mask;
+		long k;
+		while ((k = keys[i]) != FREE) {
+			if (k == key) {
+				final V old = (V) values[i];
+				values[i] = value;
+				return old;
+			}
+			i = (i + 1) & mask;
+		}
+		keys[i] = key;
+		values[i] = value;
+		if (++size * 2 > keys.length) grow();
+		return null;
+	}
+
+	/**
+	 * @param key
+	 * @return the removed value, or null if there was none.
+	 */
+	@SuppressWarnings("unchecked")
+	public V remove(final long key) {
+		if (key == FREE) {
+			if (!hasFree) return null;
+			final V old = (V) freeValue;
+			hasFree = false;
+			freeValue = null;
+			size--;
+			return old;
+		}
+		int i = BlockKey.mix(key) & mask;
+		long k;
+		while ((k = keys[i]) != FREE) {
+			if (k == key) {
+				final V old = (V) values[i];
+				shiftKeys(i);
+				size--;
+				return old;
+			}
+			i = (i + 1) & mask;
+		}
+		return null;
+	}
+
+	/**
+	 * remove all mappings.
+	 */
+	public void clear() {
+		Arrays.fill(keys, FREE);
+		Arrays.fill(values, null);
+		hasFree = false;
+		freeValue = null;
+		size = 0;
+	}
+
+	/**
+	 * @return the number of mappings in this map.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return true if there are no mappings in this map.
+	 */
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * @return the approximate number of bytes the table of this map takes on the heap, without the values.
+	 */
+	public long estimateBytes() {
+		// object header and fields, two array headers, a key and a compressed reference per slot
+		return 40 + 32 + 12L * keys.length;
+	}
+
+	/**
+	 * find the next occupied slot, used to iterate over the map without allocating.
+	 * @param slot the first slot to look at.
+	 * @return the next occupied slot at or after the given one, or -1 if there is none.
+	 * @see LongHashSet#nextSlot(int)
+	 */
+	public int nextSlot(int slot) {
+		for (; slot < keys.length; slot++)
+			if (keys[slot] != FREE) return slot;
+		if (slot == keys.length && hasFree) return slot;
+		return -1;
+	}
+
+	/**
+	 * @param slot a slot returned by {@link #nextSlot(int)}
+	 * @return the key stored in this slot.
+	 */
+	public long keyAt(final int slot) {
+		return slot == keys.length ? FREE : keys[slot];
+	}
+
+	/**
+	 * @param slot a slot returned by {@link #nextSlot(int)}
+	 * @return the value stored in this slot.
+	 */
+	@SuppressWarnings("unchecked")
+	public V valueAt(final int slot) {
+		return (V) (slot == keys.length ? freeValue : values[slot]);
+	}
+
+	/**
+	 * copy all keys of this map into a new array.
+	 * @return the keys, in no particular order.
+	 */
+	public long[] keys() {
+		final long[] result = new long[size];
+		int n = 0;
+		for (int i = nextSlot(0); i >= 0; i = nextSlot(i + 1))
+			result[n++] = keyAt(i);
+		return result;
+	}
+
+	private void shiftKeys(int pos) {
+		// backward shift deletion, see LongHashSet
+		int last;
+		long k;
+		while (true) {
+			pos = ((last = pos) + 1) & mask;
+			while (true) {
+				if ((k = keys[pos]) == FREE) {
+					keys[last] = FREE;
+					values[last] = null;
+					return;
+				}
+				final int slot = BlockKey.mix(k) & mask;
+				if (last <= pos ? last >= slot || slot > pos : last >= slot && slot > pos) break;
+				pos = (pos + 1) & mask;
+			}
+			keys[last] = k;
+			values[last] = values[pos];
+		}
+	}
+
+	private void grow() {
+		final long[] oldKeys = keys;
+		final Object[] oldValues = values;
+		final int capacity = oldKeys.length * 2;
+		keys = new long[capacity];
+		values = new Object[capacity];
+		mask = capacity - 1;
+		for (int j = 0; j < oldKeys.length; j++) {
+			final long k = oldKeys[j];
+			if (k == FREE) continue;
+			int i = BlockKey.mix(k) & mask;
+			while (keys[i] != FREE)
+				i = (i + 1) & mask;
+			keys[i] = k;
+			values[i] = oldValues[j];
+		}
+	}
+
+}
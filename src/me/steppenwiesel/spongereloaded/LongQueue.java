@@ -0,0 +1,88 @@
+package me.steppenwiesel.spongereloaded;
+
+/**
+ * A first-in-first-out queue of primitive {@code long} values, backed by a growing ring buffer.
+ * @author Steppenwiesel
+ *
+ */
+public final class LongQueue {
+
+	private long[] values;
+	private int head;
+	private int size;
+
+	/**
+	 * create an empty queue.
+	 */
+	public LongQueue() {
+		values = new long[16];
+	}
+
+	/**
+	 * add a value to the end of the queue.
+	 * @param value
+	 */
+	public void push(final long value) {
+		if (size == values.length) grow();
+		values[(head + size) & (values.length - 1)] = value;
+		size++;
+	}
+
+	/**
+	 * remove the first value of the queue. The queue must not be empty.
+	 * @return the value.
+	 */
+	public long poll() {
+		final long value = values[head];
+		head = (head + 1) & (values.length - 1);
+		size--;
+		return value;
+	}
+
+	/**
+	 * get the first value of the queue without removing it. The queue must not be empty.
+	 * @return the value.
+	 */
+	public long peek() {
+		return values[head];
+	}
+
+	/**
+	 * @return the number of values in the queue.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return true if there are no values in the queue.
+	 */
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * @return the approximate number of bytes this queue takes on the heap.
+	 */
+	public long estimateBytes() {
+		return 24 + 16 + 8L * values.length;
+	}
+
+	/**
+	 * remove all values but keep the allocated memory.
+	 */
+	public void clear() {
+		head = 0;
+		size = 0;
+	}
+
+	private void grow() {
+		final long[] old = values;
+		values = new long[old.length * 2];
+		final int tail = old.length - head;
+		System.arraycopy(old, head, values, 0, tail);
+		System.arraycopy(old, 0, values, tail, head);
+		head = 0;
+	}
+
+}
@@ -0,0 +1,286 @@
+package me.steppenwiesel.spongereloaded;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Measures how much work the plugin does: calls and latencies of every event handler,
+ * and calls, latencies and block counts of the scans of every world.
+ * @author Steppenwiesel
+ *
+ */
+public final class Metrics {
+
+	/** the smallest and largest bucket boundary in the Prometheus output, as powers of two nanoseconds */
+	private static final int MIN_EXPORT_EXP = 8;
+	private static final int MAX_EXPORT_EXP = 30;
+
+	/**
+	 * call counts and latencies of one piece of code.
+	 */
+	public static final class Timer {
+		private final StripedCounter calls = new StripedCounter();
+		private final StripedCounter cancelled = new StripedCounter();
+		private final LatencyHistogram latency = new LatencyHistogram();
+
+		/**
+		 * record a call.
+		 * @param start the {@link System#nanoTime()} when the call started.
+		 * @param cancelled true if the call cancelled its event.
+		 */
+		public void record(final long start, final boolean cancelled) {
+			calls.increment();
+			if (cancelled) this.cancelled.increment();
+			latency.record(System.nanoTime() - start);
+		}
+
+		public long getCalls() {
+			return calls.sum();
+		}
+
+		public long getCancelled() {
+			return cancelled.sum();
+		}
+
+		public LatencyHistogram getLatency() {
+			return latency;
+		}
+	}
+
+	/**
+	 * the scans of one world.
+	 */
+	public final class WorldMetrics {
+		private final String world;
+		private final Map<String, Timer> scans = new ConcurrentHashMap<>();
+		public final Timer spongeInRange = scan("spongeInRange");
+		public final Timer removeSuckables = scan("removeSuckables");
+		public final Timer callPhysics = scan("callPhysics");
+		public final Timer moveSponge = scan("moveSponge");
+		/** handing the blocks found in the background to the write queue */
+		public final Timer applyPlan = scan("applyPlan");
+		/** blocks looked at by the scans */
+		public final StripedCounter blocksScanned = new StripedCounter();
+		/** blocks changed by the plugin */
+		public final StripedCounter blocksWritten = new StripedCounter();
+		/** suckable blocks found in range of sponges by the {@link DryZoneSweeper} */
+		public final StripedCounter blocksRepaired = new StripedCounter();
+		/** cancelled flows answered by the {@link FlowFrontier} */
+		public final StripedCounter flowFrontierHits = new StripedCounter();
+		/** range checks answered by the memo of the current tick */
+		public final StripedCounter rangeMemoHits = new StripedCounter();
+		/** range checks the memo did not know yet */
+		public final StripedCounter rangeMemoMisses = new StripedCounter();
+
+		private WorldMetrics(final String world) {
+			this.world = world;
+		}
+
+		/**
+		 * record a scan, unless recording is turned off.
+		 * @param timer one of the timers of this world.
+		 * @param start the {@link System#nanoTime()} when the scan started.
+		 */
+		public void record(final Timer timer, final long start) {
+			if (enabled) timer.record(start, false);
+		}
+
+		private Timer scan(final String name) {
+			final Timer timer = new Timer();
+			scans.put(name, timer);
+			return timer;
+		}
+
+		public String getWorld() {
+			return world;
+		}
+	}
+
+	private final Timer[] handlers = new Timer[HandlerType.values().length];
+	private final ConcurrentMap<String, WorldMetrics> worlds = new ConcurrentHashMap<>();
+	private volatile boolean enabled = true;
+	/** the number of times the {@link TickGovernor} changed its mode */
+	private final StripedCounter governorChanges = new StripedCounter();
+	/** the ordinal of the current {@link TickGovernor.Mode} */
+	private volatile int governorMode;
+
+	public Metrics() {
+		for (int i = 0; i < handlers.length; i++)
+			handlers[i] = new Timer();
+	}
+
+	/**
+	 * @param enabled false to stop recording handler calls.
+	 */
+	public void setEnabled(final boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	/**
+	 * @return true if handler calls are recorded.
+	 */
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * record a call of an event handler.
+	 * @param type the handler.
+	 * @param start the {@link System#nanoTime()} when the handler was called.
+	 * @param cancelled true if the event is cancelled afterwards.
+	 */
+	public void record(final HandlerType type, final long start, final boolean cancelled) {
+		if (enabled) handlers[type.ordinal()].record(start, cancelled);
+	}
+
+	/**
+	 * record a mode change of the {@link TickGovernor}. Always recorded.
+	 * @param mode the ordinal of the new mode.
+	 */
+	public void governorChanged(final int mode) {
+		governorMode = mode;
+		governorChanges.increment();
+	}
+
+	/**
+	 * @param type
+	 * @return the measurements of an event handler.
+	 */
+	public Timer handler(final HandlerType type) {
+		return handlers[type.ordinal()];
+	}
+
+	/**
+	 * get the measurements of a world, creating them if needed.
+	 * @param worldName
+	 * @return the measurements.
+	 */
+	public WorldMetrics world(final String worldName) {
+		WorldMetrics metrics = worlds.get(worldName);
+		if (metrics == null) {
+			metrics = new WorldMetrics(worldName);
+			final WorldMetrics other = worlds.putIfAbsent(worldName, metrics);
+			if (other != null) metrics = other;
+		}
+		return metrics;
+	}
+
+	/**
+	 * drop the measurements of an unloaded world, servers may create and unload lots of them.
+	 * @param worldName
+	 */
+	public void forget(final String worldName) {
+		worlds.remove(worldName);
+	}
+
+	/**
+	 * create a human readable report.
+	 * @param worldName the world to report the scans of, null for all worlds.
+	 * @return the lines of the report.
+	 */
+	public List<String> report(final String worldName) {
+		final List<String> lines = new ArrayList<>();
+		lines.add("handler: calls / cancelled / p50 / p99 / max (microseconds)");
+		for (final HandlerType type : HandlerType.values()) {
+			final Timer timer = handler(type);
+			if (timer.getCalls() == 0) continue;
+			lines.add(format(type.getMethod(), timer));
+		}
+		lines.add("governor: " + TickGovernor.Mode.values()[governorMode] + " mode, " + governorChanges.sum() + " mode changes");
+		for (final WorldMetrics world : worlds.values()) {
+			if (worldName != null && !worldName.equals(world.world)) continue;
+			lines.add("world " + world.world + ": " + world.blocksScanned.sum() + " blocks scanned, " + world.blocksWritten.sum() + " blocks written, "
+					+ world.blocksRepaired.sum() + " blocks repaired by the sweeper");
+			final long hits = world.rangeMemoHits.sum(), misses = world.rangeMemoMisses.sum();
+			if (hits + misses > 0)
+				lines.add(String.format(Locale.ROOT, "  range memo: %d hits / %d misses (%.1f%% hit rate)", hits, misses, 100.0 * hits / (hits + misses)));
+			if (world.flowFrontierHits.sum() > 0)
+				lines.add("  flow frontier: " + world.flowFrontierHits.sum() + " flows cancelled without a range check");
+			for (final Map.Entry<String, Timer> scan : world.scans.entrySet())
+				if (scan.getValue().getCalls() > 0) lines.add("  " + format(scan.getKey(), scan.getValue()));
+		}
+		return lines;
+	}
+
+	private static String format(final String name, final Timer timer) {
+		final LatencyHistogram h = timer.getLatency();
+		return String.format(Locale.ROOT, "%s: %d / %d / %.1f / %.1f / %.1f", name, timer.getCalls(), timer.getCancelled(),
+				h.getPercentile(50) / 1000.0, h.getPercentile(99) / 1000.0, h.getMax() / 1000.0);
+	}
+
+	/**
+	 * write all measurements to a file in the Prometheus text format.<br>
+	 * The file is replaced at once, so readers never see a half-written file.
+	 * @param file
+	 * @throws IOException
+	 */
+	public void writePrometheus(final File file) throws IOException {
+		final File tmp = new File(file.getPath() + ".tmp");
+		try (Writer out = new OutputStreamWriter(new FileOutputStream(tmp), "utf-8")) {
+			out.write("# TYPE spongereloaded_handler_calls_total counter\n");
+			for (final HandlerType type : HandlerType.values())
+				out.write("spongereloaded_handler_calls_total{handler=\"" + type.getMethod() + "\"} " + handler(type).getCalls() + "\n");
+			out.write("# TYPE spongereloaded_handler_cancelled_total counter\n");
+			for (final HandlerType type : HandlerType.values())
+				out.write("spongereloaded_handler_cancelled_total{handler=\"" + type.getMethod() + "\"} " + handler(type).getCancelled() + "\n");
+			out.write("# TYPE spongereloaded_handler_latency_seconds histogram\n");
+			for (final HandlerType type : HandlerType.values())
+				writeHistogram(out, "spongereloaded_handler_latency_seconds", "handler=\"" + type.getMethod() + "\"", handler(type).getLatency());
+			out.write("# TYPE spongereloaded_governor_mode gauge\n");
+			out.write("spongereloaded_governor_mode " + governorMode + "\n");
+			out.write("# TYPE spongereloaded_governor_changes_total counter\n");
+			out.write("spongereloaded_governor_changes_total " + governorChanges.sum() + "\n");
+			out.write("# TYPE spongereloaded_blocks_scanned_total counter\n");
+			for (final WorldMetrics world : worlds.values())
+				out.write("spongereloaded_blocks_scanned_total{world=\"" + escape(world.world) + "\"} " + world.blocksScanned.sum() + "\n");
+			out.write("# TYPE spongereloaded_blocks_written_total counter\n");
+			for (final WorldMetrics world : worlds.values())
+				out.write("spongereloaded_blocks_written_total{world=\"" + escape(world.world) + "\"} " + world.blocksWritten.sum() + "\n");
+			out.write("# TYPE spongereloaded_blocks_repaired_total counter\n");
+			for (final WorldMetrics world : worlds.values())
+				out.write("spongereloaded_blocks_repaired_total{world=\"" + escape(world.world) + "\"} " + world.blocksRepaired.sum() + "\n");
+			out.write("# TYPE spongereloaded_range_memo_hits_total counter\n");
+			for (final WorldMetrics world : worlds.values())
+				out.write("spongereloaded_range_memo_hits_total{world=\"" + escape(world.world) + "\"} " + world.rangeMemoHits.sum() + "\n");
+			out.write("# TYPE spongereloaded_range_memo_misses_total counter\n");
+			for (final WorldMetrics world : worlds.values())
+				out.write("spongereloaded_range_memo_misses_total{world=\"" + escape(world.world) + "\"} " + world.rangeMemoMisses.sum() + "\n");
+			out.write("# TYPE spongereloaded_flow_frontier_hits_total counter\n");
+			for (final WorldMetrics world : worlds.values())
+				out.write("spongereloaded_flow_frontier_hits_total{world=\"" + escape(world.world) + "\"} " + world.flowFrontierHits.sum() + "\n");
+			out.write("# TYPE spongereloaded_scan_latency_seconds histogram\n");
+			for (final WorldMetrics world : worlds.values())
+				for (final Map.Entry<String, Timer> scan : world.scans.entrySet())
+					writeHistogram(out, "spongereloaded_scan_latency_seconds", "world=\"" + escape(world.world) + "\",scan=\"" + scan.getKey() + "\"", scan.getValue().getLatency());
+		}
+		if (!tmp.renameTo(file)) {
+			// some platforms do not replace existing files
+			file.delete();
+			if (!tmp.renameTo(file)) throw new IOException("Could not replace " + file.getPath());
+		}
+	}
+
+	private static void writeHistogram(final Writer out, final String name, final String labels, final LatencyHistogram h) throws IOException {
+		for (int exp = MIN_EXPORT_EXP; exp <= MAX_EXPORT_EXP; exp++) {
+			final String le = String.format(Locale.ROOT, "%.9g", (1L << exp) / 1e9);
+			out.write(name + "_bucket{" + labels + ",le=\"" + le + "\"} " + h.getCountBelow((1L << exp) - 1) + "\n");
+		}
+		out.write(name + "_bucket{" + labels + ",le=\"+Inf\"} " + h.getCount() + "\n");
+		out.write(String.format(Locale.ROOT, "%s_sum{%s} %.9f\n", name, labels, h.getSum() / 1e9));
+		out.write(name + "_count{" + labels + "} " + h.getCount() + "\n");
+	}
+
+	private static String escape(final String value) {
+		return value.replace("\\", "\\\\").replace("\"", "\\\"");
+	}
+
+}
@@ -0,0 +1,81 @@
+package me.steppenwiesel.spongereloaded;
+
+/**
+ * The offsets of all blocks in a range, nearest first. Created by {@link RangeShape#offsets(int)}.<br>
+ * Objects of this class never change, so they are safe to share.
+ * @author Steppenwiesel
+ *
+ */
+public final class OffsetTable {
+
+	private final RangeShape shape;
+	private final int radius;
+	private final int[] xs;
+	private final int[] ys;
+	private final int[] zs;
+
+	OffsetTable(final RangeShape shape, final int radius, final int[] xs, final int[] ys, final int[] zs) {
+		this.shape = shape;
+		this.radius = radius;
+		this.xs = xs;
+		this.ys = ys;
+		this.zs = zs;
+	}
+
+	/**
+	 * @return the shape of the range.
+	 */
+	public RangeShape getShape() {
+		return shape;
+	}
+
+	/**
+	 * check whether a block is in range.
+	 * @param dx the distance from the center along x.
+	 * @param dy the distance from the center along y.
+	 * @param dz the distance from the center along z.
+	 * @return true if so, false otherwise.
+	 */
+	public boolean contains(final int dx, final int dy, final int dz) {
+		return shape.contains(dx, dy, dz, radius);
+	}
+
+	/**
+	 * @return the radius of the range.
+	 */
+	public int getRadius() {
+		return radius;
+	}
+
+	/**
+	 * @return the number of blocks in range.
+	 */
+	public int size() {
+		return xs.length;
+	}
+
+	/**
+	 * @param i
+	 * @return the x offset of the i-th nearest block.
+	 */
+	public int x(final int i) {
+		return xs[i];
+	}
+
+	/**
+	 * @param i
+	 * @return the y offset of the i-th nearest block.
+	 */
+	public int y(final int i) {
+		return ys[i];
+	}
+
+	/**
+	 * @param i
+	 * @return the z offset of the i-th nearest block.
+	 */
+	public int z(final int i) {
+		return zs[i];
+	}
+
+}
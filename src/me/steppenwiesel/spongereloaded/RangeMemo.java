@@ -0,0 +1,114 @@
+package me.steppenwiesel.spongereloaded;
+
+/**
+ * Remembers the results of range checks, keyed by packed block coordinates.<br>
+ * Every entry is stamped with the generation it was added in, so {@link #clear()} only has to start a new generation
+ * instead of wiping the table.
+ * @author Steppenwiesel
+ *
+ */
+final class RangeMemo {
+
+	/** returned by {@link #get(long)} if there is no result for a block */
+	static final int UNKNOWN = -1;
+
+	/** the memo starts over when it holds this many results */
+	private static final int MAX_SIZE = 1 << 20;
+
+	private long[] keys;
+	private boolean[] values;
+	private int[] stamps;
+	private int generation = 1;
+	private int size;
+	private int mask;
+
+	RangeMemo() {
+		keys = new long[64];
+		values = new boolean[64];
+		stamps = new int[64];
+		mask = 63;
+	}
+
+	/**
+	 * look up the result for a block.
+	 * @param key a key created by {@link BlockKey#pack(int, int, int)}.
+	 * @return 1 if a sponge is in range, 0 if not, {@link #UNKNOWN} if there is no result.
+	 */
+	int get(final long key) {
+		int i = BlockKey.mix(key) & mask;
+		while (stamps[i] == generation) {
+			if (keys[i] == key) return values[i] ? 1 : 0;
+			i = (i + 1) & mask;
+		}
+		return UNKNOWN;
+	}
+
+	/**
+	 * remember the result for a block.
+	 * @param key a key created by {@link BlockKey#pack(int, int, int)}.
+	 * @param inRange
+	 */
+	void put(final long key, final boolean inRange) {
+		if (size >= MAX_SIZE) clear();
+		int i = BlockKey.mix(key) & mask;
+		while (stamps[i] == generation) {
+			if (keys[i] == key) {
+				values[i] = inRange;
+				return;
+			}
+			i = (i + 1) & mask;
+		}
+		keys[i] = key;
+		values[i] = inRange;
+		stamps[i] = generation;
+		if (++size * 4 >= keys.length * 3) grow();
+	}
+
+	/**
+	 * forget all results.
+	 */
+	void clear() {
+		if (size == 0) return;
+		size = 0;
+		if (++generation == Integer.MAX_VALUE) {
+			java.util.Arrays.fill(stamps, 0);
+			generation = 1;
+		}
+	}
+
+	/**
+	 * @return the number of remembered results.
+	 */
+	int size() {
+		return size;
+	}
+
+	/**
+	 * @return the approximate number of bytes this memo takes on the heap.
+	 */
+	long estimateBytes() {
+		// a key, a stamp and a flag per slot
+		return 48 + 48 + 13L * keys.length;
+	}
+
+	private void grow() {
+		final long[] oldKeys = keys;
+		final boolean[] oldValues = values;
+		final int[] oldStamps = stamps;
+		final int capacity = oldKeys.length * 2;
+		keys = new long[capacity];
+		values = new boolean[capacity];
+		stamps = new int[capacity];
+		mask = capacity - 1;
+		for (int j = 0; j < oldKeys.length; j++) {
+			if (oldStamps[j] != generation) continue;
+			int i = BlockKey.mix(oldKeys[j]) & mask;
+			while (stamps[i] == generation)
+				i = (i + 1) & mask;
+			keys[i] = oldKeys[j];
+			values[i] = oldValues[j];
+			stamps[i] = generation;
+		}
+	}
+
+}
@@ -0,0 +1,99 @@
+package me.steppenwiesel.spongereloaded;
+
+import java.util.Arrays;
+
+/**
+ * The shapes of the range around sponges.
+ * @author Steppenwiesel
+ *
+ */
+public enum RangeShape {
+
+	/** all blocks within the radius on every axis */
+	CUBE {
+		@Override
+		public boolean contains(final int dx, final int dy, final int dz, final int radius) {
+			return Math.abs(dx) <= radius && Math.abs(dy) <= radius && Math.abs(dz) <= radius;
+		}
+	},
+	/** all blocks whose center is within the radius (plus half a block) */
+	SPHERE {
+		@Override
+		public boolean contains(final int dx, final int dy, final int dz, final int radius) {
+			return 4L * (dx * dx + dy * dy + dz * dz) <= (2L * radius + 1) * (2L * radius + 1);
+		}
+	},
+	/** all blocks at most radius steps away along the axes */
+	DIAMOND {
+		@Override
+		public boolean contains(final int dx, final int dy, final int dz, final int radius) {
+			return Math.abs(dx) + Math.abs(dy) + Math.abs(dz) <= radius;
+		}
+	},
+	/** a round disc of the radius, reaching the radius up and down */
+	CYLINDER {
+		@Override
+		public boolean contains(final int dx, final int dy, final int dz, final int radius) {
+			return Math.abs(dy) <= radius && 4L * (dx * dx + dz * dz) <= (2L * radius + 1) * (2L * radius + 1);
+		}
+	};
+
+	/** offsets are packed into this many bits each while sorting */
+	private static final int BITS = 10;
+	private static final int BIAS = 1 << (BITS - 1);
+
+	/**
+	 * check whether a block is in range.
+	 * @param dx the distance from the center along x.
+	 * @param dy the distance from the center along y.
+	 * @param dz the distance from the center along z.
+	 * @param radius
+	 * @return true if so, false otherwise.
+	 */
+	public abstract boolean contains(int dx, int dy, int dz, int radius);
+
+	/**
+	 * list the offsets of all blocks in range, nearest first.
+	 * @param radius at most 511.
+	 * @return the offsets.
+	 */
+	public OffsetTable offsets(final int radius) {
+		final int r = Math.min(radius, BIAS - 1);
+		int count = 0;
+		for (int dx = -r; dx <= r; dx++)
+			for (int dy = -r; dy <= r; dy++)
+				for (int dz = -r; dz <= r; dz++)
+					if (contains(dx, dy, dz, r)) count++;
+		// the squared distance above the packed offsets, so sorting orders by distance
+		final long[] sorted = new long[count];
+		int i = 0;
+		for (int dx = -r; dx <= r; dx++)
+			for (int dy = -r; dy <= r; dy++)
+				for (int dz = -r; dz <= r; dz++)
+					if (contains(dx, dy, dz, r))
+						sorted[i++] = ((long) (dx * dx + dy * dy + dz * dz) << (3 * BITS))
+								| ((long) (dy + BIAS) << (2 * BITS)) | ((long) (dx + BIAS) << BITS) | (dz + BIAS);
+		Arrays.sort(sorted);
+		final int[] xs = new int[count], ys = new int[count], zs = new int[count];
+		final int mask = (1 << BITS) - 1;
+		for (i = 0; i < count; i++) {
+			ys[i] = (int) (sorted[i] >> (2 * BITS) & mask) - BIAS;
+			xs[i] = (int) (sorted[i] >> BITS & mask) - BIAS;
+			zs[i] = (int) (sorted[i] & mask) - BIAS;
+		}
+		return new OffsetTable(this, r, xs, ys, zs);
+	}
+
+	/**
+	 * read a shape from the configuration.
+	 * @param name
+	 * @return the shape, {@link #CUBE} if the name is unknown.
+	 */
+	public static RangeShape parse(final String name) {
+		if (name != null)
+			for (final RangeShape shape : values())
+				if (shape.name().equalsIgnoreCase(name.trim())) return shape;
+		return CUBE;
+	}
+
+}
@@ -0,0 +1,198 @@
+package me.steppenwiesel.spongereloaded;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.bukkit.configuration.ConfigurationSection;
+
+/**
+ * The cuboid regions of one world that override its settings, bucketed by chunk.<br>
+ * Regions covering more than {@link #MAX_CHUNKS} chunks are not bucketed, they are checked everywhere instead.<br>
+ * Regions are declared under {@code regions.<name>} with {@code world}, {@code min} and {@code max} ("x,y,z"),
+ * an optional {@code priority} and any of the per-world settings.
+ * Where regions overlap, the one with the highest priority wins.<br>
+ * Objects of this class never change, so they are safe to share.
+ * @author Steppenwiesel
+ *
+ */
+public final class RegionIndex {
+
+	private static final Region[] NONE = new Region[0];
+	/** the number of chunks a region may cover to be bucketed, 32 by 32 */
+	static final int MAX_CHUNKS = 1024;
+
+	/** the regions touching each chunk, highest priority first */
+	private final LongObjectHashMap<Region[]> chunks;
+	/** the regions too large to bucket, highest priority first */
+	private final Region[] large;
+	private final List<WorldPolicy> policies;
+	private final boolean anyEnabled;
+
+	private RegionIndex(final LongObjectHashMap<Region[]> chunks, final Region[] large, final List<WorldPolicy> policies) {
+		this.chunks = chunks;
+		this.large = large;
+		this.policies = policies;
+		boolean anyEnabled = false;
+		for (final WorldPolicy policy : policies)
+			anyEnabled |= policy.isEnabled();
+		this.anyEnabled = anyEnabled;
+	}
+
+	/**
+	 * read the regions of a world. Regions with missing or malformed corners are ignored.
+	 * @param settings the configuration version the regions belong to.
+	 * @param conf the plugin configuration.
+	 * @param worldName the name of the world.
+	 * @return the regions.
+	 */
+	static RegionIndex compile(final Settings settings, final ConfigurationSection conf, final String worldName) {
+		final List<Region> regions = new ArrayList<>();
+		final ConfigurationSection section = conf.getConfigurationSection("regions");
+		if (section != null) {
+			for (final String name : section.getKeys(false)) {
+				final ConfigurationSection region = section.getConfigurationSection(name);
+				if (region == null || !worldName.equals(region.getString("world"))) continue;
+				final int[] min = parseCorner(region.getString("min"));
+				final int[] max = parseCorner(region.getString("max"));
+				if (min == null || max == null) continue;
+				regions.add(new Region(min, max, region.getInt("priority", 0), regions.size(),
+						WorldPolicy.compile(settings, conf, worldName, region)));
+			}
+		}
+		final LongObjectHashMap<Region[]> chunks = new LongObjectHashMap<>();
+		final List<WorldPolicy> policies = new ArrayList<>();
+		if (regions.isEmpty()) return new RegionIndex(chunks, NONE, policies);
+
+		Collections.sort(regions, new Comparator<Region>() {
+			@Override
+			public int compare(final Region a, final Region b) {
+				if (a.priority != b.priority) return a.priority > b.priority ? -1 : 1;
+				return Integer.compare(a.order, b.order);
+			}
+		});
+		final LongObjectHashMap<List<Region>> buckets = new LongObjectHashMap<>();
+		final List<Region> large = new ArrayList<>();
+		for (int rank = 0; rank < regions.size(); rank++) {
+			final Region region = regions.get(rank);
+			region.rank = rank;
+			policies.add(region.policy);
+			final long width = (region.maxX >> 4) - (region.minX >> 4) + 1L, depth = (region.maxZ >> 4) - (region.minZ >> 4) + 1L;
+			if (width * depth > MAX_CHUNKS) {
+				large.add(region);
+				continue;
+			}
+			for (int cx = region.minX >> 4; cx <= region.maxX >> 4; cx++)
+				for (int cz = region.minZ >> 4; cz <= region.maxZ >> 4; cz++) {
+					final long chunkKey = BlockKey.chunk(cx, cz);
+					List<Region> bucket = buckets.get(chunkKey);
+					if (bucket == null) {
+						bucket = new ArrayList<>(2);
+						buckets.put(chunkKey, bucket);
+					}
+					// the regions are added in priority order
+					bucket.add(region);
+				}
+		}
+		for (int i = buckets.nextSlot(0); i >= 0; i = buckets.nextSlot(i + 1))
+			chunks.put(buckets.keyAt(i), buckets.valueAt(i).toArray(NONE));
+		return new RegionIndex(chunks, large.toArray(NONE), Collections.unmodifiableList(policies));
+	}
+
+	/**
+	 * @param corner "x,y,z"
+	 * @return the coordinates, or null if malformed.
+	 */
+	private static int[] parseCorner(final String corner) {
+		if (corner == null) return null;
+		final String[] parts = corner.split(",");
+		if (parts.length != 3) return null;
+		try {
+			return new int[] { Integer.parseInt(parts[0].trim()), Integer.parseInt(parts[1].trim()), Integer.parseInt(parts[2].trim()) };
+		} catch (final NumberFormatException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * @return true if this world has no regions.
+	 */
+	public boolean isEmpty() {
+		return policies.isEmpty();
+	}
+
+	/**
+	 * @return true if sponges are enabled in at least one region.
+	 */
+	public boolean isAnyEnabled() {
+		return anyEnabled;
+	}
+
+	/**
+	 * @return the settings of all regions, highest priority first.
+	 */
+	public List<WorldPolicy> getPolicies() {
+		return policies;
+	}
+
+	/**
+	 * get the settings at a location.
+	 * @param x
+	 * @param y
+	 * @param z
+	 * @param fallback the settings outside of all regions.
+	 * @return the settings of the region with the highest priority at this location, or the fallback.
+	 */
+	public WorldPolicy policyAt(final int x, final int y, final int z, final WorldPolicy fallback) {
+		Region found = null;
+		final Region[] bucket = chunks.get(BlockKey.chunk(x >> 4, z >> 4));
+		if (bucket != null)
+			for (final Region region : bucket)
+				if (region.contains(x, y, z)) {
+					found = region;
+					break;
+				}
+		for (final Region region : large) {
+			// the rest has a lower priority than the one found already
+			if (found != null && region.rank > found.rank) break;
+			if (region.contains(x, y, z)) {
+				found = region;
+				break;
+			}
+		}
+		return found == null ? fallback : found.policy;
+	}
+
+	/**
+	 * A cuboid with its own settings.
+	 */
+	private static final class Region {
+
+		final int minX, minY, minZ, maxX, maxY, maxZ;
+		final int priority;
+		/** the position in the configuration, breaks ties between equal priorities */
+		final int order;
+		final WorldPolicy policy;
+		/** the position in priority order, 0 for the highest */
+		int rank;
+
+		Region(final int[] a, final int[] b, final int priority, final int order, final WorldPolicy policy) {
+			minX = Math.min(a[0], b[0]);
+			minY = Math.min(a[1], b[1]);
+			minZ = Math.min(a[2], b[2]);
+			maxX = Math.max(a[0], b[0]);
+			maxY = Math.max(a[1], b[1]);
+			maxZ = Math.max(a[2], b[2]);
+			this.priority = priority;
+			this.order = order;
+			this.policy = policy;
+		}
+
+		boolean contains(final int x, final int y, final int z) {
+			return x >= minX && x <= maxX && y >= minY && y <= maxY && z >= minZ && z <= maxZ;
+		}
+
+	}
+
+}
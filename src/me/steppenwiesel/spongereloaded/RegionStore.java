@@ -0,0 +1,162 @@
+package me.steppenwiesel.spongereloaded;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps the sponges of a world on disk, one {@link SpongeRegionFile} per region.<br>
+ * Region files are opened lazily when one of their chunks is needed and closed when none of their chunks is indexed anymore.
+ * @author Steppenwiesel
+ *
+ */
+public final class RegionStore {
+
+	/** how much newer the world's region file may be than ours before ours is considered outdated */
+	private static final long STALE_TOLERANCE = 5 * 60 * 1000;
+
+	private final File folder;
+	private final File worldFolder;
+	private final Logger logger;
+	private final LongObjectHashMap<SpongeRegionFile> regions = new LongObjectHashMap<>();
+	/** regions whose file could not be used, by packed region key */
+	private final LongHashSet failed = new LongHashSet();
+
+	/**
+	 * @param folder where to keep the files of this world.
+	 * @param worldFolder the folder of the world itself.
+	 * @param logger where to report errors.
+	 */
+	public RegionStore(final File folder, final File worldFolder, final Logger logger) {
+		this.folder = folder;
+		this.worldFolder = worldFolder;
+		this.logger = logger;
+	}
+
+	/**
+	 * take the stored sponges of a chunk.
+	 * @param cx chunk x
+	 * @param cz chunk z
+	 * @return the packed keys of the sponges, or null if the chunk needs to be scanned or is claimed already.
+	 */
+	public LongHashSet claim(final int cx, final int cz) {
+		final SpongeRegionFile region = region(cx >> 5, cz >> 5);
+		return region == null ? null : region.claim(BlockKey.chunk(cx, cz));
+	}
+
+	/**
+	 * store the result of a chunk scan.
+	 * @param cx chunk x
+	 * @param cz chunk z
+	 * @param set the packed keys of the sponges.
+	 */
+	public void writeChunk(final int cx, final int cz, final LongHashSet set) {
+		final SpongeRegionFile region = region(cx >> 5, cz >> 5);
+		if (region == null) return;
+		try {
+			region.writeChunk(BlockKey.chunk(cx, cz), set);
+		} catch (final IOException e) {
+			fail(cx >> 5, cz >> 5, e);
+		}
+	}
+
+	/**
+	 * give the sponges of an unloaded chunk back.
+	 * @param cx chunk x
+	 * @param cz chunk z
+	 * @param set the packed keys of the sponges.
+	 */
+	public void release(final int cx, final int cz, final LongHashSet set) {
+		final long regionKey = BlockKey.chunk(cx >> 5, cz >> 5);
+		final SpongeRegionFile region = regions.get(regionKey);
+		if (region != null && region.release(BlockKey.chunk(cx, cz), set)) {
+			regions.remove(regionKey);
+			close(region);
+		}
+	}
+
+	/**
+	 * record a sponge that appeared in an indexed chunk.
+	 * @param key the packed block key.
+	 */
+	public void add(final long key) {
+		final int rx = BlockKey.x(key) >> 9, rz = BlockKey.z(key) >> 9;
+		final SpongeRegionFile region = regions.get(BlockKey.chunk(rx, rz));
+		if (region == null) return;
+		try {
+			region.add(key);
+		} catch (final IOException e) {
+			fail(rx, rz, e);
+		}
+	}
+
+	/**
+	 * record a sponge that disappeared from an indexed chunk.
+	 * @param key the packed block key.
+	 */
+	public void remove(final long key) {
+		final int rx = BlockKey.x(key) >> 9, rz = BlockKey.z(key) >> 9;
+		final SpongeRegionFile region = regions.get(BlockKey.chunk(rx, rz));
+		if (region == null) return;
+		try {
+			region.remove(key);
+		} catch (final IOException e) {
+			fail(rx, rz, e);
+		}
+	}
+
+	/**
+	 * close all region files.
+	 */
+	public void close() {
+		for (int i = regions.nextSlot(0); i >= 0; i = regions.nextSlot(i + 1))
+			close(regions.valueAt(i));
+		regions.clear();
+	}
+
+	private SpongeRegionFile region(final int rx, final int rz) {
+		final long regionKey = BlockKey.chunk(rx, rz);
+		SpongeRegionFile region = regions.get(regionKey);
+		if (region != null || failed.contains(regionKey)) return region;
+		final File file = new File(folder, "r." + rx + "." + rz + ".spi");
+		try {
+			if (!folder.isDirectory() && !folder.mkdirs()) throw new IOException("Could not create folder " + folder.getPath());
+			final boolean trusted = file.exists() && file.lastModified() + STALE_TOLERANCE >= worldRegionModified(rx, rz);
+			region = new SpongeRegionFile(file, rx, rz, trusted);
+			regions.put(regionKey, region);
+		} catch (final IOException e) {
+			failed.add(regionKey);
+			logger.log(Level.WARNING, "Could not open sponge index " + file.getPath(), e);
+		}
+		return region;
+	}
+
+	/**
+	 * @return when the world's own region file was last written, 0 if unknown.
+	 */
+	private long worldRegionModified(final int rx, final int rz) {
+		final String name = "r." + rx + "." + rz + ".mca";
+		long modified = 0;
+		for (final String dir : new String[] { "region", "DIM-1/region", "DIM1/region" })
+			modified = Math.max(modified, new File(new File(worldFolder, dir), name).lastModified());
+		return modified;
+	}
+
+	private void fail(final int rx, final int rz, final IOException e) {
+		final long regionKey = BlockKey.chunk(rx, rz);
+		final SpongeRegionFile region = regions.remove(regionKey);
+		failed.add(regionKey);
+		logger.log(Level.WARNING, "Could not write sponge index for region " + rx + "," + rz, e);
+		if (region != null) region.abandon();
+	}
+
+	private void close(final SpongeRegionFile region) {
+		try {
+			region.close();
+		} catch (final IOException e) {
+			logger.log(Level.WARNING, "Could not close sponge index", e);
+		}
+	}
+
+}
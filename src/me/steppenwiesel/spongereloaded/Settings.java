@@ -0,0 +1,213 @@
+package me.steppenwiesel.spongereloaded;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.bukkit.configuration.ConfigurationSection;
+
+/**
+ * One version of the plugin configuration.<br>
+ * A new object is created on every reload and published at once, so event handlers always see a complete configuration.
+ * The configuration section must not be changed after it is handed to this class.
+ * @author Steppenwiesel
+ *
+ */
+public final class Settings {
+
+	private final ConfigurationSection conf;
+	/** the compiled world settings, mapped by the world's names */
+	private final ConcurrentMap<String, WorldPolicy> policies = new ConcurrentHashMap<>();
+	/** the regions overriding the world settings, mapped by the world's names */
+	private final ConcurrentMap<String, RegionIndex> regions = new ConcurrentHashMap<>();
+	private final boolean craftable;
+	private final boolean persistIndex;
+	private final int writeBlocksPerTick;
+	private final long writeNanosPerTick;
+	private final boolean metricsEnabled;
+	private final int parallelRadius;
+	private final boolean rangeMemo;
+	private final int sweepBlocksPerTick;
+	private final int flowFrontierTicks;
+	private final boolean settleEdges;
+	private final int sweepPlayerChunks;
+	private final boolean governorEnabled;
+	private final int governorSlowMillis;
+	private final int governorDeferMillis;
+	private final int governorRecoverMillis;
+	private final int governorReducedRadius;
+
+	/**
+	 * @param conf the configuration to read. Must not be changed afterwards.
+	 */
+	public Settings(final ConfigurationSection conf) {
+		this.conf = conf;
+		this.craftable = conf.getBoolean("craftable");
+		this.persistIndex = conf.getBoolean("persist_index", true);
+		this.writeBlocksPerTick = Math.max(1, conf.getInt("write_blocks_per_tick", 2000));
+		this.writeNanosPerTick = Math.max(1, conf.getLong("write_millis_per_tick", 5)) * 1000000L;
+		this.metricsEnabled = conf.getBoolean("metrics_enabled", true);
+		this.parallelRadius = conf.getInt("parallel_radius", 8);
+		this.rangeMemo = conf.getBoolean("range_memo", true);
+		this.sweepBlocksPerTick = Math.max(0, conf.getInt("sweep_blocks_per_tick", 256));
+		this.flowFrontierTicks = Math.max(0, conf.getInt("flow_frontier_ticks", 1200));
+		this.settleEdges = conf.getBoolean("settle_edges", false);
+		this.sweepPlayerChunks = Math.max(0, conf.getInt("sweep_player_chunks", 8));
+		this.governorEnabled = conf.getBoolean("governor_enabled", true);
+		this.governorSlowMillis = conf.getInt("governor_slow_tick_millis", 40);
+		this.governorDeferMillis = Math.max(governorSlowMillis, conf.getInt("governor_defer_tick_millis", 50));
+		this.governorRecoverMillis = Math.min(governorSlowMillis, conf.getInt("governor_recover_tick_millis", 35));
+		this.governorReducedRadius = conf.getInt("governor_reduced_radius", 0);
+	}
+
+	/**
+	 * get the compiled settings of a world, compiling them if this has not happened yet.
+	 * @param worldName the name of the world.
+	 * @return the settings.
+	 */
+	public WorldPolicy policy(final String worldName) {
+		WorldPolicy policy = policies.get(worldName);
+		if (policy == null) {
+			policy = WorldPolicy.compile(this, conf, worldName);
+			final WorldPolicy other = policies.putIfAbsent(worldName, policy);
+			if (other != null) policy = other;
+		}
+		return policy;
+	}
+
+	/**
+	 * get the regions of a world, reading them if this has not happened yet.
+	 * @param worldName the name of the world.
+	 * @return the regions.
+	 */
+	public RegionIndex regions(final String worldName) {
+		RegionIndex index = regions.get(worldName);
+		if (index == null) {
+			index = RegionIndex.compile(this, conf, worldName);
+			final RegionIndex other = regions.putIfAbsent(worldName, index);
+			if (other != null) index = other;
+		}
+		return index;
+	}
+
+	/**
+	 * drop the compiled settings and regions of an unloaded world. They are compiled again if it is loaded again.
+	 * @param worldName the name of the world.
+	 */
+	public void forget(final String worldName) {
+		policies.remove(worldName);
+		regions.remove(worldName);
+	}
+
+	/**
+	 * @return true if sponges can be crafted.
+	 */
+	public boolean isCraftable() {
+		return craftable;
+	}
+
+	/**
+	 * @return true if the sponge index is kept on disk.
+	 */
+	public boolean isPersistIndex() {
+		return persistIndex;
+	}
+
+	/**
+	 * @return the maximum number of queued block changes per tick.
+	 */
+	public int getWriteBlocksPerTick() {
+		return writeBlocksPerTick;
+	}
+
+	/**
+	 * @return the maximum time spent on queued block changes per tick.
+	 */
+	public long getWriteNanosPerTick() {
+		return writeNanosPerTick;
+	}
+
+	/**
+	 * @return true if event handlers and scans should be measured.
+	 */
+	public boolean isMetricsEnabled() {
+		return metricsEnabled;
+	}
+
+	/**
+	 * @return the radius from which on the blocks around sponges are searched in the background, 0 to never do so.
+	 */
+	public int getParallelRadius() {
+		return parallelRadius;
+	}
+
+	/**
+	 * @return true if range checks should be remembered until the end of the tick.
+	 */
+	public boolean isRangeMemo() {
+		return rangeMemo;
+	}
+
+	/**
+	 * @return how many ticks cancelled flows are remembered, 0 to turn the {@link FlowFrontier} off.
+	 */
+	public int getFlowFrontierTicks() {
+		return flowFrontierTicks;
+	}
+
+	/**
+	 * @return true if flowing water and lava at the edge of a sponge range should be turned into resting water and lava.
+	 */
+	public boolean isSettleEdges() {
+		return settleEdges;
+	}
+
+	/**
+	 * @return the maximum number of blocks the sweeper looks at per tick, 0 to turn it off.
+	 */
+	public int getSweepBlocksPerTick() {
+		return sweepBlocksPerTick;
+	}
+
+	/**
+	 * @return how many chunks away from players the sweeper still checks sponges.
+	 */
+	public int getSweepPlayerChunks() {
+		return sweepPlayerChunks;
+	}
+
+	/**
+	 * @return true if sponge work should be held back while the server is slow.
+	 */
+	public boolean isGovernorEnabled() {
+		return governorEnabled;
+	}
+
+	/**
+	 * @return the tick time in milliseconds above which sponge work is held back.
+	 */
+	public int getGovernorSlowMillis() {
+		return governorSlowMillis;
+	}
+
+	/**
+	 * @return the tick time in milliseconds above which all new sponge work is deferred.
+	 */
+	public int getGovernorDeferMillis() {
+		return governorDeferMillis;
+	}
+
+	/**
+	 * @return the tick time in milliseconds below which held back sponge work is resumed.
+	 */
+	public int getGovernorRecoverMillis() {
+		return governorRecoverMillis;
+	}
+
+	/**
+	 * @return the radius absorbed right away while the server is slow, 0 for half the radius.
+	 */
+	public int getGovernorReducedRadius() {
+		return governorReducedRadius;
+	}
+
+}
@@ -0,0 +1,72 @@
+package me.steppenwiesel.spongereloaded;
+
+import java.io.File;
+import java.util.logging.Logger;
+
+import org.bukkit.World;
+import org.bukkit.block.Block;
+
+/**
+ * What the world configurations and event listeners need from the plugin.<br>
+ * Implemented by {@link SpongeReloadedPlugin}, and by stand-ins that run the sponge logic without a server.
+ * @author Steppenwiesel
+ *
+ */
+interface SpongeContext {
+
+	/**
+	 * @return the settings of the current configuration.
+	 */
+	Settings getSettings();
+
+	/**
+	 * @return the measurements of the plugin.
+	 */
+	Metrics getMetrics();
+
+	/**
+	 * @return the folder the sponge index is kept in.
+	 */
+	File getDataFolder();
+
+	Logger getLogger();
+
+	/**
+	 * @return the scanner that searches freshly loaded chunks for sponges, null to index chunks when they are needed.
+	 */
+	ChunkScanner getChunkScanner();
+
+	/**
+	 * @return the planner for sponges with a large radius, null to do all ranges right away.
+	 */
+	AbsorbPlanner getAbsorbPlanner();
+
+	/**
+	 * @return the governor that holds back work while the server is slow, null if it is turned off.
+	 */
+	TickGovernor getGovernor();
+
+	/**
+	 * do sponge work held back by the {@link TickGovernor}.
+	 * @param max the maximum number of sponges to handle.
+	 */
+	void replayDeferred(int max);
+
+	/**
+	 * get the configuration of a world, creating it on first use.
+	 * @param world
+	 * @return the configuration.
+	 */
+	WorldConfig getWorldConfig(World world);
+
+	/**
+	 * record the call of an event handler.
+	 * @param type the handler.
+	 * @param start the {@link System#nanoTime()} when the handler was called.
+	 * @param jfr the event returned by {@link Tracing#beginHandler()} when the handler was called.
+	 * @param block the block of the event, may be null.
+	 * @param cancelled true if the event is cancelled afterwards.
+	 */
+	void handled(HandlerType type, long start, Object jfr, Block block, boolean cancelled);
+
+}
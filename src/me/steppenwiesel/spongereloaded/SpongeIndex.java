@@ -0,0 +1,476 @@
+package me.steppenwiesel.spongereloaded;
+
+import org.bukkit.Chunk;
+import org.bukkit.ChunkSnapshot;
+import org.bukkit.World;
+import org.bukkit.block.Block;
+
+/**
+ * Remembers where the sponges of a world are, grouped by chunk.<br>
+ * Range checks only have to look at the sponges of the few chunks around a block instead of scanning every block in range.<br>
+ * The index is not thread-safe itself, the {@link WorldConfig} of its world guards it. Methods that look at the world are
+ * called without that lock, all others with it.
+ * @author Steppenwiesel
+ *
+ */
+public final class SpongeIndex {
+
+	private final World world;
+	private final ChunkScanner scanner;
+	/** null if the index is not kept on disk */
+	private final RegionStore store;
+	/** counts the candidates and blocks looked at by range checks */
+	private final StripedCounter scanned;
+	/** guards the index against concurrent changes, held by the callers of all other methods */
+	private final Object lock;
+	/** packed block keys of all sponges, mapped by the packed chunk key. Only indexed chunks have an entry. */
+	private final LongObjectHashMap<LongHashSet> chunks = new LongObjectHashMap<>();
+	/** chunks that are being scanned by the {@link ChunkScanner}, mapped by the packed chunk key. */
+	private final LongObjectHashMap<Pending> pending = new LongObjectHashMap<>();
+	private int sponges;
+
+	/**
+	 * sponge changes that happen while a chunk is being scanned. They are applied to the result when it arrives.
+	 */
+	private static final class Pending {
+		final LongHashSet added = new LongHashSet();
+		final LongHashSet removed = new LongHashSet();
+	}
+
+	/**
+	 * The state of one range check, reused by the thread that does it.<br>
+	 * The check collects the known sponges in range under the lock, looks at their blocks without it,
+	 * and takes the lock again to forget the stale ones.
+	 */
+	static final class Lookup {
+		/** no sponge was found, no block has this key */
+		static final long NONE = -1L;
+		/** chunks in range that are neither indexed nor being scanned */
+		final LongQueue missing = new LongQueue();
+		/** the known sponges in range, the ones in the chunk of the block first */
+		final LongQueue candidates = new LongQueue();
+		/** candidates that are not sponges anymore */
+		final LongQueue stale = new LongQueue();
+		/** chunks in range that are being scanned, their blocks are looked at directly */
+		final LongHashSet unscanned = new LongHashSet();
+		/** the candidates and blocks looked at */
+		long visited;
+		/** the packed key of the sponge the check found, or {@link #NONE} */
+		long found = NONE;
+		/** the regions of the world if sponges may have different ranges, null to use the range of the check for all */
+		RegionIndex regions;
+		/** the settings outside of the regions */
+		WorldPolicy policy;
+	}
+
+	/**
+	 * @param world
+	 * @param scanner scans loaded chunks in the background, may be null to index chunks when they are needed.
+	 * @param store keeps the index on disk, may be null.
+	 * @param scanned counts the candidates and blocks looked at by range checks.
+	 * @param lock the lock of the world, taken when the result of a scan arrives.
+	 */
+	public SpongeIndex(final World world, final ChunkScanner scanner, final RegionStore store, final StripedCounter scanned, final Object lock) {
+		this.world = world;
+		this.scanner = scanner;
+		this.store = store;
+		this.scanned = scanned;
+		this.lock = lock;
+	}
+
+	/**
+	 * remember a sponge at the position of this block.
+	 * @param block
+	 * @return true if the sponge was not known before.
+	 */
+	public boolean add(final Block block) {
+		return add(block.getX(), block.getY(), block.getZ());
+	}
+
+	/**
+	 * remember a sponge at these coordinates.
+	 * @param x
+	 * @param y
+	 * @param z
+	 * @return true if the sponge was not known before.
+	 */
+	public boolean add(final int x, final int y, final int z) {
+		final long key = BlockKey.pack(x, y, z);
+		final long chunkKey = BlockKey.chunk(x >> 4, z >> 4);
+		final Pending p = pending.get(chunkKey);
+		if (p != null) {
+			// the scan may know it already, but that is not known yet
+			p.removed.remove(key);
+			return p.added.add(key);
+		}
+		// a chunk that is not indexed yet finds the sponge when it is scanned
+		if (!chunks.containsKey(chunkKey) && !claim(chunkKey)) return true;
+		if (!chunks.get(chunkKey).add(key)) return false;
+		sponges++;
+		if (store != null) store.add(key);
+		return true;
+	}
+
+	/**
+	 * forget the sponge at the position of this block.
+	 * @param block
+	 */
+	public void remove(final Block block) {
+		remove(block.getX(), block.getY(), block.getZ());
+	}
+
+	/**
+	 * forget the sponge at these coordinates.
+	 * @param x
+	 * @param y
+	 * @param z
+	 */
+	public void remove(final int x, final int y, final int z) {
+		final long key = BlockKey.pack(x, y, z);
+		final long chunkKey = BlockKey.chunk(x >> 4, z >> 4);
+		final Pending p = pending.get(chunkKey);
+		if (p != null) {
+			p.added.remove(key);
+			p.removed.add(key);
+			return;
+		}
+		final LongHashSet set = chunks.get(chunkKey);
+		if (set != null && set.remove(key)) {
+			sponges--;
+			if (store != null) store.remove(key);
+		}
+	}
+
+	/**
+	 * find the chunks in range that are neither indexed nor being scanned.
+	 * @param x
+	 * @param z
+	 * @param radius the radius of the range.
+	 * @param lookup the check to put the chunks into.
+	 */
+	void findMissing(final int x, final int z, final int radius, final Lookup lookup) {
+		lookup.missing.clear();
+		for (int cx = (x - radius) >> 4; cx <= (x + radius) >> 4; cx++)
+			for (int cz = (z - radius) >> 4; cz <= (z + radius) >> 4; cz++) {
+				final long chunkKey = BlockKey.chunk(cx, cz);
+				if (!chunks.containsKey(chunkKey) && !pending.containsKey(chunkKey)) lookup.missing.push(chunkKey);
+			}
+	}
+
+	/**
+	 * index a chunk from disk, or reserve it for a scan.
+	 * @param chunkKey the packed key of the chunk.
+	 * @return the ticket to {@link #publish(long, Object, LongHashSet)} the result of the scan with,
+	 * null if the chunk is indexed or being scanned already.
+	 */
+	Object reserve(final long chunkKey) {
+		if (chunks.containsKey(chunkKey) || pending.containsKey(chunkKey) || claim(chunkKey)) return null;
+		final Pending p = new Pending();
+		pending.put(chunkKey, p);
+		return p;
+	}
+
+	/**
+	 * load a chunk and find its sponges. Called without the lock.
+	 * @param chunkKey the packed key of the chunk.
+	 * @return the packed keys of the sponges.
+	 */
+	LongHashSet scanNow(final long chunkKey) {
+		final Chunk chunk = world.getChunkAt(BlockKey.chunkX(chunkKey), BlockKey.chunkZ(chunkKey));
+		return scan(chunk.getChunkSnapshot(), world.getMaxHeight());
+	}
+
+	/**
+	 * collect the known sponges in range of the coordinates, the ones in the chunk of the coordinates first.<br>
+	 * Chunks that are not indexed are remembered, their blocks are looked at by {@link #check(int, int, int, OffsetTable, Lookup)}.
+	 * @param x
+	 * @param y
+	 * @param z
+	 * @param range the blocks in range.
+	 * @param lookup the check to put the sponges into.
+	 */
+	void collect(final int x, final int y, final int z, final OffsetTable range, final Lookup lookup) {
+		final int radius = range.getRadius();
+		lookup.candidates.clear();
+		lookup.stale.clear();
+		lookup.unscanned.clear();
+		lookup.visited = 0;
+		collectChunk(x >> 4, z >> 4, x, y, z, range, lookup);
+		for (int cx = (x - radius) >> 4; cx <= (x + radius) >> 4; cx++)
+			for (int cz = (z - radius) >> 4; cz <= (z + radius) >> 4; cz++)
+				if (cx != x >> 4 || cz != z >> 4) collectChunk(cx, cz, x, y, z, range, lookup);
+	}
+
+	private void collectChunk(final int cx, final int cz, final int x, final int y, final int z, final OffsetTable range, final Lookup lookup) {
+		final long chunkKey = BlockKey.chunk(cx, cz);
+		final LongHashSet set = chunks.get(chunkKey);
+		// being scanned, or unloaded since it was indexed
+		if (set == null) {
+			lookup.unscanned.add(chunkKey);
+			return;
+		}
+		scanned.add(set.size());
+		lookup.visited += set.size();
+		for (int i = set.nextSlot(0); i >= 0; i = set.nextSlot(i + 1)) {
+			final long key = set.keyAt(i);
+			if (reaches(BlockKey.x(key), BlockKey.y(key), BlockKey.z(key), x, y, z, range, lookup)) lookup.candidates.push(key);
+		}
+	}
+
+	/**
+	 * check whether one of the collected sponges is still there, or a sponge is in the chunks that are not indexed.
+	 * Called without the lock. Candidates that vanished unnoticed are put into {@link Lookup#stale}.
+	 * @param x
+	 * @param y
+	 * @param z
+	 * @param range the blocks in range.
+	 * @param lookup the collected sponges.
+	 * @return true if there is a sponge in range.
+	 */
+	boolean check(final int x, final int y, final int z, final OffsetTable range, final Lookup lookup) {
+		while (!lookup.candidates.isEmpty()) {
+			final long key = lookup.candidates.poll();
+			final int id = world.getBlockTypeIdAt(BlockKey.x(key), BlockKey.y(key), BlockKey.z(key));
+			// a sponge a piston is moving is a moving piece until it arrives
+			if (id == WorldConfig.ID_SPONGE || id == WorldConfig.ID_PISTON_MOVING_PIECE) {
+				lookup.found = key;
+				return true;
+			}
+			lookup.stale.push(key);
+		}
+		return !lookup.unscanned.isEmpty() && scanUnindexed(x, y, z, range, lookup);
+	}
+
+	/**
+	 * forget the sponges a check found to be gone.
+	 * @param lookup the check.
+	 */
+	void forgetStale(final Lookup lookup) {
+		while (!lookup.stale.isEmpty()) {
+			final long key = lookup.stale.poll();
+			final long chunkKey = BlockKey.chunkOf(key);
+			if (pending.containsKey(chunkKey)) continue;
+			final LongHashSet set = chunks.get(chunkKey);
+			if (set != null && set.remove(key)) {
+				sponges--;
+				if (store != null) store.remove(key);
+			}
+		}
+	}
+
+	/**
+	 * index a chunk from disk.
+	 * @param chunkKey the packed key of the chunk.
+	 * @return true if the chunk was on disk.
+	 */
+	private boolean claim(final long chunkKey) {
+		if (store == null) return false;
+		final LongHashSet set = store.claim(BlockKey.chunkX(chunkKey), BlockKey.chunkZ(chunkKey));
+		if (set == null) return false;
+		chunks.put(chunkKey, set);
+		sponges += set.size();
+		return true;
+	}
+
+	/**
+	 * check whether a sponge reaches a block. With regions, the range is the one at the sponge.
+	 * @param sx sponge x
+	 * @param sy sponge y
+	 * @param sz sponge z
+	 * @param x
+	 * @param y
+	 * @param z
+	 * @param range the blocks in range, used for all sponges if there are no regions.
+	 * @param lookup the check.
+	 * @return true if the block is in range of the sponge.
+	 */
+	private static boolean reaches(final int sx, final int sy, final int sz, final int x, final int y, final int z, final OffsetTable range, final Lookup lookup) {
+		if (lookup.regions == null) return range.contains(sx - x, sy - y, sz - z);
+		return lookup.regions.policyAt(sx, sy, sz, lookup.policy).getAbsorbOffsets().contains(sx - x, sy - y, sz - z);
+	}
+
+	/**
+	 * check the blocks in range that belong to chunks which are not indexed, nearest first.
+	 */
+	private boolean scanUnindexed(final int x, final int y, final int z, final OffsetTable range, final Lookup lookup) {
+		final int maxHeight = world.getMaxHeight();
+		long lastChunk = 0;
+		boolean known = false, unscanned = false;
+		long blocks = 0;
+		boolean found = false;
+		for (int i = 0; i < range.size() && !found; i++) {
+			final int by = y + range.y(i);
+			if (!BlockKey.isValidY(by, maxHeight)) continue;
+			final int bx = x + range.x(i), bz = z + range.z(i);
+			final long chunkKey = BlockKey.chunk(bx >> 4, bz >> 4);
+			if (!known || chunkKey != lastChunk) {
+				lastChunk = chunkKey;
+				known = true;
+				unscanned = lookup.unscanned.contains(chunkKey);
+			}
+			if (!unscanned) continue;
+			blocks++;
+			found = world.getBlockTypeIdAt(bx, by, bz) == WorldConfig.ID_SPONGE && (lookup.regions == null || reaches(bx, by, bz, x, y, z, range, lookup));
+			if (found) lookup.found = BlockKey.pack(bx, by, bz);
+		}
+		scanned.add(blocks);
+		lookup.visited += blocks;
+		return found;
+	}
+
+	/**
+	 * index a freshly loaded chunk from disk, or reserve it for the {@link ChunkScanner}.<br>
+	 * Until the result of a scan arrives, range checks look at the blocks of this chunk directly.
+	 * @param chunk
+	 * @return the ticket to {@link #submit(Chunk, Object)} the chunk with, null if it needs no scan.
+	 */
+	public Object load(final Chunk chunk) {
+		final long chunkKey = BlockKey.chunk(chunk.getX(), chunk.getZ());
+		// without a scanner, chunks are indexed when they are needed
+		if (scanner == null) {
+			if (!chunks.containsKey(chunkKey) && !pending.containsKey(chunkKey)) claim(chunkKey);
+			return null;
+		}
+		return reserve(chunkKey);
+	}
+
+	/**
+	 * queue a chunk reserved by {@link #load(Chunk)} for scanning. Called without the lock.
+	 * @param chunk
+	 * @param ticket the ticket returned by {@link #load(Chunk)}.
+	 */
+	public void submit(final Chunk chunk, final Object ticket) {
+		final long chunkKey = BlockKey.chunk(chunk.getX(), chunk.getZ());
+		if (scanner.submit(this, chunkKey, ticket, chunk.getChunkSnapshot(false, false, false), world.getMaxHeight())) return;
+		// the queue is full, the chunk gets indexed synchronously when it is needed
+		synchronized (lock) {
+			if (pending.get(chunkKey) == ticket) pending.remove(chunkKey);
+		}
+	}
+
+	/**
+	 * receive the result of a scan. Called without the lock.
+	 * @param chunkKey the packed key of the chunk.
+	 * @param ticket the ticket passed to {@link ChunkScanner#submit(SpongeIndex, long, Object, org.bukkit.ChunkSnapshot, int)}
+	 * @param result the packed keys of the sponges found.
+	 */
+	void publish(final long chunkKey, final Object ticket, final LongHashSet result) {
+		synchronized (lock) {
+			final Pending p = pending.get(chunkKey);
+			// unloaded or indexed otherwise meanwhile
+			if (p == null || p != ticket) return;
+			pending.remove(chunkKey);
+			for (int i = p.removed.nextSlot(0); i >= 0; i = p.removed.nextSlot(i + 1))
+				result.remove(p.removed.keyAt(i));
+			for (int i = p.added.nextSlot(0); i >= 0; i = p.added.nextSlot(i + 1))
+				result.add(p.added.keyAt(i));
+			chunks.put(chunkKey, result);
+			sponges += result.size();
+			if (store != null) store.writeChunk(BlockKey.chunkX(chunkKey), BlockKey.chunkZ(chunkKey), result);
+		}
+	}
+
+	/**
+	 * forget everything about a chunk, it will be indexed again when it is loaded or needed.
+	 * @param chunk
+	 */
+	public void evict(final Chunk chunk) {
+		final long chunkKey = BlockKey.chunk(chunk.getX(), chunk.getZ());
+		pending.remove(chunkKey);
+		final LongHashSet set = chunks.remove(chunkKey);
+		if (set == null) return;
+		sponges -= set.size();
+		if (store != null) store.release(chunk.getX(), chunk.getZ(), set);
+	}
+
+	/**
+	 * write everything to disk. The index must not be used afterwards.
+	 */
+	public void close() {
+		if (store != null) store.close();
+		chunks.clear();
+		pending.clear();
+		sponges = 0;
+	}
+
+	/**
+	 * check whether a chunk is being scanned.
+	 * @param chunkKey the packed key of the chunk.
+	 * @return true if so, false otherwise.
+	 */
+	public boolean isPending(final long chunkKey) {
+		return pending.containsKey(chunkKey);
+	}
+
+	/**
+	 * get the known sponges of a chunk without indexing it.
+	 * @param chunkKey the packed key of the chunk.
+	 * @return the packed keys of the sponges, null if the chunk is not indexed. Must not be changed.
+	 */
+	public LongHashSet getSponges(final long chunkKey) {
+		return chunks.get(chunkKey);
+	}
+
+	/**
+	 * @return the packed keys of all indexed chunks.
+	 */
+	public long[] chunkKeys() {
+		return chunks.keys();
+	}
+
+	/**
+	 * @return the number of known sponges.
+	 */
+	public int size() {
+		return sponges;
+	}
+
+	/**
+	 * @return the number of indexed chunks.
+	 */
+	public int chunkCount() {
+		return chunks.size();
+	}
+
+	/**
+	 * @return the number of chunks being scanned.
+	 */
+	public int pendingCount() {
+		return pending.size();
+	}
+
+	/**
+	 * @return the approximate number of bytes the index takes on the heap.
+	 */
+	public long estimateBytes() {
+		long bytes = chunks.estimateBytes() + pending.estimateBytes();
+		for (int i = chunks.nextSlot(0); i >= 0; i = chunks.nextSlot(i + 1))
+			bytes += chunks.valueAt(i).estimateBytes();
+		for (int i = pending.nextSlot(0); i >= 0; i = pending.nextSlot(i + 1)) {
+			final Pending p = pending.valueAt(i);
+			bytes += 24 + p.added.estimateBytes() + p.removed.estimateBytes();
+		}
+		return bytes;
+	}
+
+	/**
+	 * find all sponges in a chunk snapshot.
+	 * @param snapshot
+	 * @param maxHeight the height of the world.
+	 * @return the packed keys of the sponges.
+	 */
+	static LongHashSet scan(final ChunkSnapshot snapshot, final int maxHeight) {
+		final LongHashSet set = new LongHashSet();
+		final int baseX = snapshot.getX() << 4, baseZ = snapshot.getZ() << 4;
+		for (int section = 0; section < maxHeight >> 4; section++) {
+			if (snapshot.isSectionEmpty(section)) continue;
+			for (int y = section << 4; y < (section + 1) << 4; y++)
+				for (int x = 0; x < 16; x++)
+					for (int z = 0; z < 16; z++)
+						if (snapshot.getBlockTypeId(x, y, z) == WorldConfig.ID_SPONGE)
+							set.add(BlockKey.pack(baseX + x, y, baseZ + z));
+		}
+		return set;
+	}
+
+}
@@ -0,0 +1,240 @@
+package me.steppenwiesel.spongereloaded;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.bukkit.Material;
+import org.bukkit.block.Block;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.block.BlockBreakEvent;
+import org.bukkit.event.block.BlockBurnEvent;
+import org.bukkit.event.block.BlockExplodeEvent;
+import org.bukkit.event.block.BlockPhysicsEvent;
+import org.bukkit.event.block.BlockPistonExtendEvent;
+import org.bukkit.event.block.BlockPistonRetractEvent;
+import org.bukkit.event.block.BlockPlaceEvent;
+import org.bukkit.event.entity.EntityChangeBlockEvent;
+import org.bukkit.event.entity.EntityExplodeEvent;
+import org.bukkit.event.world.ChunkLoadEvent;
+import org.bukkit.event.world.ChunkUnloadEvent;
+
+/**
+ * Keeps track of the sponges and keeps their range dry.<br>
+ * Registered while sponges are enabled in at least one world.
+ * @author Steppenwiesel
+ *
+ */
+final class SpongeListener implements Listener {
+
+	private final SpongeContext plugin;
+
+	SpongeListener(final SpongeContext plugin) {
+		this.plugin = plugin;
+	}
+
+	/**
+	 * search a freshly loaded chunk for sponges.
+	 * @param event
+	 */
+	@EventHandler(priority = EventPriority.MONITOR)
+	public void onChunkLoad(final ChunkLoadEvent event) {
+		final long start = System.nanoTime();
+		final Object jfr = Tracing.beginHandler();
+		final WorldConfig wconf = plugin.getWorldConfig(event.getWorld());
+		if (wconf.isEnabled()) {
+			wconf.chunkLoaded(event.getChunk());
+		}
+		plugin.handled(HandlerType.CHUNK_LOAD, start, jfr, null, false);
+	}
+
+	/**
+	 * forget the sponges of an unloaded chunk.
+	 * @param event
+	 */
+	@EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+	public void onChunkUnload(final ChunkUnloadEvent event) {
+		final long start = System.nanoTime();
+		final Object jfr = Tracing.beginHandler();
+		plugin.getWorldConfig(event.getWorld()).chunkUnloaded(event.getChunk());
+		plugin.handled(HandlerType.CHUNK_UNLOAD, start, jfr, null, false);
+	}
+
+	/**
+	 * react to the placement of sponges and water/lava blocks.
+	 * @param event
+	 */
+	@EventHandler(priority = EventPriority.HIGH, ignoreCancelled = true)
+	public void onBlockPlace(final BlockPlaceEvent event) {
+		final long start = System.nanoTime();
+		final Object jfr = Tracing.beginHandler();
+		final Block block = event.getBlock();
+		final WorldConfig wconf = plugin.getWorldConfig(block.getWorld());
+		if (block.getTypeId() == WorldConfig.ID_SPONGE) {
+			wconf.addSponge(block);
+			wconf.removeSuckables(block);
+			wconf.callPhysics(block);
+		} else if (wconf.isSuckable(block))
+			event.setCancelled(wconf.spongeInRange(block));
+		plugin.handled(HandlerType.BLOCK_PLACE, start, jfr, block, event.isCancelled());
+	}
+
+	/**
+	 * react to a sponge that was broken by a player.
+	 * @param event
+	 */
+	@EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+	public void onBlockBreak(final BlockBreakEvent event) {
+		final long start = System.nanoTime();
+		final Object jfr = Tracing.beginHandler();
+		final Block block = event.getBlock();
+		if (block.getTypeId() == WorldConfig.ID_SPONGE) {
+			final WorldConfig wconf = plugin.getWorldConfig(block.getWorld());
+			wconf.removeSponge(block);
+			wconf.callPhysics(block);
+		}
+		plugin.handled(HandlerType.BLOCK_BREAK, start, jfr, block, event.isCancelled());
+	}
+
+	/**
+	 * react to a sponge that burnt down.
+	 * @param event
+	 */
+	@EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+	public void onBlockBurn(final BlockBurnEvent event) {
+		final long start = System.nanoTime();
+		final Object jfr = Tracing.beginHandler();
+		final Block block = event.getBlock();
+		if (block.getTypeId() == WorldConfig.ID_SPONGE) {
+			final WorldConfig wconf = plugin.getWorldConfig(block.getWorld());
+			wconf.removeSponge(block);
+			wconf.callPhysics(block);
+		}
+		plugin.handled(HandlerType.BLOCK_BURN, start, jfr, block, event.isCancelled());
+	}
+
+	/**
+	 * routine block physics check that was initiated by Bukkit.
+	 * @param event
+	 */
+	@EventHandler(ignoreCancelled = true)
+	public void onBlockPhysics(final BlockPhysicsEvent event) {
+		final long start = System.nanoTime();
+		final Object jfr = Tracing.beginHandler();
+		final Block block = event.getBlock();
+		final WorldConfig wconf = plugin.getWorldConfig(block.getWorld());
+		if (block.getTypeId() == WorldConfig.ID_SPONGE) {
+			wconf.addSponge(block);
+			// fluids may have got into range without an event (dispensers, other plugins, world edits).
+			// The range of a sponge a piston just moved was updated by moveSponge already
+			if (!wconf.isMovedRecently(block))
+				wconf.removeSuckables(block);
+		} else if (wconf.isSuckable(block) && wconf.spongeInRange(block))
+			block.setTypeIdAndData(0, (byte) 0, false);
+		plugin.handled(HandlerType.BLOCK_PHYSICS, start, jfr, block, event.isCancelled());
+	}
+
+	/**
+	 * react to a sponge that was moved by an extending piston.
+	 * @param event
+	 */
+	@EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+	public void onBlockPistonExtend(final BlockPistonExtendEvent event) {
+		final long start = System.nanoTime();
+		final Object jfr = Tracing.beginHandler();
+		// check if sponge(s) is/are affected, call physics if so
+		final WorldConfig wconf = plugin.getWorldConfig(event.getBlock().getWorld());
+		final List<Block> moved = new ArrayList<>();
+		for (final Block i : event.getBlocks()) {
+			if (i.getTypeId() == WorldConfig.ID_SPONGE) {
+				wconf.removeSponge(i);
+				moved.add(i.getRelative(event.getDirection()));
+				wconf.moveSponge(i, event.getDirection());
+			}
+		}
+		// add after removing, sponges in a row move into each other's old positions
+		for (final Block i : moved)
+			wconf.addSponge(i);
+		plugin.handled(HandlerType.BLOCK_PISTON_EXTEND, start, jfr, event.getBlock(), event.isCancelled());
+	}
+
+	/**
+	 * react to a sponge that was moved by a retracting piston.
+	 * @param event
+	 */
+	@EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+	public void onBlockPistonRetract(final BlockPistonRetractEvent event) {
+		final long start = System.nanoTime();
+		final Object jfr = Tracing.beginHandler();
+		final Block oldBlock = event.getBlock().getRelative(event.getDirection(), 2);
+		final Block newBlock = event.getBlock().getRelative(event.getDirection(), 1);
+		if (event.isSticky() && oldBlock.getTypeId() == WorldConfig.ID_SPONGE) {
+			// update sponge
+			final WorldConfig wconf = plugin.getWorldConfig(event.getBlock().getWorld());
+			wconf.removeSponge(oldBlock);
+			wconf.addSponge(newBlock);
+			wconf.moveSponge(oldBlock, event.getDirection().getOppositeFace());
+		}
+		plugin.handled(HandlerType.BLOCK_PISTON_RETRACT, start, jfr, event.getBlock(), event.isCancelled());
+	}
+
+	/**
+	 * react to endermen stealing a sponge.
+	 * @param event
+	 */
+	@EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+	public void onEntityChangeBlock(final EntityChangeBlockEvent event) {
+		final long start = System.nanoTime();
+		final Object jfr = Tracing.beginHandler();
+		final Block block = event.getBlock();
+		if (block.getTypeId() == WorldConfig.ID_SPONGE) {
+			final WorldConfig wconf = plugin.getWorldConfig(block.getWorld());
+			wconf.removeSponge(block);
+			wconf.callPhysics(block);
+		} else if (event.getTo() == Material.SPONGE)
+			plugin.getWorldConfig(block.getWorld()).addSponge(block);
+		plugin.handled(HandlerType.ENTITY_CHANGE_BLOCK, start, jfr, block, event.isCancelled());
+	}
+
+	/**
+	 * react to sponges blown up by creepers, TNT and other entities.
+	 * @param event
+	 */
+	@EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+	public void onEntityExplode(final EntityExplodeEvent event) {
+		final long start = System.nanoTime();
+		final Object jfr = Tracing.beginHandler();
+		final Block center = event.getLocation().getBlock();
+		exploded(plugin.getWorldConfig(center.getWorld()), event.blockList());
+		plugin.handled(HandlerType.ENTITY_EXPLODE, start, jfr, center, event.isCancelled());
+	}
+
+	/**
+	 * react to sponges blown up by beds in the nether and other block explosions.
+	 * @param event
+	 */
+	@EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+	public void onBlockExplode(final BlockExplodeEvent event) {
+		final long start = System.nanoTime();
+		final Object jfr = Tracing.beginHandler();
+		final Block center = event.getBlock();
+		exploded(plugin.getWorldConfig(center.getWorld()), event.blockList());
+		plugin.handled(HandlerType.BLOCK_EXPLODE, start, jfr, center, event.isCancelled());
+	}
+
+	/**
+	 * forget the sponges an explosion destroys.
+	 * @param wconf the configuration of the world of the explosion.
+	 * @param blocks the blocks the explosion destroys.
+	 */
+	private static void exploded(final WorldConfig wconf, final List<Block> blocks) {
+		for (final Block i : blocks) {
+			if (i.getTypeId() == WorldConfig.ID_SPONGE) {
+				wconf.removeSponge(i);
+				wconf.callPhysics(i);
+			}
+		}
+	}
+
+}
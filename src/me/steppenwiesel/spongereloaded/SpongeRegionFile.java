@@ -0,0 +1,294 @@
+package me.steppenwiesel.spongereloaded;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * <p>
+ * The sponges of one region (32 x 32 chunks), stored in a file.
+ * </p>
+ * <p>
+ * The file starts with a header of {@value #HEADER} bytes:
+ * </p>
+ * 
+ * <pre>
+ * int magic    'SPIX'
+ * int version  {@value #VERSION}
+ * int flags    1 while the file is being written to
+ * int records  the number of records
+ * int crc32    the checksum of all records
+ * </pre>
+ * 
+ * <p>
+ * followed by a log of 4-byte records (2 bits operation, 12 bits y, 9 bits x and z within the region).<br>
+ * A chunk record marks a chunk as scanned and resets its sponges, add and remove records change single sponges.
+ * New changes are appended, the log gets compacted when the file is opened.<br>
+ * The file is read once when it is opened and written with plain channel writes. It is not memory-mapped, because
+ * mappings are only released by the garbage collector and keep the file open until then.
+ * </p>
+ * @author Steppenwiesel
+ *
+ */
+final class SpongeRegionFile {
+
+	static final int MAGIC = 0x53504958;
+	static final int VERSION = 1;
+	static final int HEADER = 32;
+
+	private static final int OP_ADD = 0;
+	private static final int OP_REMOVE = 1;
+	private static final int OP_CHUNK = 2;
+
+	private final File file;
+	private final int baseX;
+	private final int baseZ;
+	private final FileChannel channel;
+	/** a record, or the record count and checksum of the header */
+	private final ByteBuffer word = ByteBuffer.allocate(8);
+	private final CRC32 crc = new CRC32();
+	private final byte[] crcBuffer = new byte[4];
+	private int records;
+	private boolean writing;
+
+	/** chunks that have been scanned, by packed chunk key */
+	private final LongHashSet known = new LongHashSet();
+	/** sponges of the scanned chunks that are not claimed by the index, by packed chunk key */
+	private final LongObjectHashMap<LongHashSet> unclaimed = new LongObjectHashMap<>();
+	/** chunks whose sponges are owned by the index, by packed chunk key */
+	private final LongHashSet claimed = new LongHashSet();
+
+	/**
+	 * open the file and read its content. A missing, corrupt or unfinished file is started over empty.
+	 * @param file
+	 * @param rx region x
+	 * @param rz region z
+	 * @param trusted false if the world changed since the file was written, which also starts it over.
+	 * @throws IOException
+	 */
+	SpongeRegionFile(final File file, final int rx, final int rz, final boolean trusted) throws IOException {
+		this.file = file;
+		baseX = rx << 9;
+		baseZ = rz << 9;
+		channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		try {
+			if (!trusted || !read(channel.size())) reset();
+			else if (records > 4 * liveRecords() + 256) compact();
+		} catch (final IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	private boolean read(final long length) throws IOException {
+		if (length < HEADER || length > Integer.MAX_VALUE) return false;
+		final ByteBuffer content = ByteBuffer.allocate((int) length);
+		while (content.hasRemaining())
+			if (channel.read(content, content.position()) < 0) return false;
+		if (content.getInt(0) != MAGIC || content.getInt(4) != VERSION || content.getInt(8) != 0) return false;
+		final int count = content.getInt(12);
+		if (count < 0 || HEADER + (long) count * 4 > length) return false;
+		crc.reset();
+		for (int i = 0; i < count; i++) {
+			final int record = content.getInt(HEADER + i * 4);
+			updateCrc(record);
+			apply(record);
+		}
+		if ((int) crc.getValue() != content.getInt(16)) {
+			known.clear();
+			unclaimed.clear();
+			return false;
+		}
+		records = count;
+		return true;
+	}
+
+	private void apply(final int record) {
+		final int op = record >>> 30;
+		final int y = (record >>> 18) & 0xFFF;
+		final int z = baseZ + ((record >>> 9) & 0x1FF);
+		final int x = baseX + (record & 0x1FF);
+		final long chunkKey = BlockKey.chunk(x >> 4, z >> 4);
+		if (op == OP_CHUNK) {
+			known.add(chunkKey);
+			unclaimed.remove(chunkKey);
+			return;
+		}
+		LongHashSet set = unclaimed.get(chunkKey);
+		if (op == OP_ADD) {
+			if (set == null) unclaimed.put(chunkKey, set = new LongHashSet());
+			set.add(BlockKey.pack(x, y, z));
+		} else if (set != null)
+			set.remove(BlockKey.pack(x, y, z));
+	}
+
+	private void reset() throws IOException {
+		known.clear();
+		unclaimed.clear();
+		crc.reset();
+		records = 0;
+		writing = false;
+		final ByteBuffer header = ByteBuffer.allocate(HEADER);
+		header.putInt(0, MAGIC);
+		header.putInt(4, VERSION);
+		header.putInt(16, (int) crc.getValue());
+		write(header, 0);
+		channel.truncate(HEADER);
+	}
+
+	private int liveRecords() {
+		int live = known.size();
+		for (int i = unclaimed.nextSlot(0); i >= 0; i = unclaimed.nextSlot(i + 1))
+			live += unclaimed.valueAt(i).size();
+		return live;
+	}
+
+	/**
+	 * rewrite the log with one chunk record per scanned chunk and one add record per sponge.
+	 */
+	private void compact() throws IOException {
+		final long[] chunks = known.toArray();
+		final LongHashSet[] sets = new LongHashSet[chunks.length];
+		for (int i = 0; i < chunks.length; i++)
+			sets[i] = unclaimed.get(chunks[i]);
+		reset();
+		for (int i = 0; i < chunks.length; i++) {
+			known.add(chunks[i]);
+			if (sets[i] != null) unclaimed.put(chunks[i], sets[i]);
+			writeRecords(chunks[i], sets[i]);
+		}
+	}
+
+	private void writeRecords(final long chunkKey, final LongHashSet set) throws IOException {
+		append(OP_CHUNK, BlockKey.chunkX(chunkKey) << 4, 0, BlockKey.chunkZ(chunkKey) << 4);
+		if (set == null) return;
+		for (int i = set.nextSlot(0); i >= 0; i = set.nextSlot(i + 1)) {
+			final long key = set.keyAt(i);
+			append(OP_ADD, BlockKey.x(key), BlockKey.y(key), BlockKey.z(key));
+		}
+	}
+
+	/**
+	 * take the sponges of a scanned chunk. The index owns them until it gives them back with {@link #release(long, LongHashSet)}.
+	 * @param chunkKey
+	 * @return the packed sponge keys, or null if this chunk was not scanned yet or is claimed already.
+	 */
+	LongHashSet claim(final long chunkKey) {
+		// the sponges of a claimed chunk are owned by the index, there is nothing left to take
+		if (!known.contains(chunkKey) || claimed.contains(chunkKey)) return null;
+		LongHashSet set = unclaimed.remove(chunkKey);
+		if (set == null) set = new LongHashSet();
+		claimed.add(chunkKey);
+		return set;
+	}
+
+	/**
+	 * give the sponges of a chunk back when the index does not need them anymore.
+	 * @param chunkKey
+	 * @param set
+	 * @return true if no chunk of this region is claimed anymore.
+	 */
+	boolean release(final long chunkKey, final LongHashSet set) {
+		if (!set.isEmpty()) unclaimed.put(chunkKey, set);
+		claimed.remove(chunkKey);
+		return claimed.isEmpty();
+	}
+
+	/**
+	 * store the result of a chunk scan. The index owns the sponges afterwards.
+	 * @param chunkKey
+	 * @param set
+	 * @throws IOException
+	 */
+	void writeChunk(final long chunkKey, final LongHashSet set) throws IOException {
+		known.add(chunkKey);
+		unclaimed.remove(chunkKey);
+		claimed.add(chunkKey);
+		writeRecords(chunkKey, set);
+	}
+
+	/**
+	 * @param key the packed key of a sponge that appeared.
+	 * @throws IOException
+	 */
+	void add(final long key) throws IOException {
+		append(OP_ADD, BlockKey.x(key), BlockKey.y(key), BlockKey.z(key));
+	}
+
+	/**
+	 * @param key the packed key of a sponge that disappeared.
+	 * @throws IOException
+	 */
+	void remove(final long key) throws IOException {
+		append(OP_REMOVE, BlockKey.x(key), BlockKey.y(key), BlockKey.z(key));
+	}
+
+	private void append(final int op, final int x, final int y, final int z) throws IOException {
+		if (!writing) {
+			// marks the file as unfinished until it is closed properly
+			writeFlags(1);
+			writing = true;
+		}
+		final int record = op << 30 | (y & 0xFFF) << 18 | (z & 0x1FF) << 9 | (x & 0x1FF);
+		word.clear();
+		word.putInt(record).flip();
+		write(word, HEADER + records * 4L);
+		updateCrc(record);
+		records++;
+		writeHeader();
+	}
+
+	private void updateCrc(final int record) {
+		crcBuffer[0] = (byte) (record >>> 24);
+		crcBuffer[1] = (byte) (record >>> 16);
+		crcBuffer[2] = (byte) (record >>> 8);
+		crcBuffer[3] = (byte) record;
+		crc.update(crcBuffer, 0, 4);
+	}
+
+	private void writeHeader() throws IOException {
+		word.clear();
+		word.putInt(records).putInt((int) crc.getValue()).flip();
+		write(word, 12);
+	}
+
+	private void writeFlags(final int flags) throws IOException {
+		word.clear();
+		word.putInt(flags).flip();
+		write(word, 8);
+	}
+
+	private void write(final ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining())
+			position += channel.write(buffer, position);
+	}
+
+	/**
+	 * write everything to disk and mark the file as finished.
+	 * @throws IOException
+	 */
+	void close() throws IOException {
+		try {
+			writeFlags(0);
+			channel.force(true);
+		} finally {
+			channel.close();
+		}
+		file.setLastModified(System.currentTimeMillis());
+	}
+
+	/**
+	 * close the file without marking it as finished, it will be started over the next time it is opened.
+	 */
+	void abandon() {
+		try {
+			channel.close();
+		} catch (final IOException e) {
+			// nothing left to save
+		}
+	}
+
+}
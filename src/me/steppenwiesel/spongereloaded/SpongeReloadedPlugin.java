@@ -1,39 +1,116 @@
 package me.steppenwiesel.spongereloaded;
 
 import java.io.File;
-import java.util.HashMap;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
 
 import org.bukkit.Bukkit;
-import org.bukkit.Material;
+import org.bukkit.Chunk;
+import org.bukkit.Location;
 import org.bukkit.World;
 import org.bukkit.block.Block;
+import org.bukkit.command.Command;
+import org.bukkit.command.CommandSender;
 import org.bukkit.configuration.file.FileConfiguration;
+import org.bukkit.configuration.file.YamlConfiguration;
 import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.HandlerList;
 import org.bukkit.event.Listener;
-import org.bukkit.event.block.BlockBreakEvent;
-import org.bukkit.event.block.BlockBurnEvent;
-import org.bukkit.event.block.BlockFromToEvent;
-import org.bukkit.event.block.BlockPhysicsEvent;
-import org.bukkit.event.block.BlockPistonExtendEvent;
-import org.bukkit.event.block.BlockPistonRetractEvent;
-import org.bukkit.event.block.BlockPlaceEvent;
-import org.bukkit.event.block.BlockSpreadEvent;
-import org.bukkit.event.entity.EntityChangeBlockEvent;
-import org.bukkit.event.player.PlayerBucketEmptyEvent;
-import org.bukkit.event.player.PlayerInteractEvent;
+import org.bukkit.event.world.WorldLoadEvent;
 import org.bukkit.event.world.WorldUnloadEvent;
+import org.bukkit.entity.Player;
 import org.bukkit.inventory.ItemStack;
+import org.bukkit.inventory.Recipe;
 import org.bukkit.inventory.ShapedRecipe;
 import org.bukkit.plugin.java.JavaPlugin;
+import org.bukkit.scheduler.BukkitTask;
 
-public class SpongeReloadedPlugin extends JavaPlugin implements Listener {
+public class SpongeReloadedPlugin extends JavaPlugin implements Listener, SpongeContext {
+
+	/** the configurations of the worlds, created on first use. Event handlers may run on several threads at once. */
+	private volatile ConcurrentMap<UUID, WorldConfig> wconf;
+
+	/** the configuration used last, most events happen in the same world */
+	private volatile WorldConfig lastConfig;
+
+	/**
+	 * finds sponges in freshly loaded chunks
+	 */
+	private ChunkScanner scanner;
 
 	/**
-	 * the WorldConfig objects, mapped by the world's names
-	 * @see {@link World}, {@link World#getName()}
+	 * searches the blocks around sponges with a large radius
 	 */
-	private Map<String, WorldConfig> wconf;
+	private AbsorbPlanner planner;
+
+	/**
+	 * keeps the ranges of the sponges dry, a few blocks per tick
+	 */
+	private BukkitTask sweepTask;
+	/** the chunks of the players of a world, reused every tick */
+	private long[] playerChunks = new long[16];
+
+	/**
+	 * holds back sponge work while the server is slow
+	 */
+	private TickGovernor governor;
+	private BukkitTask governorTask;
+
+	/**
+	 * does the queued block changes of all worlds every tick
+	 */
+	private BukkitTask writeTask;
+
+	/**
+	 * the current configuration, replaced as a whole on reload
+	 */
+	private final AtomicReference<Settings> settings = new AtomicReference<>();
+
+	/**
+	 * reloads the configuration when its files change, null if not enabled
+	 */
+	private ConfigWatcher watcher;
+
+	/**
+	 * measures the event handlers and scans
+	 */
+	private final Metrics metrics = new Metrics();
+
+	/**
+	 * writes the measurements to metrics.prom, null if not enabled
+	 */
+	private BukkitTask metricsTask;
+
+	/**
+	 * records every handled event to trace files, null if not recording
+	 */
+	private volatile TraceRecorder trace;
+
+	/**
+	 * the event handlers of the features, registered only while a world uses them
+	 */
+	private final Listener spongeListener = new SpongeListener(this);
+	private final Listener fluidListener = new FluidListener(this);
+	private final Listener fireListener = new FireListener(this);
+	private boolean spongeListening, fluidListening, fireListening;
+
+	/**
+	 * the sponge recipe added to the server, null if there is none
+	 */
+	private ShapedRecipe recipe;
+
+	private static final String[] DEFAULT_RECIPE = new String[] { "aba", "bab", "aba", "", "a-SAND", "b-STRING" };
 
 	@Override
 	public void onEnable() {
@@ -47,31 +124,120 @@ public class SpongeReloadedPlugin extends JavaPlugin implements Listener {
 		} else
 			updateConfig();
 
+		settings.set(new Settings(getConfig()));
+		metrics.setEnabled(getSettings().isMetricsEnabled());
+
 		// crafting
-		if (getConfig().getBoolean("craftable")) {
+		if (getSettings().isCraftable())
+			setRecipe(loadRecipe());
+
+		// world configurations
+		wconf = new ConcurrentHashMap<>();
+		// now loading on-the-fly!
+
+		// sponge discovery
+		scanner = new ChunkScanner(this, Math.max(1, getConfig().getInt("chunk_scan_threads", 2)), 4096);
+		for (final World world : Bukkit.getWorlds()) {
+			final WorldConfig wconf = getWorldConfig(world);
+			if (!wconf.isEnabled()) continue;
+			for (final Chunk chunk : world.getLoadedChunks())
+				wconf.chunkLoaded(chunk);
+		}
+		planner = new AbsorbPlanner(this, Math.max(1, getConfig().getInt("plan_threads", 2)));
+
+		updateListeners();
+
+		// block changes, and forgetting the range checks of the last tick
+		writeTask = Bukkit.getScheduler().runTaskTimer(this, new Runnable() {
+			@Override
+			public void run() {
+				final Settings settings = getSettings();
+				for (final WorldConfig i : wconf.values())
+					i.endTick();
+				drainWriteQueues(settings.getWriteBlocksPerTick(), settings.getWriteNanosPerTick());
+			}
+		}, 1, 1);
+
+		// dry zone maintenance
+		sweepTask = Bukkit.getScheduler().runTaskTimer(this, new Runnable() {
+			@Override
+			public void run() {
+				final Settings settings = getSettings();
+				sweepDryZones(settings.getSweepBlocksPerTick(), settings.getSweepPlayerChunks());
+			}
+		}, 1, 1);
+
+		// load shedding
+		governor = new TickGovernor(this);
+		governorTask = Bukkit.getScheduler().runTaskTimer(this, governor, 1, 1);
+
+		// measurements
+		final int dumpSeconds = getConfig().getInt("metrics_dump_seconds", 60);
+		if (dumpSeconds > 0) {
+			final File metricsFile = new File(this.getDataFolder(), "metrics.prom");
+			metricsTask = Bukkit.getScheduler().runTaskTimerAsynchronously(this, new Runnable() {
+				@Override
+				public void run() {
+					try {
+						metrics.writePrometheus(metricsFile);
+					} catch (final IOException e) {
+						getLogger().warning("Could not write " + metricsFile.getPath() + ": " + e.getMessage());
+					}
+				}
+			}, dumpSeconds * 20L, dumpSeconds * 20L);
+		}
+
+		// event trace
+		if (getConfig().getBoolean("trace_enabled", false))
+			startTrace();
+
+		// configuration reloading
+		if (getConfig().getBoolean("watch_config", false)) {
 			try {
-				final String[] defaultRecipe = new String[] { "aba", "bab", "aba", "", "a-SAND", "b-STRING" };
-				final File config = new File(this.getDataFolder(), "recipe.cfg");
-				final ShapedRecipe recipe = new RecipeCreator(config, defaultRecipe).getRecipe();
-				Bukkit.addRecipe(recipe);
-			} catch (final RecipeException e) {
-				log("Failed to read crafting configuration.");
+				watcher = new ConfigWatcher(this);
+			} catch (final IOException e) {
+				log("Failed to watch the configuration files.");
 				e.printStackTrace();
 			}
 		}
 
-		// world configurations
-		wconf = new HashMap<>();
-		// now loading on-the-fly!
-
 		log("Enabled " + this.getDescription().getName() + " v" + this.getDescription().getVersion());
 	}
 
 	@Override
 	public void onDisable() {
 		super.onDisable();
+		if (watcher != null) {
+			watcher.close();
+			watcher = null;
+		}
+		if (metricsTask != null) {
+			metricsTask.cancel();
+			metricsTask = null;
+		}
+		stopTrace();
+		sweepTask.cancel();
+		sweepTask = null;
+		governorTask.cancel();
+		governorTask = null;
+		governor = null;
+		writeTask.cancel();
+		writeTask = null;
+		// do the outstanding block changes now, they would get lost otherwise
+		for (final WorldConfig i : wconf.values())
+			i.flush();
+		// the server unregisters all listeners of a disabled plugin
+		spongeListening = fluidListening = fireListening = false;
+		scanner.shutdown();
+		scanner = null;
+		planner.shutdown();
+		planner = null;
+		// write the sponge indexes to disk
+		for (final WorldConfig i : wconf.values())
+			i.close();
 		// remove world configuration objects from RAM
 		wconf = null;
+		lastConfig = null;
 		log("Disabled " + this.getDescription().getName() + " v" + this.getDescription().getVersion());
 	}
 
@@ -93,190 +259,404 @@ public class SpongeReloadedPlugin extends JavaPlugin implements Listener {
 		}
 	}
 
-	private WorldConfig getWorldConfig(final World world) {
-		final String worldName = world.getName();
-		WorldConfig wconf = this.wconf.get(worldName);
+	/**
+	 * get the current configuration. Never blocks, safe to use from any thread.
+	 * @return the configuration.
+	 */
+	@Override
+	public Settings getSettings() {
+		return settings.get();
+	}
+
+	/**
+	 * get the measurements of the event handlers and scans.
+	 * @return the measurements.
+	 */
+	@Override
+	public Metrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * reload config.yml and recipe.cfg without blocking the main thread.<br>
+	 * The files are read in the background and the new configuration replaces the old one at once.
+	 * @param sender who to tell when it is done, may be null.
+	 */
+	void scheduleReload(final CommandSender sender) {
+		// the world names need to be collected on the main thread
+		Bukkit.getScheduler().runTask(this, new Runnable() {
+			@Override
+			public void run() {
+				reload(sender);
+			}
+		});
+	}
+
+	private void reload(final CommandSender sender) {
+		final List<String> worldNames = new ArrayList<>();
+		for (final World world : Bukkit.getWorlds())
+			worldNames.add(world.getName());
+		final File configFile = new File(this.getDataFolder(), "config.yml");
+		final YamlConfiguration defaults = YamlConfiguration.loadConfiguration(getResource("config.yml"));
+		Bukkit.getScheduler().runTaskAsynchronously(this, new Runnable() {
+			@Override
+			public void run() {
+				final YamlConfiguration conf = YamlConfiguration.loadConfiguration(configFile);
+				conf.setDefaults(defaults);
+				final Settings next = new Settings(conf);
+				// compile the known worlds now instead of on their next event
+				for (final String worldName : worldNames) {
+					next.policy(worldName);
+					next.regions(worldName);
+				}
+				final ShapedRecipe recipe = next.isCraftable() ? loadRecipe() : null;
+				settings.set(next);
+				metrics.setEnabled(next.isMetricsEnabled());
+				runOnMainThread(new Runnable() {
+					@Override
+					public void run() {
+						// the server's recipe list must only be changed on the main thread
+						setRecipe(recipe);
+						updateListeners();
+						log("Reloaded configuration.");
+						if (sender != null) sender.sendMessage("SpongeReloaded configuration reloaded.");
+					}
+				});
+			}
+		});
+	}
+
+	/**
+	 * run a task on the main thread, unless the plugin got disabled meanwhile.
+	 * @param task
+	 */
+	private void runOnMainThread(final Runnable task) {
+		if (!isEnabled()) return;
+		try {
+			Bukkit.getScheduler().runTask(this, task);
+		} catch (final RuntimeException e) {
+			// disabled meanwhile
+		}
+	}
+
+	/**
+	 * read recipe.cfg.
+	 * @return the recipe, or null if it could not be read.
+	 */
+	private ShapedRecipe loadRecipe() {
+		try {
+			final File config = new File(this.getDataFolder(), "recipe.cfg");
+			return new RecipeCreator(config, DEFAULT_RECIPE).getRecipe();
+		} catch (final RecipeException e) {
+			log("Failed to read crafting configuration.");
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	/**
+	 * replace the sponge recipe of the server.
+	 * @param recipe the new recipe, or null to remove it.
+	 */
+	private void setRecipe(final ShapedRecipe recipe) {
+		if (this.recipe != null) {
+			// the server hands out copies, so look for a recipe like ours instead of this object.
+			// Sponge recipes of other plugins stay
+			final Iterator<Recipe> i = Bukkit.recipeIterator();
+			while (i.hasNext()) {
+				final Recipe r = i.next();
+				if (r instanceof ShapedRecipe && isSameRecipe((ShapedRecipe) r, this.recipe)) {
+					i.remove();
+					break;
+				}
+			}
+		}
+		this.recipe = recipe;
+		if (recipe != null) Bukkit.addRecipe(recipe);
+	}
+
+	/**
+	 * check whether a recipe of the server is the one this plugin added.
+	 * @param a
+	 * @param b
+	 * @return true if both have the same result, shape and ingredients.
+	 */
+	private static boolean isSameRecipe(final ShapedRecipe a, final ShapedRecipe b) {
+		if (a.getResult().getType() != b.getResult().getType() || a.getResult().getAmount() != b.getResult().getAmount()) return false;
+		if (!Arrays.equals(a.getShape(), b.getShape())) return false;
+		final Map<Character, ItemStack> ia = a.getIngredientMap(), ib = b.getIngredientMap();
+		if (!ia.keySet().equals(ib.keySet())) return false;
+		for (final Map.Entry<Character, ItemStack> i : ia.entrySet()) {
+			// the server may change the data of an ingredient, only its type counts
+			final ItemStack other = ib.get(i.getKey());
+			if (i.getValue() == null ? other != null : other == null || i.getValue().getType() != other.getType()) return false;
+		}
+		return true;
+	}
+
+	@Override
+	public WorldConfig getWorldConfig(final World world) {
+		final WorldConfig last = lastConfig;
+		if (last != null && last.getWorld() == world) return last;
+		final UUID uid = world.getUID();
+		final ConcurrentMap<UUID, WorldConfig> configs = this.wconf;
+		WorldConfig wconf = configs.get(uid);
 		if (wconf == null) {
-			// need a new one
-			wconf = new WorldConfig(world, this);
-			this.wconf.put(worldName, wconf);
-			log("Loaded configuration for world '" + worldName + "'");
+			// need a new one. It is created only once, it opens the index files of the world
+			wconf = configs.computeIfAbsent(uid, new Function<UUID, WorldConfig>() {
+				@Override
+				public WorldConfig apply(final UUID uid) {
+					final WorldConfig created = new WorldConfig(world, SpongeReloadedPlugin.this);
+					log("Loaded configuration for world '" + world.getName() + "'");
+					return created;
+				}
+			});
 		}
+		lastConfig = wconf;
 		return wconf;
 	}
 
 	/**
-	 * generate an 'info' message in the console.
-	 * @param text to show
+	 * register the event handlers of the features used by at least one world, and unregister the others.<br>
+	 * Features no world uses do not cost anything this way.
 	 */
-	private void log(final String text) {
-		this.getLogger().info(text);
+	private void updateListeners() {
+		updateListeners(null);
 	}
 
-	/*
-	 * BEGIN EVENTHANDLER
+	/**
+	 * register the event handlers of the features used by at least one world, and unregister the others.
+	 * @param unloading a world that is still in the list of worlds but about to be unloaded, may be null.
 	 */
+	private void updateListeners(final World unloading) {
+		final Settings settings = getSettings();
+		boolean sponge = false, fluid = false, fire = false;
+		for (final World world : Bukkit.getWorlds()) {
+			if (world == unloading) continue;
+			final List<WorldPolicy> policies = new ArrayList<>(settings.regions(world.getName()).getPolicies());
+			policies.add(settings.policy(world.getName()));
+			for (final WorldPolicy policy : policies) {
+				sponge |= policy.isEnabled();
+				fluid |= policy.isWaterSuckable() || policy.isLavaSuckable();
+				fire |= policy.isFireSuckable();
+			}
+		}
+		spongeListening = listen(spongeListener, spongeListening, sponge);
+		fluidListening = listen(fluidListener, fluidListening, fluid);
+		fireListening = listen(fireListener, fireListening, fire);
+	}
 
 	/**
-	 * remove the world configuration if a world is getting unloaded.
-	 * @param event
+	 * register or unregister an event listener.
+	 * @param listener
+	 * @param registered true if the listener is registered now.
+	 * @param wanted true if the listener should be registered.
+	 * @return the new state of the listener.
 	 */
-	public void onWorldUnload(WorldUnloadEvent event) {
-		String worldName = event.getWorld().getName();
-		if (this.wconf.remove(worldName) != null)
-			log("Removed configuration for world " + worldName + " from memory");
+	private boolean listen(final Listener listener, final boolean registered, final boolean wanted) {
+		if (wanted && !registered)
+			Bukkit.getPluginManager().registerEvents(listener, this);
+		else if (!wanted && registered)
+			HandlerList.unregisterAll(listener);
+		return wanted;
 	}
 
 	/**
-	 * react to the placement of sponges and water/lava blocks.
-	 * @param event
+	 * get the governor that holds back sponge work while the server is slow.
+	 * @return the governor, null if the plugin is disabled.
 	 */
-	@EventHandler
-	public void onBlockPlace(final BlockPlaceEvent event) {
-		final Block block = event.getBlock();
-		final WorldConfig wconf = getWorldConfig(block.getWorld());
-		if (block.getTypeId() == WorldConfig.ID_SPONGE) {
-			wconf.removeSuckables(block);
-			wconf.callPhysics(block);
-		} else if (wconf.isSuckable(block))
-			event.setCancelled(wconf.spongeInRange(block));
+	@Override
+	public TickGovernor getGovernor() {
+		return governor;
 	}
 
 	/**
-	 * react to players emptying a bucket.
-	 * @param event
+	 * do sponge work held back by the {@link TickGovernor}.
+	 * @param max the maximum number of sponges to handle.
 	 */
-	@EventHandler
-	public void onPlayerBucketEmpty(final PlayerBucketEmptyEvent event) {
-		final Material bucket = event.getBucket();
-		final WorldConfig wconf = getWorldConfig(event.getBlockClicked().getWorld());
-		if (wconf.bucketContainsSuckable(bucket)) {
-			final Block block = event.getBlockClicked().getRelative(event.getBlockFace());
-			event.setCancelled(wconf.spongeInRange(block));
+	@Override
+	public void replayDeferred(int max) {
+		for (final WorldConfig i : wconf.values()) {
+			if (max <= 0) return;
+			max -= i.replayDeferred(max);
 		}
 	}
 
 	/**
-	 * react to a player using a lighter
-	 * @param event
+	 * check the ranges of the sponges near players for suckable blocks. Every world gets the same share of the budget.
+	 * @param maxBlocks the maximum number of blocks to look at.
+	 * @param distance how many chunks away from players sponges are still checked.
 	 */
-	@EventHandler
-	public void onPlayerInteract(final PlayerInteractEvent event) {
-		final ItemStack item = event.getItem();
-		if (item == null || item.getTypeId() != Material.FLINT_AND_STEEL.getId() || event.getClickedBlock() == null || event.getBlockFace() == null) return;
-		final Block newBlock = event.getClickedBlock().getRelative(event.getBlockFace());
-		final WorldConfig wconf = getWorldConfig(newBlock.getWorld());
-		if (wconf.isFireSuckable())
-			event.setCancelled(wconf.spongeInRange(newBlock));
+	private void sweepDryZones(final int maxBlocks, final int distance) {
+		if (maxBlocks <= 0 || wconf.isEmpty()) return;
+		// the sweeper is the first thing to go when the server is busy
+		if (governor != null && governor.getMode() != TickGovernor.Mode.NORMAL) return;
+		final int share = Math.max(1, maxBlocks / wconf.size());
+		for (final WorldConfig i : wconf.values()) {
+			final List<Player> players = i.getWorld().getPlayers();
+			if (players.isEmpty()) continue;
+			if (playerChunks.length < players.size()) playerChunks = new long[players.size() * 2];
+			int count = 0;
+			for (final Player player : players) {
+				final Location location = player.getLocation();
+				playerChunks[count++] = BlockKey.chunk(location.getBlockX() >> 4, location.getBlockZ() >> 4);
+			}
+			i.sweep(share, playerChunks, count, distance);
+		}
 	}
 
 	/**
-	 * react to spreading fire
-	 * @param event
+	 * do queued block changes of all worlds within the given budget.
+	 * @param maxBlocks the maximum number of block changes.
+	 * @param maxNanos the maximum time to spend.
 	 */
-	@EventHandler
-	public void onBlockSpread(final BlockSpreadEvent event) {
-		final Block source = event.getSource();
-		final WorldConfig wconf = getWorldConfig(source.getWorld());
-		if (wconf.isSuckable(source))
-			event.setCancelled(wconf.spongeInRange(event.getBlock()));
+	private void drainWriteQueues(int maxBlocks, final long maxNanos) {
+		final long deadline = System.nanoTime() + maxNanos;
+		for (final WorldConfig i : wconf.values()) {
+			if (maxBlocks <= 0 || System.nanoTime() >= deadline) return;
+			maxBlocks -= i.drain(maxBlocks, deadline);
+		}
 	}
 
 	/**
-	 * react to flowing water/lava.
-	 * @param event
+	 * get the scanner that searches freshly loaded chunks for sponges.
+	 * @return the scanner.
 	 */
-	@EventHandler
-	public void onBlockFromTo(final BlockFromToEvent event) {
-		final Block from = event.getBlock();
-		final Block to = event.getToBlock();
-		final WorldConfig wconf = getWorldConfig(to.getWorld());
-		if (wconf.isSuckable(from)) {
-			event.setCancelled(wconf.spongeInRange(to));
-		}
+	@Override
+	public ChunkScanner getChunkScanner() {
+		return scanner;
 	}
 
 	/**
-	 * react to a sponge that was broken by a player.
-	 * @param event
+	 * start recording the handled events, if not recording already.
+	 * @return false if already recording.
 	 */
-	@EventHandler
-	public void onBlockBreak(final BlockBreakEvent event) {
-		final Block block = event.getBlock();
-		if (block.getTypeId() != WorldConfig.ID_SPONGE) return;
-		final WorldConfig wconf = getWorldConfig(block.getWorld());
-		wconf.callPhysics(block);
+	private boolean startTrace() {
+		if (trace != null) return false;
+		final FileConfiguration config = getConfig();
+		trace = new TraceRecorder(new File(this.getDataFolder(), "traces"), config.getInt("trace_buffer_events", 65536),
+				Math.max(1, config.getInt("trace_file_mb", 64)) * 1024L * 1024L, Math.max(1, config.getInt("trace_files", 4)), getLogger());
+		log("Started recording the event trace.");
+		return true;
 	}
 
 	/**
-	 * react to a sponge that burnt down.
-	 * @param event
+	 * stop recording the handled events and close the trace file.
+	 * @return false if not recording.
 	 */
-	@EventHandler
-	public void onBlockBurn(final BlockBurnEvent event) {
-		final Block block = event.getBlock();
-		if (block.getTypeId() != WorldConfig.ID_SPONGE) return;
-		final WorldConfig wconf = getWorldConfig(block.getWorld());
-		wconf.callPhysics(block);
+	private boolean stopTrace() {
+		final TraceRecorder trace = this.trace;
+		if (trace == null) return false;
+		this.trace = null;
+		trace.close();
+		log("Stopped recording the event trace, " + trace.getRecorded() + " events recorded, " + trace.getDropped() + " dropped.");
+		return true;
 	}
 
 	/**
-	 * routine block physics check that was initiated by Bukkit.
-	 * @param event
+	 * get the planner for the block changes of sponges with a large radius.
+	 * @return the planner.
 	 */
-	@EventHandler
-	public void onBlockPhysics(final BlockPhysicsEvent event) {
-		final Block block = event.getBlock();
-		final WorldConfig wconf = getWorldConfig(block.getWorld());
-		if (block.getTypeId() == WorldConfig.ID_SPONGE)
-			wconf.removeSuckables(block);
-		else if (wconf.isSuckable(block) && wconf.spongeInRange(block))
-			block.setTypeIdAndData(0, (byte) 0, false);
+	@Override
+	public AbsorbPlanner getAbsorbPlanner() {
+		return planner;
 	}
 
 	/**
-	 * react to a sponge that was moved by an extending piston.
-	 * @param event
+	 * record the call of an event handler.
+	 * @param type the handler.
+	 * @param start the {@link System#nanoTime()} when the handler was called.
+	 * @param jfr the event returned by {@link Tracing#beginHandler()} when the handler was called.
+	 * @param block the block of the event, may be null.
+	 * @param cancelled true if the event is cancelled afterwards.
+	 */
+	@Override
+	public void handled(final HandlerType type, final long start, final Object jfr, final Block block, final boolean cancelled) {
+		metrics.record(type, start, cancelled);
+		Tracing.handler(jfr, type, block, cancelled);
+		final TraceRecorder trace = this.trace;
+		if (trace != null) {
+			final long spent = System.nanoTime() - start;
+			if (block == null)
+				trace.record(type, -1, 0, 0, 0, 0, cancelled, spent);
+			else
+				trace.record(type, trace.worldId(block.getWorld().getName()), block.getX(), block.getY(), block.getZ(), block.getTypeId(), cancelled, spent);
+		}
+	}
+
+	/**
+	 * generate an 'info' message in the console.
+	 * @param text to show
 	 */
-	@EventHandler
-	public void onBlockPistonExtend(final BlockPistonExtendEvent event) {
-		// check if sponge(s) is/are affected, call physics if so
-		final WorldConfig wconf = getWorldConfig(event.getBlock().getWorld());
-		for (final Block i : event.getBlocks()) {
-			if (i.getTypeId() == WorldConfig.ID_SPONGE) {
-				wconf.callPhysics(i);
-				// note: Bukkit automatically calls the physics for each affected block.
-				// No need to manually remove all suckable blocks in this method.
+	private void log(final String text) {
+		this.getLogger().info(text);
+	}
+
+	@Override
+	public boolean onCommand(final CommandSender sender, final Command command, final String label, final String[] args) {
+		if (args.length == 0) return false;
+		switch (args[0].toLowerCase()) {
+		case "reload":
+			sender.sendMessage("Reloading SpongeReloaded configuration...");
+			scheduleReload(sender);
+			return true;
+		case "stats":
+			for (final String line : metrics.report(args.length > 1 ? args[1] : null))
+				sender.sendMessage(line);
+			return true;
+		case "memory":
+			long bytes = 0;
+			for (final WorldConfig i : wconf.values()) {
+				sender.sendMessage(i.describeMemory());
+				bytes += i.estimateBytes();
 			}
+			sender.sendMessage(String.format(Locale.ROOT, "%d worlds, about %.1f KiB in total", wconf.size(), bytes / 1024.0));
+			return true;
+		case "trace":
+			if (args.length > 1 && args[1].equalsIgnoreCase("start"))
+				sender.sendMessage(startTrace() ? "Recording the event trace." : "Already recording the event trace.");
+			else if (args.length > 1 && args[1].equalsIgnoreCase("stop"))
+				sender.sendMessage(stopTrace() ? "Stopped recording the event trace." : "Not recording the event trace.");
+			else
+				return false;
+			return true;
+		default:
+			return false;
 		}
 	}
 
+	/*
+	 * BEGIN EVENTHANDLER
+	 */
+
 	/**
-	 * react to a sponge that was moved by a retracting piston.
+	 * remove the world configuration if a world is getting unloaded, and drop the event handlers only it used.<br>
+	 * Nothing of the plugin refers to the world afterwards, so servers can create and unload worlds without running out of memory.
 	 * @param event
 	 */
-	@EventHandler
-	public void onBlockPistonRetract(final BlockPistonRetractEvent event) {
-		final Block oldBlock = event.getBlock().getRelative(event.getDirection(), 2);
-		final Block newBlock = event.getBlock().getRelative(event.getDirection(), 1);
-		if (!event.isSticky() || oldBlock.getTypeId() != WorldConfig.ID_SPONGE) return;
-
-		// update sponge
-		final WorldConfig wconf = getWorldConfig(event.getBlock().getWorld());
-		wconf.removeSuckables(newBlock);
-		wconf.callPhysics(newBlock);
-		wconf.callPhysics(oldBlock);
+	@EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+	public void onWorldUnload(final WorldUnloadEvent event) {
+		final String worldName = event.getWorld().getName();
+		final WorldConfig wconf = this.wconf.remove(event.getWorld().getUID());
+		if (wconf == lastConfig) lastConfig = null;
+		getSettings().forget(worldName);
+		metrics.forget(worldName);
+		if (wconf != null) {
+			wconf.flush();
+			wconf.close();
+			log("Removed configuration for world " + worldName + " from memory");
+		}
+		// the world is only removed from the list after this event
+		updateListeners(event.getWorld());
 	}
 
 	/**
-	 * react to endermen stealing a sponge.
+	 * update the registered listeners, a new world may use other features.
 	 * @param event
 	 */
-	@EventHandler
-	public void onEntityChangeBlock(final EntityChangeBlockEvent event) {
-		final Block block = event.getBlock();
-		if (block.getTypeId() == WorldConfig.ID_SPONGE)
-			getWorldConfig(block.getWorld()).callPhysics(block);
+	@EventHandler(priority = EventPriority.MONITOR)
+	public void onWorldLoad(final WorldLoadEvent event) {
+		updateListeners();
 	}
 
 	/*
@@ -0,0 +1,44 @@
+package me.steppenwiesel.spongereloaded;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter that is cheap to increment from several threads.<br>
+ * Each thread adds to one of several padded cells, the cells are only added up when the counter is read.
+ * @author Steppenwiesel
+ *
+ */
+public final class StripedCounter {
+
+	private static final int STRIPES = 8;
+	/** longs per cell, keeps the cells on different cache lines */
+	private static final int PADDING = 8;
+
+	private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+
+	/**
+	 * add to the counter.
+	 * @param n
+	 */
+	public void add(final long n) {
+		cells.getAndAdd(((int) Thread.currentThread().getId() & (STRIPES - 1)) * PADDING, n);
+	}
+
+	/**
+	 * add one to the counter.
+	 */
+	public void increment() {
+		add(1);
+	}
+
+	/**
+	 * @return the current value.
+	 */
+	public long sum() {
+		long sum = 0;
+		for (int i = 0; i < STRIPES; i++)
+			sum += cells.get(i * PADDING);
+		return sum;
+	}
+
+}
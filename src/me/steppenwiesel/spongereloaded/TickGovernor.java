@@ -0,0 +1,156 @@
+package me.steppenwiesel.spongereloaded;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Locale;
+import java.util.logging.Logger;
+
+/**
+ * Watches the tick time and holds back sponge work while the server is too slow.<br>
+ * The governor runs at the start of every tick and measures how long the main thread worked during the last one. Waiting
+ * for the next tick does not count, so light load reads well below 50 ms. If the server runs behind and does not wait at all,
+ * the time between two ticks counts instead. The tick time is smoothed over a few ticks. Above the slow limit, the governor
+ * switches to {@link Mode#REDUCED}, above the defer limit to {@link Mode#DEFERRED}. Once the tick time stays below the
+ * recovery limit for a while, it steps back one mode at a time. Work held back meanwhile is done after recovery.
+ * @author Steppenwiesel
+ *
+ */
+public final class TickGovernor implements Runnable {
+
+	/**
+	 * how much sponge work is done right away.
+	 */
+	public enum Mode {
+		/** everything is done right away */
+		NORMAL,
+		/** sponges absorb a smaller range first, physics updates are deferred */
+		REDUCED,
+		/** all new work is deferred */
+		DEFERRED
+	}
+
+	/** the weight of a new sample in the smoothed tick time, about the last five ticks count */
+	private static final double SMOOTHING = 0.2;
+	/** the time between two ticks if the server keeps up */
+	private static final long TICK_NANOS = 50000000L;
+	/** the minimum number of ticks between holding back more work */
+	private static final int SLOW_TICKS = 10;
+	/** the minimum number of ticks between stepping back up */
+	private static final int RECOVER_TICKS = 100;
+	/** the number of deferred operations done per tick after recovery */
+	private static final int REPLAY_PER_TICK = 8;
+
+	private final SpongeContext plugin;
+	private final Metrics metrics;
+	private final Logger logger;
+	private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+	/** true if the time the main thread worked can be measured */
+	private final boolean cpuTime;
+	private volatile Mode mode = Mode.NORMAL;
+	private long lastTick;
+	private long lastCpu;
+	/** the smoothed tick time in milliseconds */
+	private double tickMillis;
+	private int ticksInMode;
+
+	public TickGovernor(final SpongeContext plugin) {
+		this.plugin = plugin;
+		this.metrics = plugin.getMetrics();
+		this.logger = plugin.getLogger();
+		boolean cpuTime = threads.isCurrentThreadCpuTimeSupported();
+		if (cpuTime && !threads.isThreadCpuTimeEnabled()) {
+			try {
+				threads.setThreadCpuTimeEnabled(true);
+			} catch (final UnsupportedOperationException | SecurityException e) {
+				cpuTime = false;
+			}
+		}
+		this.cpuTime = cpuTime;
+	}
+
+	@Override
+	public void run() {
+		final long now = System.nanoTime();
+		final long cpu = cpuTime ? threads.getCurrentThreadCpuTime() : 0;
+		if (lastTick != 0) {
+			final long wall = now - lastTick;
+			// a server that keeps up waits for the rest of the tick, one that runs behind does not wait at all
+			final long worked = !cpuTime || wall > TICK_NANOS + TICK_NANOS / 10 ? wall : cpu - lastCpu;
+			tickMillis += SMOOTHING * (worked / 1e6 - tickMillis);
+		}
+		lastTick = now;
+		lastCpu = cpu;
+		ticksInMode++;
+
+		final Settings settings = plugin.getSettings();
+		final Mode next = next(settings);
+		if (next != mode) {
+			logger.info(String.format(Locale.ROOT, "Tick time %.1f ms, switching from %s to %s mode.", tickMillis, mode, next));
+			mode = next;
+			ticksInMode = 0;
+			metrics.governorChanged(next.ordinal());
+		}
+		if (mode == Mode.NORMAL)
+			plugin.replayDeferred(REPLAY_PER_TICK);
+	}
+
+	/**
+	 * @return the mode for the current tick time.
+	 */
+	private Mode next(final Settings settings) {
+		if (!settings.isGovernorEnabled()) return Mode.NORMAL;
+		final Mode target;
+		if (tickMillis > settings.getGovernorDeferMillis())
+			target = Mode.DEFERRED;
+		else if (tickMillis > settings.getGovernorSlowMillis())
+			target = Mode.REDUCED;
+		else if (tickMillis < settings.getGovernorRecoverMillis())
+			target = Mode.NORMAL;
+		else
+			// between the limits nothing new is held back, and deferring everything is not needed anymore
+			target = mode == Mode.NORMAL ? Mode.NORMAL : Mode.REDUCED;
+		if (target.ordinal() > mode.ordinal() && ticksInMode >= SLOW_TICKS) return target;
+		if (target.ordinal() < mode.ordinal() && ticksInMode >= RECOVER_TICKS) return Mode.values()[mode.ordinal() - 1];
+		return mode;
+	}
+
+	/**
+	 * @return the current mode.
+	 */
+	public Mode getMode() {
+		return mode;
+	}
+
+	/**
+	 * @return the smoothed tick time in milliseconds.
+	 */
+	public double getTickMillis() {
+		return tickMillis;
+	}
+
+	/**
+	 * get the radius to absorb suckable blocks in right away.
+	 * @param radius the configured radius.
+	 * @param reduced the radius configured for busy times, 0 for half the radius.
+	 * @return the radius to use now.
+	 */
+	public int effectiveRadius(final int radius, final int reduced) {
+		if (mode == Mode.NORMAL) return radius;
+		return Math.max(1, Math.min(radius, reduced > 0 ? reduced : radius / 2));
+	}
+
+	/**
+	 * @return true if new absorptions should be deferred.
+	 */
+	public boolean isDeferringAbsorption() {
+		return mode == Mode.DEFERRED;
+	}
+
+	/**
+	 * @return true if new physics updates should be deferred.
+	 */
+	public boolean isDeferringPhysics() {
+		return mode != Mode.NORMAL;
+	}
+
+}
@@ -0,0 +1,232 @@
+package me.steppenwiesel.spongereloaded;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * <p>
+ * Reads trace files written by {@link TraceRecorder}. Run it from the plugin jar:
+ * </p>
+ * <pre>
+ * java -cp SpongeReloaded.jar me.steppenwiesel.spongereloaded.TraceReader dump|stats &lt;file&gt;...
+ * </pre>
+ * <p>
+ * {@code dump} prints one line per event, {@code stats} prints the calls, cancellations and time spent per handler
+ * and the blocks with the most events.
+ * </p>
+ * @author Steppenwiesel
+ *
+ */
+public final class TraceReader {
+
+	private static final int TOP_BLOCKS = 10;
+
+	private final DataInputStream in;
+	private final List<String> worldNames = new ArrayList<>();
+	private final long startMillis;
+	private long time;
+	private int x, y, z;
+
+	// the current event
+	private HandlerType type;
+	private boolean cancelled;
+	private String world;
+	private int blockId;
+	private long spent;
+
+	/**
+	 * open a trace and read its header.
+	 * @param input
+	 * @throws IOException if this is not a trace file.
+	 */
+	public TraceReader(final InputStream input) throws IOException {
+		in = new DataInputStream(new BufferedInputStream(input));
+		if (in.readInt() != TraceRecorder.MAGIC) throw new IOException("Not a trace file");
+		final int version = in.readInt();
+		if (version != TraceRecorder.VERSION) throw new IOException("Unsupported trace version " + version);
+		startMillis = in.readLong();
+	}
+
+	/**
+	 * read the next event.
+	 * @return false at the end of the trace.
+	 * @throws IOException
+	 */
+	public boolean next() throws IOException {
+		while (true) {
+			final int tag = in.read();
+			if (tag < 0) return false;
+			try {
+				if (tag == TraceRecorder.TAG_WORLD) {
+					final int id = (int) readVarint();
+					final byte[] name = new byte[(int) readVarint()];
+					in.readFully(name);
+					while (worldNames.size() <= id)
+						worldNames.add(null);
+					worldNames.set(id, new String(name, TraceRecorder.UTF8));
+					continue;
+				}
+				final HandlerType[] types = HandlerType.values();
+				final int ordinal = tag & ~TraceRecorder.CANCELLED;
+				if (ordinal >= types.length) throw new IOException("Unknown handler " + ordinal);
+				type = types[ordinal];
+				cancelled = (tag & TraceRecorder.CANCELLED) != 0;
+				time += unzigzag(readVarint());
+				final int worldId = (int) readVarint() - 1;
+				world = worldId >= 0 && worldId < worldNames.size() ? worldNames.get(worldId) : null;
+				x += (int) unzigzag(readVarint());
+				y += (int) unzigzag(readVarint());
+				z += (int) unzigzag(readVarint());
+				blockId = (int) readVarint();
+				spent = readVarint();
+				return true;
+			} catch (final EOFException e) {
+				// the server stopped in the middle of a record
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * @return when the trace started.
+	 */
+	public long getStartMillis() {
+		return startMillis;
+	}
+
+	/**
+	 * @return the nanoseconds between the first and the current event of the trace.
+	 */
+	public long getTime() {
+		return time;
+	}
+
+	public HandlerType getType() {
+		return type;
+	}
+
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+	/**
+	 * @return the world name, null if unknown.
+	 */
+	public String getWorld() {
+		return world;
+	}
+
+	public int getX() {
+		return x;
+	}
+
+	public int getY() {
+		return y;
+	}
+
+	public int getZ() {
+		return z;
+	}
+
+	public int getBlockId() {
+		return blockId;
+	}
+
+	/**
+	 * @return the nanoseconds spent in the handler.
+	 */
+	public long getSpent() {
+		return spent;
+	}
+
+	public void close() throws IOException {
+		in.close();
+	}
+
+	private long readVarint() throws IOException {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			final int b = in.readUnsignedByte();
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) return value;
+		}
+		throw new IOException("Malformed varint");
+	}
+
+	private static long unzigzag(final long value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	public static void main(final String[] args) throws IOException {
+		if (args.length < 2 || !("dump".equals(args[0]) || "stats".equals(args[0]))) {
+			System.err.println("Usage: TraceReader dump|stats <file>...");
+			System.exit(1);
+		}
+		final boolean dump = "dump".equals(args[0]);
+		final PrintStream out = System.out;
+		final Map<HandlerType, long[]> handlers = new HashMap<>();
+		final Map<String, long[]> blocks = new HashMap<>();
+		for (int i = 1; i < args.length; i++) {
+			final TraceReader reader = new TraceReader(new FileInputStream(new File(args[i])));
+			try {
+				if (dump) out.println("# " + args[i] + " started " + new Date(reader.getStartMillis()));
+				while (reader.next()) {
+					if (dump) {
+						out.println(reader.getTime() + " " + reader.getType() + (reader.isCancelled() ? " cancelled " : " ")
+								+ reader.getWorld() + " " + reader.getX() + "," + reader.getY() + "," + reader.getZ()
+								+ " id=" + reader.getBlockId() + " " + reader.getSpent() + "ns");
+						continue;
+					}
+					long[] handler = handlers.get(reader.getType());
+					if (handler == null) handlers.put(reader.getType(), handler = new long[4]);
+					handler[0]++;
+					if (reader.isCancelled()) handler[1]++;
+					handler[2] += reader.getSpent();
+					handler[3] = Math.max(handler[3], reader.getSpent());
+					final String block = reader.getWorld() + " " + reader.getX() + "," + reader.getY() + "," + reader.getZ();
+					long[] events = blocks.get(block);
+					if (events == null) blocks.put(block, events = new long[2]);
+					events[0]++;
+					events[1] += reader.getSpent();
+				}
+			} finally {
+				reader.close();
+			}
+		}
+		if (dump) return;
+		out.println("handler                  calls  cancelled     avg ns     max ns");
+		for (final HandlerType type : HandlerType.values()) {
+			final long[] handler = handlers.get(type);
+			if (handler == null) continue;
+			out.println(String.format("%-20s %9d %10d %10d %10d", type, handler[0], handler[1], handler[2] / handler[0], handler[3]));
+		}
+		final List<Entry<String, long[]>> hottest = new ArrayList<>(blocks.entrySet());
+		Collections.sort(hottest, new Comparator<Entry<String, long[]>>() {
+			@Override
+			public int compare(final Entry<String, long[]> a, final Entry<String, long[]> b) {
+				return Long.compare(b.getValue()[0], a.getValue()[0]);
+			}
+		});
+		out.println();
+		out.println("block                                 events   total ns");
+		for (int i = 0; i < Math.min(TOP_BLOCKS, hottest.size()); i++) {
+			final Entry<String, long[]> entry = hottest.get(i);
+			out.println(String.format("%-34s %9d %10d", entry.getKey(), entry.getValue()[0], entry.getValue()[1]));
+		}
+	}
+
+}
@@ -0,0 +1,323 @@
+package me.steppenwiesel.spongereloaded;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * <p>
+ * Records every handled event into a preallocated ring buffer. A background thread writes the buffer to trace files,
+ * so recording itself never allocates and never blocks. Events are dropped (and counted) if the buffer is full.
+ * </p>
+ * <p>
+ * Trace files start with a header ({@code int magic 'SPTR', int version, long epoch millis}), followed by records.
+ * A record is a tag byte (handler ordinal, plus 64 if the event got cancelled), then as varints: the nanoseconds since the
+ * previous record (zigzag), the world ID, the x, y and z distance to the previous record (zigzag), the block ID and the
+ * nanoseconds spent in the handler. Tag {@value #TAG_WORLD} defines a world ID: varint ID, varint length, UTF-8 name.
+ * Use {@link TraceReader} to read them.
+ * </p>
+ * @author Steppenwiesel
+ *
+ */
+public final class TraceRecorder implements Runnable {
+
+	static final int MAGIC = 0x53505452;
+	static final int VERSION = 1;
+	static final int TAG_WORLD = 0xFF;
+	static final int CANCELLED = 0x40;
+	static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/** how long the writer sleeps when the buffer is empty */
+	private static final long IDLE_NANOS = 50000000L;
+
+	private final int mask;
+	private final long[] times;
+	private final int[] infos;
+	private final int[] worlds;
+	private final int[] xs;
+	private final int[] ys;
+	private final int[] zs;
+	private final int[] blockIds;
+	private final long[] nanos;
+	/** for every slot, the sequence number + 1 of the record in it once it is complete */
+	private final AtomicLongArray published;
+	private final AtomicLong claimed = new AtomicLong();
+	private final AtomicLong consumed = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+
+	private final ConcurrentMap<String, Integer> worldIds = new ConcurrentHashMap<>();
+	private final List<String> worldNames = new CopyOnWriteArrayList<>();
+
+	private final File folder;
+	private final long maxFileBytes;
+	private final int maxFiles;
+	private final Logger logger;
+	private final Thread thread;
+	private volatile boolean running = true;
+
+	// writer thread state
+	private final ByteBuffer out = ByteBuffer.allocateDirect(1 << 20);
+	private FileChannel channel;
+	private long fileBytes;
+	private int worldsWritten;
+	private long lastTime;
+	private int lastX, lastY, lastZ;
+
+	/**
+	 * start recording.
+	 * @param folder where to put the trace files.
+	 * @param capacity the number of events the buffer can hold, rounded up to a power of two.
+	 * @param maxFileBytes start a new file when the current one is this big.
+	 * @param maxFiles delete the oldest files when there are more than this.
+	 * @param logger where to report errors.
+	 */
+	public TraceRecorder(final File folder, final int capacity, final long maxFileBytes, final int maxFiles, final Logger logger) {
+		final int size = Integer.highestOneBit(Math.max(1024, capacity - 1)) << 1;
+		mask = size - 1;
+		times = new long[size];
+		infos = new int[size];
+		worlds = new int[size];
+		xs = new int[size];
+		ys = new int[size];
+		zs = new int[size];
+		blockIds = new int[size];
+		nanos = new long[size];
+		published = new AtomicLongArray(size);
+		this.folder = folder;
+		this.maxFileBytes = maxFileBytes;
+		this.maxFiles = maxFiles;
+		this.logger = logger;
+		thread = new Thread(this, "SpongeReloaded trace writer");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * get the ID of a world in the trace. Call this once per world and keep the ID.
+	 * @param worldName
+	 * @return the ID.
+	 */
+	public int worldId(final String worldName) {
+		Integer id = worldIds.get(worldName);
+		if (id == null) {
+			synchronized (worldNames) {
+				id = worldIds.get(worldName);
+				if (id == null) {
+					id = worldNames.size();
+					worldNames.add(worldName);
+					worldIds.put(worldName, id);
+				}
+			}
+		}
+		return id;
+	}
+
+	/**
+	 * record a handled event. Does not allocate and never blocks.
+	 * @param type the handler.
+	 * @param world the world ID from {@link #worldId(String)}, -1 if unknown.
+	 * @param x
+	 * @param y
+	 * @param z
+	 * @param blockId
+	 * @param cancelled
+	 * @param spent the nanoseconds spent in the handler.
+	 */
+	public void record(final HandlerType type, final int world, final int x, final int y, final int z, final int blockId, final boolean cancelled, final long spent) {
+		long seq;
+		do {
+			seq = claimed.get();
+			if (seq - consumed.get() > mask) {
+				dropped.incrementAndGet();
+				return;
+			}
+		} while (!claimed.compareAndSet(seq, seq + 1));
+		final int slot = (int) seq & mask;
+		times[slot] = System.nanoTime();
+		infos[slot] = type.ordinal() | (cancelled ? CANCELLED : 0);
+		worlds[slot] = world;
+		xs[slot] = x;
+		ys[slot] = y;
+		zs[slot] = z;
+		blockIds[slot] = blockId;
+		nanos[slot] = spent;
+		published.lazySet(slot, seq + 1);
+	}
+
+	/**
+	 * @return the number of events that did not fit into the buffer.
+	 */
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	/**
+	 * @return the number of events recorded so far.
+	 */
+	public long getRecorded() {
+		return claimed.get();
+	}
+
+	/**
+	 * stop recording, write the remaining events and close the file.
+	 */
+	public void close() {
+		running = false;
+		// an interrupt would close the file channel in the middle of a write
+		LockSupport.unpark(thread);
+		try {
+			thread.join(5000);
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (true) {
+				final boolean wasRunning = running;
+				final boolean wrote = drain();
+				if (!wasRunning) break;
+				// woken up early by close, to drain once more
+				if (!wrote) LockSupport.parkNanos(this, IDLE_NANOS);
+			}
+			flush();
+		} catch (final IOException e) {
+			logger.log(Level.WARNING, "Could not write event trace, recording stopped", e);
+			running = false;
+		} finally {
+			closeFile();
+		}
+	}
+
+	/**
+	 * write all complete records.
+	 * @return true if there was anything to write.
+	 */
+	private boolean drain() throws IOException {
+		long seq = consumed.get();
+		boolean wrote = false;
+		while (published.get((int) seq & mask) == seq + 1) {
+			final int slot = (int) seq & mask;
+			encode(slot);
+			seq++;
+			consumed.lazySet(seq);
+			wrote = true;
+		}
+		flush();
+		return wrote;
+	}
+
+	private void encode(final int slot) throws IOException {
+		if (channel == null || fileBytes >= maxFileBytes) openFile(times[slot]);
+		final int world = worlds[slot];
+		while (world >= worldsWritten && worldsWritten < worldNames.size()) {
+			final byte[] name = worldNames.get(worldsWritten).getBytes(UTF8);
+			ensure(11 + name.length);
+			out.put((byte) TAG_WORLD);
+			putVarint(worldsWritten);
+			putVarint(name.length);
+			out.put(name);
+			worldsWritten++;
+		}
+		ensure(64);
+		out.put((byte) infos[slot]);
+		putVarint(zigzag(times[slot] - lastTime));
+		putVarint(world + 1);
+		putVarint(zigzag(xs[slot] - lastX));
+		putVarint(zigzag(ys[slot] - lastY));
+		putVarint(zigzag(zs[slot] - lastZ));
+		putVarint(blockIds[slot]);
+		putVarint(nanos[slot]);
+		lastTime = times[slot];
+		lastX = xs[slot];
+		lastY = ys[slot];
+		lastZ = zs[slot];
+	}
+
+	/**
+	 * start a new trace file.
+	 * @param startTime the {@link System#nanoTime()} of its first record.
+	 */
+	private void openFile(final long startTime) throws IOException {
+		flush();
+		closeFile();
+		if (!folder.isDirectory() && !folder.mkdirs()) throw new IOException("Could not create folder " + folder.getPath());
+		final String name = "trace-" + new SimpleDateFormat("yyyyMMdd-HHmmss-SSS").format(new Date()) + ".spt";
+		channel = FileChannel.open(new File(folder, name).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		fileBytes = 0;
+		worldsWritten = 0;
+		lastTime = startTime;
+		lastX = lastY = lastZ = 0;
+		out.putInt(MAGIC);
+		out.putInt(VERSION);
+		out.putLong(System.currentTimeMillis());
+		deleteOldFiles();
+	}
+
+	private void deleteOldFiles() {
+		final File[] files = folder.listFiles();
+		if (files == null) return;
+		// the names sort by date
+		Arrays.sort(files);
+		int traces = 0;
+		for (final File file : files)
+			if (file.getName().endsWith(".spt")) traces++;
+		for (final File file : files) {
+			if (traces <= maxFiles) break;
+			if (!file.getName().endsWith(".spt")) continue;
+			file.delete();
+			traces--;
+		}
+	}
+
+	private void closeFile() {
+		if (channel == null) return;
+		try {
+			channel.close();
+		} catch (final IOException e) {
+			// nothing left to write
+		}
+		channel = null;
+	}
+
+	private void ensure(final int bytes) throws IOException {
+		if (out.remaining() < bytes) flush();
+	}
+
+	private void flush() throws IOException {
+		out.flip();
+		while (out.hasRemaining() && channel != null)
+			fileBytes += channel.write(out);
+		out.clear();
+	}
+
+	private void putVarint(long value) {
+		while ((value & ~0x7FL) != 0) {
+			out.put((byte) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		out.put((byte) value);
+	}
+
+	private static long zigzag(final long value) {
+		return (value << 1) ^ (value >> 63);
+	}
+
+}
@@ -0,0 +1,101 @@
+package me.steppenwiesel.spongereloaded;
+
+import org.bukkit.World;
+import org.bukkit.block.Block;
+
+/**
+ * Emits JDK Flight Recorder events for scans, block writes and event handlers.<br>
+ * On JVMs without a flight recorder, and while the events are not enabled in a recording, every method returns after a single check.
+ * @author Steppenwiesel
+ *
+ */
+public final class Tracing {
+
+	/** true if the JVM has a flight recorder. {@link JfrEvents} must not be touched otherwise */
+	private static final boolean AVAILABLE = isAvailable();
+
+	private Tracing() {
+	}
+
+	private static boolean isAvailable() {
+		try {
+			Class.forName("jdk.jfr.Event");
+			return true;
+		} catch (final ClassNotFoundException | LinkageError e) {
+			return false;
+		}
+	}
+
+	/**
+	 * @return true if scan events are recorded at the moment.
+	 */
+	public static boolean isScanEnabled() {
+		return AVAILABLE && JfrEvents.isScanEnabled();
+	}
+
+	/**
+	 * start a scan event. Call this when the scan starts, so the event lines up with the rest of the recording.
+	 * @return the started event, or null if scan events are not recorded.
+	 */
+	public static Object beginScan() {
+		return isScanEnabled() ? JfrEvents.beginScan() : null;
+	}
+
+	/**
+	 * emit a scan event.
+	 * @param event the event returned by {@link #beginScan()}, nothing is emitted if it is null.
+	 * @param scan the name of the scan.
+	 * @param center the block the scan was done around.
+	 * @param radius the radius of the scan.
+	 * @param blocksVisited
+	 * @param blocksModified
+	 */
+	public static void scan(final Object event, final String scan, final Block center, final int radius, final long blocksVisited, final long blocksModified) {
+		if (event == null) return;
+		JfrEvents.scan(event, scan, center.getWorld().getName(), center.getX(), center.getY(), center.getZ(), radius, blocksVisited, blocksModified);
+	}
+
+	/**
+	 * start an event handler event. Call this when the handler is called.
+	 * @return the started event, or null if handler events are not recorded.
+	 */
+	public static Object beginHandler() {
+		return AVAILABLE && JfrEvents.isHandlerEnabled() ? JfrEvents.beginHandler() : null;
+	}
+
+	/**
+	 * emit an event handler event.
+	 * @param event the event returned by {@link #beginHandler()}, nothing is emitted if it is null.
+	 * @param type the handler.
+	 * @param block the block of the event, may be null.
+	 * @param cancelled true if the event is cancelled afterwards.
+	 */
+	public static void handler(final Object event, final HandlerType type, final Block block, final boolean cancelled) {
+		if (event == null) return;
+		if (block == null)
+			JfrEvents.handler(event, type.getMethod(), null, 0, 0, 0, cancelled);
+		else
+			JfrEvents.handler(event, type.getMethod(), block.getWorld().getName(), block.getX(), block.getY(), block.getZ(), cancelled);
+	}
+
+	/**
+	 * start a block writes event. Call this when the changes start.
+	 * @return the started event, or null if block writes events are not recorded.
+	 */
+	public static Object beginBlockWrites() {
+		return AVAILABLE && JfrEvents.isBlockWritesEnabled() ? JfrEvents.beginBlockWrites() : null;
+	}
+
+	/**
+	 * emit a block writes event.
+	 * @param event the event returned by {@link #beginBlockWrites()}, nothing is emitted if it is null.
+	 * @param world
+	 * @param blocksModified the number of changed blocks.
+	 * @param blocksQueued the number of changes still waiting.
+	 */
+	public static void blockWrites(final Object event, final World world, final int blocksModified, final int blocksQueued) {
+		if (event == null) return;
+		JfrEvents.blockWrites(event, world.getName(), blocksModified, blocksQueued);
+	}
+
+}
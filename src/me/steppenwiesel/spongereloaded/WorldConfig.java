@@ -1,10 +1,22 @@
 package me.steppenwiesel.spongereloaded;
 
+import java.io.File;
+import java.util.Locale;
+
+import org.bukkit.Chunk;
 import org.bukkit.Material;
 import org.bukkit.World;
 import org.bukkit.block.Block;
-import org.bukkit.configuration.file.FileConfiguration;
+import org.bukkit.block.BlockFace;
 
+/**
+ * The sponges and settings of one world.<br>
+ * Event handlers may run on several threads at once on region-threaded servers. The settings are immutable and
+ * replaced as a whole. The index, range checks, flow frontier and held back work of a world are guarded by the lock
+ * of its configuration object, the {@link BlockWriteQueue} has a lock of its own. Blocks are looked at and changed
+ * outside of both: a range check collects the known sponges under the lock, looks at them without it, and takes the
+ * lock again to remember the result.
+ */
 public class WorldConfig {
 
 	public static final int ID_WATER = Material.WATER.getId();
@@ -13,35 +25,120 @@ public class WorldConfig {
 	public static final int ID_STATIONARY_LAVA = Material.STATIONARY_LAVA.getId();
 	public static final int ID_FIRE = Material.FIRE.getId();
 	public static final int ID_SPONGE = Material.SPONGE.getId();
+	/** the block a piston moves, for the two ticks it is on its way */
+	public static final int ID_PISTON_MOVING_PIECE = Material.PISTON_MOVING_PIECE.getId();
+
+	/** the offsets to the six neighbors of a block */
+	private static final int[] FACE_X = { 1, -1, 0, 0, 0, 0 };
+	private static final int[] FACE_Y = { 0, 0, 1, -1, 0, 0 };
+	private static final int[] FACE_Z = { 0, 0, 0, 0, 1, -1 };
+	/** how many ticks moved sponges are remembered at least, a piston takes two ticks to move a block */
+	private static final int MOVED_TICKS = 4;
+	/** how many sponges of each kind of work the {@link TickGovernor} holds back at most, more are done right away */
+	private static final int MAX_DEFERRED = 1 << 14;
+	/** the buffers of the thread doing a range or block scan */
+	private static final ThreadLocal<Scratch> SCRATCH = new ThreadLocal<Scratch>() {
+		@Override
+		protected Scratch initialValue() {
+			return new Scratch();
+		}
+	};
 
 	private final World world;
-	private boolean enabled = true;
-	private int range = 2;
-	private boolean soakWater = true;
-	private boolean soakLava = false;
-	private boolean soakFire = false;
+	/** the settings of this world, replaced when the configuration is reloaded */
+	private volatile WorldPolicy policy;
+	/** the regions of this world that override its settings, replaced together with {@link #policy} */
+	private volatile RegionIndex regions;
+
+	private final SpongeContext plugin;
+	private final SpongeIndex sponges;
+	private final BlockWriteQueue writes;
+	private final Metrics.WorldMetrics metrics;
+	private final DryZoneSweeper sweeper;
+	/** sponges whose absorption was held back by the {@link TickGovernor} */
+	private final LongQueue deferredAbsorptions = new LongQueue();
+	private final LongHashSet deferredAbsorptionSet = new LongHashSet();
+	/** sponges whose physics updates were held back by the {@link TickGovernor} */
+	private final LongQueue deferredPhysics = new LongQueue();
+	private final LongHashSet deferredPhysicsSet = new LongHashSet();
+	/** the blocks within the radius the {@link TickGovernor} reduced the range to */
+	private volatile OffsetTable reducedOffsets;
+	/** the blocks within the largest range of the world and its regions, searched for sponges if there are regions */
+	private volatile OffsetTable searchOffsets;
+	/** the range checks of the current tick */
+	private final RangeMemo rangeMemo = new RangeMemo();
+	/** the new positions of the sponges moved by pistons in the last {@link #MOVED_TICKS} ticks, and the ones before */
+	private LongHashSet moved = new LongHashSet(), movedBefore = new LongHashSet();
+	private int movedTicks;
+	/** the blocks flows were kept out of */
+	private final FlowFrontier frontier;
+	/** counts the changes that outdate range checks, a check that started before one is not remembered */
+	private int changes;
 
-	private final SpongeReloadedPlugin plugin;
+	/**
+	 * The buffers of one thread, reused by every scan it does.
+	 */
+	private static final class Scratch {
+		/** the blocks found by a scan, queued at once afterwards */
+		final LongQueue blocks = new LongQueue();
+		/** the blocks a flood fill looks at next */
+		final LongQueue floodQueue = new LongQueue();
+		/** the blocks a flood fill looked at already */
+		final LongHashSet floodVisited = new LongHashSet();
+		final SpongeIndex.Lookup lookup = new SpongeIndex.Lookup();
+	}
 
-	public WorldConfig(final World world, final SpongeReloadedPlugin plugin) {
+	public WorldConfig(final World world, final SpongeContext plugin) {
 		this.plugin = plugin;
 		this.world = world;
 		final String wn = world.getName();
-		final FileConfiguration conf = this.plugin.getConfig();
+		final RegionStore store = plugin.getSettings().isPersistIndex()
+				? new RegionStore(new File(plugin.getDataFolder(), "index" + File.separator + wn), world.getWorldFolder(), plugin.getLogger())
+				: null;
+		this.metrics = plugin.getMetrics().world(wn);
+		this.sponges = new SpongeIndex(world, plugin.getChunkScanner(), store, metrics.blocksScanned, this);
+		this.writes = new BlockWriteQueue(this, metrics.blocksWritten);
+		this.sweeper = new DryZoneSweeper(this);
 		// read settings
-		enabled   = conf.getBoolean("worlds." + wn + ".enabled"   , conf.getBoolean("enabled"   ));
-		soakWater = conf.getBoolean("worlds." + wn + ".soak_water", conf.getBoolean("soak_water"));
-		soakLava  = conf.getBoolean("worlds." + wn + ".soak_lava" , conf.getBoolean("soak_lava" ));
-		soakFire  = conf.getBoolean("worlds." + wn + ".soak_fire" , conf.getBoolean("soak_fire" ));
+		this.policy = plugin.getSettings().policy(wn);
+		this.regions = plugin.getSettings().regions(wn);
+		this.frontier = new FlowFrontier(policy.getSettings().getFlowFrontierTicks());
+	}
 
-		range = conf.getInt("worlds." + wn + ".radius", 0);
-		if (range <= 0) range = conf.getInt("radius");
-		if (range <= 0) range = 2;
+	/**
+	 * get the settings of this world, picking up a reloaded configuration.
+	 * @return the settings.
+	 */
+	private WorldPolicy policy() {
+		WorldPolicy policy = this.policy;
+		final Settings settings = plugin.getSettings();
+		if (policy.getSettings() != settings) {
+			synchronized (this) {
+				policy = this.policy;
+				if (policy.getSettings() != settings) {
+					regions = settings.regions(world.getName());
+					this.policy = policy = settings.policy(world.getName());
+					// the range may have changed
+					rangeMemo.clear();
+					frontier.clear();
+					changes++;
+				}
+			}
+		}
+		return policy;
+	}
 
-		if (!(soakWater || soakLava || soakFire)) enabled = false;
-		soakWater = enabled && soakWater;
-		soakLava = enabled && soakLava;
-		soakFire = enabled && soakFire;
+	/**
+	 * get the settings at a block, which are the ones of the world unless a region overrides them.
+	 * @param block
+	 * @return the settings.
+	 */
+	private WorldPolicy policy(final Block block) {
+		final WorldPolicy policy = policy();
+		final RegionIndex regions = this.regions;
+		// worlds without regions do not need a lookup
+		if (regions.isEmpty()) return policy;
+		return regions.policyAt(block.getX(), block.getY(), block.getZ(), policy);
 	}
 
 	/**
@@ -50,20 +147,15 @@ public class WorldConfig {
 	 * @return
 	 */
 	public boolean isSuckable(final Block block) {
-		if (!enabled) return false;
-		final int id = block.getTypeId();
-		if (soakWater && (id == ID_WATER || id == ID_STATIONARY_WATER)) return true;
-		if (soakLava && (id == ID_LAVA || id == ID_STATIONARY_LAVA)) return true;
-		if (soakFire && id == ID_FIRE) return true;
-		return false;
+		return policy(block).isSuckable(block.getTypeId());
 	}
 
 	/**
-	 * check whether sponges are enabled in this world.
+	 * check whether sponges are enabled in this world, or in one of its regions.
 	 * @return
 	 */
 	public boolean isEnabled() {
-		return enabled;
+		return policy().isEnabled() || regions.isAnyEnabled();
 	}
 
 	/**
@@ -71,7 +163,7 @@ public class WorldConfig {
 	 * @return true if so, false otherwise.
 	 */
 	public boolean isWaterSuckable() {
-		return enabled && soakWater;
+		return policy().isWaterSuckable();
 	}
 
 	/**
@@ -79,7 +171,7 @@ public class WorldConfig {
 	 * @return true if so, false otherwise.
 	 */
 	public boolean isLavaSuckable() {
-		return enabled && soakLava;
+		return policy().isLavaSuckable();
 	}
 
 	/**
@@ -87,7 +179,41 @@ public class WorldConfig {
 	 * @return true if so, false otherwise.
 	 */
 	public boolean isFireSuckable() {
-		return enabled && soakFire;
+		return policy().isFireSuckable();
+	}
+
+	/**
+	 * check whether sponges can soak up fire at this block.
+	 * @param block
+	 * @return true if so, false otherwise.
+	 */
+	public boolean isFireSuckable(final Block block) {
+		return policy(block).isFireSuckable();
+	}
+
+	/**
+	 * get the compiled settings of this world.
+	 * @return the settings.
+	 */
+	public WorldPolicy getPolicy() {
+		return policy();
+	}
+
+	/**
+	 * get the settings at a block, which are the ones of the world unless a region overrides them.
+	 * @param block
+	 * @return the settings.
+	 */
+	public WorldPolicy getPolicy(final Block block) {
+		return policy(block);
+	}
+
+	/**
+	 * get the sweeper that keeps the ranges of the sponges in this world dry. Callers must hold the lock of this world.
+	 * @return the sweeper.
+	 */
+	public DryZoneSweeper getSweeper() {
+		return sweeper;
 	}
 
 	/**
@@ -99,18 +225,443 @@ public class WorldConfig {
 	}
 
 	/**
-	 * remove suckable blocks within the range of this block.
+	 * get the index of the sponges in this world. Callers must hold the lock of this world.
+	 * @return the index.
+	 */
+	public SpongeIndex getSpongeIndex() {
+		return sponges;
+	}
+
+	/**
+	 * get the measurements of this world.
+	 * @return the measurements.
+	 */
+	public Metrics.WorldMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * get the queue of block changes waiting to be done in this world. The queue is thread-safe.
+	 * @return the queue.
+	 */
+	public BlockWriteQueue getWriteQueue() {
+		return writes;
+	}
+
+	/**
+	 * index the sponges of a freshly loaded chunk.
+	 * @param chunk
+	 */
+	public void chunkLoaded(final Chunk chunk) {
+		final Object ticket;
+		synchronized (this) {
+			ticket = sponges.load(chunk);
+			// flows may have started before the chunk was loaded
+			sweeper.markChanged(chunk.getX(), chunk.getZ());
+		}
+		if (ticket != null) sponges.submit(chunk, ticket);
+	}
+
+	/**
+	 * forget everything about an unloaded chunk.
+	 * @param chunk
+	 */
+	public void chunkUnloaded(final Chunk chunk) {
+		synchronized (this) {
+			sponges.evict(chunk);
+			frontier.evict(BlockKey.chunk(chunk.getX(), chunk.getZ()));
+			sweeper.evict(chunk.getX(), chunk.getZ());
+			changes++;
+		}
+		writes.evict(chunk.getX(), chunk.getZ());
+	}
+
+	/**
+	 * do queued block changes.
+	 * @param maxBlocks the maximum number of block changes.
+	 * @param deadline the {@link System#nanoTime()} to stop at.
+	 * @return the number of blocks changed.
+	 * @see BlockWriteQueue#drain(int, long)
+	 */
+	public int drain(final int maxBlocks, final long deadline) {
+		return writes.drain(maxBlocks, deadline);
+	}
+
+	/**
+	 * do all queued block changes now.
+	 */
+	public void flush() {
+		writes.flush();
+	}
+
+	/**
+	 * check the ranges of the sponges near players for suckable blocks.
+	 * @return the number of blocks looked at.
+	 * @see DryZoneSweeper#sweep(int, long[], int, int)
+	 */
+	public int sweep(final int budget, final long[] players, final int playerCount, final int distance) {
+		return sweeper.sweep(budget, players, playerCount, distance);
+	}
+
+	/**
+	 * write the sponge index to disk. This world must not be used afterwards.
+	 */
+	public synchronized void close() {
+		sponges.close();
+		deferredAbsorptions.clear();
+		deferredAbsorptionSet.clear();
+		deferredPhysics.clear();
+		deferredPhysicsSet.clear();
+	}
+
+	/**
+	 * describe how much this world keeps in memory.
+	 * @return a line for the memory report.
+	 */
+	public String describeMemory() {
+		final int chunks, pending, size, deferred;
+		synchronized (this) {
+			chunks = sponges.chunkCount();
+			pending = sponges.pendingCount();
+			size = sponges.size();
+			deferred = deferredAbsorptions.size() + deferredPhysics.size();
+		}
+		return String.format(Locale.ROOT, "world %s: %d chunks indexed, %d being scanned, %d sponges, %d block changes queued, %d deferred, about %.1f KiB",
+				world.getName(), chunks, pending, size, writes.size(), deferred, estimateBytes() / 1024.0);
+	}
+
+	/**
+	 * @return the approximate number of bytes this world keeps in memory.
+	 */
+	public long estimateBytes() {
+		final long bytes;
+		synchronized (this) {
+			bytes = sponges.estimateBytes() + sweeper.estimateBytes() + rangeMemo.estimateBytes() + frontier.estimateBytes()
+					+ deferredAbsorptions.estimateBytes() + deferredAbsorptionSet.estimateBytes()
+					+ deferredPhysics.estimateBytes() + deferredPhysicsSet.estimateBytes();
+		}
+		return bytes + writes.estimateBytes();
+	}
+
+	/**
+	 * remember a sponge that appeared at this block.
+	 * @param block
+	 * @return true if the sponge was not known before.
+	 */
+	public synchronized boolean addSponge(final Block block) {
+		if (!sponges.add(block)) return false;
+		rangeMemo.clear();
+		changes++;
+		sweeper.markChanged(block.getX() >> 4, block.getZ() >> 4);
+		return true;
+	}
+
+	/**
+	 * forget a sponge that disappeared from this block.
+	 * @param block
+	 */
+	public synchronized void removeSponge(final Block block) {
+		sponges.remove(block);
+		rangeMemo.clear();
+		changes++;
+		frontier.invalidate(block.getX(), block.getZ(), maxRange());
+		sweeper.markChanged(block.getX() >> 4, block.getZ() >> 4);
+		writes.spongeRemoved();
+	}
+
+	/**
+	 * forget the range checks of this tick. Called once per tick.
+	 */
+	public synchronized void endTick() {
+		rangeMemo.clear();
+		changes++;
+		if (++movedTicks >= MOVED_TICKS) {
+			movedTicks = 0;
+			final LongHashSet oldest = movedBefore;
+			movedBefore = moved;
+			moved = oldest;
+			moved.clear();
+		}
+		frontier.tick(policy().getSettings().getFlowFrontierTicks());
+	}
+
+	/**
+	 * @return the largest range of the sponges in this world and its regions.
+	 */
+	private int maxRange() {
+		int range = policy().getRange();
+		for (final WorldPolicy i : regions.getPolicies())
+			range = Math.max(range, i.getRange());
+		return range;
+	}
+
+	/**
+	 * remove suckable blocks within the range of this block.<br>
+	 * The blocks are removed by the {@link BlockWriteQueue} within the next ticks.
 	 * @param block
 	 */
 	public void removeSuckables(final Block block) {
-		for (int x = -range; x <= range; x++)
-			for (int y = -range; y <= range; y++)
-				for (int z = -range; z <= range; z++) {
-					final Block checkBlock = block.getRelative(x,y,z);
-					if (isSuckable(checkBlock)) {
-						checkBlock.setTypeIdAndData(0, (byte) 0, false);
-					}
+		final WorldPolicy policy = policy(block);
+		int range = policy.getRange();
+		final TickGovernor governor = plugin.getGovernor();
+		if (governor != null && governor.getMode() != TickGovernor.Mode.NORMAL) {
+			final long key = BlockKey.pack(block.getX(), block.getY(), block.getZ());
+			if (governor.isDeferringAbsorption()) {
+				// the whole range is done after recovery
+				if (defer(deferredAbsorptions, deferredAbsorptionSet, key)) return;
+			} else {
+				final int reduced = governor.effectiveRadius(range, policy.getSettings().getGovernorReducedRadius());
+				// the rest of the range is left to the sweeper, or done after recovery if the sweeper is off
+				if (reduced < range && (sweepLater(block, policy) || defer(deferredAbsorptions, deferredAbsorptionSet, key)))
+					range = reduced;
+			}
+		}
+		removeSuckables(block, policy, range);
+	}
+
+	/**
+	 * make the {@link DryZoneSweeper} check the sponges of the chunk of this block soon.
+	 * @param block
+	 * @param policy the settings at the block.
+	 * @return false if the sweeper is turned off.
+	 */
+	private boolean sweepLater(final Block block, final WorldPolicy policy) {
+		if (policy.getSettings().getSweepBlocksPerTick() <= 0) return false;
+		synchronized (this) {
+			sweeper.markChanged(block.getX() >> 4, block.getZ() >> 4);
+		}
+		return true;
+	}
+
+	/**
+	 * hold work back until the {@link TickGovernor} lets it run again. A sponge is held back at most once.
+	 * @param queue the held back sponges.
+	 * @param queued the same sponges as in the queue.
+	 * @param key the packed key of the sponge.
+	 * @return false if too much work is held back already, and this work has to be done right away.
+	 */
+	private synchronized boolean defer(final LongQueue queue, final LongHashSet queued, final long key) {
+		if (queued.contains(key)) return true;
+		if (queued.size() >= MAX_DEFERRED) return false;
+		queued.add(key);
+		queue.push(key);
+		return true;
+	}
+
+	/**
+	 * remove suckable blocks within a range of this block.
+	 * @param block
+	 * @param policy the settings of this world.
+	 * @param range
+	 */
+	private void removeSuckables(final Block block, final WorldPolicy policy, final int range) {
+		if (policy.isFlood()) {
+			floodFill(block, policy, range);
+			return;
+		}
+		if (planInBackground(block, policy, range, true, metrics.removeSuckables)) return;
+		final long start = System.nanoTime();
+		final Object jfr = Tracing.beginScan();
+		final OffsetTable offsets = range == policy.getRange() ? policy.getAbsorbOffsets() : reducedOffsets(policy.getShape(), range);
+		final LongQueue found = SCRATCH.get().blocks;
+		final int modified = findSuckables(block, policy, offsets, found);
+		writes.clearAll(found);
+		metrics.blocksScanned.add(offsets.size());
+		metrics.record(metrics.removeSuckables, start);
+		Tracing.scan(jfr, "removeSuckables", block, range, offsets.size(), modified);
+	}
+
+	/**
+	 * find the suckable blocks in range of a block.
+	 * @param center
+	 * @param policy the settings of this world.
+	 * @param offsets the blocks in range.
+	 * @param found the queue to put the packed keys of the blocks into.
+	 * @return the number of blocks found.
+	 */
+	private int findSuckables(final Block center, final WorldPolicy policy, final OffsetTable offsets, final LongQueue found) {
+		final int x = center.getX(), y = center.getY(), z = center.getZ(), maxHeight = world.getMaxHeight();
+		int count = 0;
+		for (int i = 0; i < offsets.size(); i++) {
+			final int by = y + offsets.y(i);
+			if (!BlockKey.isValidY(by, maxHeight)) continue;
+			final int bx = x + offsets.x(i), bz = z + offsets.z(i);
+			if (policy.isSuckable(world.getBlockTypeIdAt(bx, by, bz))) {
+				found.push(BlockKey.pack(bx, by, bz));
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * get the blocks within a radius other than the configured one.
+	 * @param shape
+	 * @param range
+	 * @return the blocks in range, nearest first.
+	 */
+	private OffsetTable reducedOffsets(final RangeShape shape, final int range) {
+		OffsetTable offsets = this.reducedOffsets;
+		if (offsets == null || offsets.getShape() != shape || offsets.getRadius() != range)
+			this.reducedOffsets = offsets = shape.offsets(range);
+		return offsets;
+	}
+
+	/**
+	 * @return the blocks within the largest range of this world and its regions, as a cube that contains every shape.
+	 */
+	private OffsetTable searchOffsets() {
+		final int range = maxRange();
+		OffsetTable offsets = this.searchOffsets;
+		if (offsets == null || offsets.getRadius() != range)
+			this.searchOffsets = offsets = RangeShape.CUBE.offsets(range);
+		return offsets;
+	}
+
+	/**
+	 * hand a range with a large radius to the {@link AbsorbPlanner}.
+	 * @param center
+	 * @param policy the settings of this world.
+	 * @param radius the radius of the range.
+	 * @param clear true to remove the blocks, false to call their physics.
+	 * @param timer measures the time spent.
+	 * @return false if the range is small enough to be done right away.
+	 */
+	private boolean planInBackground(final Block center, final WorldPolicy policy, final int radius, final boolean clear, final Metrics.Timer timer) {
+		final int threshold = policy.getSettings().getParallelRadius();
+		if (threshold <= 0 || radius < threshold) return false;
+		final AbsorbPlanner planner = plugin.getAbsorbPlanner();
+		return planner != null && planner.submit(this, policy, center, radius, clear, timer);
+	}
+
+	/**
+	 * remove the suckable blocks connected to this block, nearest first.<br>
+	 * Only blocks within the range, the flood distance and the flood block limit are removed, so the work depends on
+	 * how much there is to absorb instead of the size of the cube.
+	 * @param center
+	 * @param policy the settings of this world.
+	 * @param range
+	 */
+	private void floodFill(final Block center, final WorldPolicy policy, final int range) {
+		final long start = System.nanoTime();
+		final Object jfr = Tracing.beginScan();
+		final int cx = center.getX(), cy = center.getY(), cz = center.getZ();
+		final int maxHeight = world.getMaxHeight();
+		final RangeShape shape = policy.getShape();
+		int budget = policy.getFloodBlocks(), visited = 0, modified = 0;
+		final Scratch scratch = SCRATCH.get();
+		final LongQueue floodQueue = scratch.floodQueue, found = scratch.blocks;
+		final LongHashSet floodVisited = scratch.floodVisited;
+		floodQueue.clear();
+		floodVisited.clear();
+		final long origin = BlockKey.pack(cx, cy, cz);
+		floodQueue.push(origin);
+		floodVisited.add(origin);
+		// one round per step away from the center
+		for (int distance = 1; distance <= policy.getFloodDistance() && !floodQueue.isEmpty() && budget > 0; distance++) {
+			for (int n = floodQueue.size(); n > 0 && budget > 0; n--) {
+				final long key = floodQueue.poll();
+				final int x = BlockKey.x(key), y = BlockKey.y(key), z = BlockKey.z(key);
+				for (int face = 0; face < 6 && budget > 0; face++) {
+					final int nx = x + FACE_X[face], ny = y + FACE_Y[face], nz = z + FACE_Z[face];
+					if (!shape.contains(nx - cx, ny - cy, nz - cz, range)) continue;
+					if (!BlockKey.isValidY(ny, maxHeight)) continue;
+					final long next = BlockKey.pack(nx, ny, nz);
+					if (!floodVisited.add(next)) continue;
+					if (!world.isChunkLoaded(nx >> 4, nz >> 4)) continue;
+					visited++;
+					if (!policy.isSuckable(world.getBlockTypeIdAt(nx, ny, nz))) continue;
+					found.push(next);
+					floodQueue.push(next);
+					modified++;
+					budget--;
 				}
+			}
+		}
+		writes.clearAll(found);
+		metrics.blocksScanned.add(visited);
+		metrics.record(metrics.removeSuckables, start);
+		Tracing.scan(jfr, "floodFill", center, range, visited, modified);
+	}
+
+	/**
+	 * update the surroundings of a sponge that moves by one block.<br>
+	 * Only the layer of blocks that gets into range is cleared, and only the layer that gets out of range
+	 * (plus the layer behind it) gets its physics called, instead of whole cubes around both positions.
+	 * Ranges other than cubes do not move in layers, their whole range is updated at both positions.
+	 * @param from the old position of the sponge.
+	 * @param direction the direction the sponge moves to.
+	 */
+	public void moveSponge(final Block from, final BlockFace direction) {
+		final WorldPolicy policy = policy(from);
+		synchronized (this) {
+			moved.add(BlockKey.pack(from.getX() + direction.getModX(), from.getY() + direction.getModY(), from.getZ() + direction.getModZ()));
+		}
+		final TickGovernor governor = plugin.getGovernor();
+		// while ticks are slow, the layers are left to the budget of the governor like any other range
+		if (policy.getShape() != RangeShape.CUBE || governor != null && governor.getMode() != TickGovernor.Mode.NORMAL) {
+			callPhysics(from);
+			removeSuckables(from.getRelative(direction));
+			return;
+		}
+		final long start = System.nanoTime();
+		final Object jfr = Tracing.beginScan();
+		final int dx = direction.getModX(), dy = direction.getModY(), dz = direction.getModZ();
+		final int range = policy.getRange();
+		int modified = 0;
+		// the layer in front of the new position
+		if (policy.isFlood())
+			floodFill(from.getRelative(direction), policy, range);
+		else
+			modified += updateLayer(from, dx, dy, dz, range + 1, range, true);
+		// the layer behind the old position, and the blocks around it
+		modified += updateLayer(from, dx, dy, dz, -range, range + 1, false);
+		modified += updateLayer(from, dx, dy, dz, -(range + 1), range + 1, false);
+		metrics.record(metrics.moveSponge, start);
+		final long edge = 2 * range + 1, outerEdge = 2 * range + 3;
+		Tracing.scan(jfr, "moveSponge", from, range, edge * edge + 2 * outerEdge * outerEdge, modified);
+	}
+
+	/**
+	 * check whether a piston moved a sponge to this block within the last few ticks.
+	 * @param block
+	 * @return true if so, false otherwise.
+	 */
+	public synchronized boolean isMovedRecently(final Block block) {
+		final long key = BlockKey.pack(block.getX(), block.getY(), block.getZ());
+		return moved.contains(key) || movedBefore.contains(key);
+	}
+
+	/**
+	 * clear or call the physics of the suckable blocks in a square layer across the direction.
+	 * @param center the block the distance is measured from.
+	 * @param distance how far the layer is from the center along the direction.
+	 * @param extent how far the layer reaches across the direction.
+	 * @param clear true to remove the blocks, false to call their physics.
+	 * @return the number of queued changes.
+	 */
+	private int updateLayer(final Block center, final int dx, final int dy, final int dz, final int distance, final int extent, final boolean clear) {
+		final int maxHeight = world.getMaxHeight();
+		final LongQueue found = SCRATCH.get().blocks;
+		int modified = 0;
+		for (int a = -extent; a <= extent; a++)
+			for (int b = -extent; b <= extent; b++) {
+				// a and b run along the two axes other than the direction
+				final int x = dx != 0 ? dx * distance : a;
+				final int y = dy != 0 ? dy * distance : (dx != 0 ? a : b);
+				final int z = dz != 0 ? dz * distance : b;
+				if (!BlockKey.isValidY(center.getY() + y, maxHeight)) continue;
+				final Block block = center.getRelative(x, y, z);
+				metrics.blocksScanned.increment();
+				if (!isSuckable(block)) continue;
+				found.push(BlockKey.pack(block.getX(), block.getY(), block.getZ()));
+				modified++;
+			}
+		if (clear)
+			writes.clearAll(found);
+		else
+			writes.triggerAll(found);
+		return modified;
 	}
 
 	/**
@@ -119,36 +670,245 @@ public class WorldConfig {
 	 * @return
 	 */
 	public boolean spongeInRange(final Block block) {
-		for (int x = -range; x <= range; x++)
-			for (int y = -range; y <= range; y++)
-				for (int z = -range; z <= range; z++)
-					if (block.getRelative(x,y,z).getTypeId() == ID_SPONGE)
-						return true;
-		return false;
+		final WorldPolicy policy = policy(block);
+		final boolean memo = policy.getSettings().isRangeMemo();
+		final long key = BlockKey.pack(block.getX(), block.getY(), block.getZ());
+		final SpongeIndex.Lookup lookup = SCRATCH.get().lookup;
+		lookup.found = SpongeIndex.Lookup.NONE;
+		if (memo) {
+			final int known;
+			synchronized (this) {
+				known = rangeMemo.get(key);
+			}
+			if (known != RangeMemo.UNKNOWN) {
+				metrics.rangeMemoHits.increment();
+				return known == 1;
+			}
+			metrics.rangeMemoMisses.increment();
+		}
+		final long start = System.nanoTime();
+		final Object jfr = Tracing.beginScan();
+		final int x = block.getX(), y = block.getY(), z = block.getZ();
+		final RegionIndex regions = this.regions;
+		final OffsetTable range;
+		if (regions.isEmpty()) {
+			range = policy.getAbsorbOffsets();
+			lookup.regions = null;
+		} else {
+			// each sponge reaches as far as the settings at the sponge say
+			range = searchOffsets();
+			lookup.regions = regions;
+			lookup.policy = policy();
+		}
+		indexChunks(x, z, range.getRadius(), lookup);
+		final int version;
+		synchronized (this) {
+			version = changes;
+			sponges.collect(x, y, z, range, lookup);
+		}
+		final boolean found = sponges.check(x, y, z, range, lookup);
+		synchronized (this) {
+			// a sponge that appeared or vanished meanwhile may change the result
+			if (version == changes) {
+				sponges.forgetStale(lookup);
+				if (memo) rangeMemo.put(key, found);
+			}
+		}
+		metrics.record(metrics.spongeInRange, start);
+		if (jfr != null) Tracing.scan(jfr, "spongeInRange", block, range.getRadius(), lookup.visited, 0);
+		return found;
+	}
+
+	/**
+	 * index the chunks in range that are neither indexed nor being scanned, loading them if needed.
+	 * @param x
+	 * @param z
+	 * @param radius the radius of the range.
+	 * @param lookup the range check.
+	 */
+	private void indexChunks(final int x, final int z, final int radius, final SpongeIndex.Lookup lookup) {
+		synchronized (this) {
+			sponges.findMissing(x, z, radius, lookup);
+		}
+		while (!lookup.missing.isEmpty()) {
+			final long chunkKey = lookup.missing.poll();
+			final Object ticket;
+			synchronized (this) {
+				ticket = sponges.reserve(chunkKey);
+			}
+			// range checks meanwhile look at the blocks of the chunk directly
+			if (ticket != null) sponges.publish(chunkKey, ticket, sponges.scanNow(chunkKey));
+		}
+	}
+
+	/**
+	 * check whether a flow has to be cancelled because a sponge is in range of the block it flows into.<br>
+	 * Cancelled flows are remembered by the {@link FlowFrontier}, so the fluid trying again every fluid tick costs a single lookup.
+	 * The sponges the frontier relies on are confirmed once per tick and chunk.
+	 * @param from the flowing block.
+	 * @param to the block it flows into.
+	 * @return true if the flow has to be cancelled.
+	 */
+	public boolean isFlowBlocked(final Block from, final Block to) {
+		final Settings settings = policy().getSettings();
+		final boolean remember = settings.getFlowFrontierTicks() > 0;
+		final int x = to.getX(), y = to.getY(), z = to.getZ();
+		final Scratch scratch = SCRATCH.get();
+		int known;
+		int version;
+		synchronized (this) {
+			known = remember ? frontier.lookup(x, y, z) : FlowFrontier.UNKNOWN;
+			if (known == FlowFrontier.UNCONFIRMED) frontier.sponges(x, z, scratch.blocks);
+			version = changes;
+		}
+		if (known == FlowFrontier.UNCONFIRMED) {
+			final boolean confirmed = confirmSponges(scratch.blocks);
+			synchronized (this) {
+				if (version == changes) {
+					// a sponge that vanished without an event is forgotten by the range check below
+					if (confirmed)
+						frontier.confirm(x, z);
+					else
+						frontier.evict(BlockKey.chunk(x >> 4, z >> 4));
+				}
+				version = changes;
+			}
+			if (confirmed) known = FlowFrontier.CONFIRMED;
+		}
+		if (known == FlowFrontier.CONFIRMED) {
+			metrics.flowFrontierHits.increment();
+		} else {
+			final SpongeIndex.Lookup lookup = scratch.lookup;
+			if (!spongeInRange(to)) return false;
+			// a remembered result does not tell which sponge is in range
+			if (remember && lookup.found != SpongeIndex.Lookup.NONE) {
+				synchronized (this) {
+					if (version == changes) frontier.add(x, y, z, lookup.found);
+				}
+			}
+		}
+		if (settings.isSettleEdges()) settle(from);
+		return true;
+	}
+
+	/**
+	 * check whether sponges are still there. Called without the lock.
+	 * @param keys the packed keys of the sponges, emptied by the check.
+	 * @return true if all of them are sponges, or sponges a piston is moving.
+	 */
+	private boolean confirmSponges(final LongQueue keys) {
+		boolean confirmed = true;
+		while (!keys.isEmpty()) {
+			final long key = keys.poll();
+			if (!confirmed) continue;
+			final int id = world.getBlockTypeIdAt(BlockKey.x(key), BlockKey.y(key), BlockKey.z(key));
+			confirmed = id == ID_SPONGE || id == ID_PISTON_MOVING_PIECE;
+		}
+		return confirmed;
+	}
+
+	/**
+	 * turn flowing water or lava into resting water or lava, so the server stops trying to spread it.<br>
+	 * It starts flowing again as soon as one of its neighbors changes.
+	 * @param block
+	 */
+	private static void settle(final Block block) {
+		final int id = block.getTypeId();
+		if (id == ID_WATER)
+			block.setTypeIdAndData(ID_STATIONARY_WATER, block.getData(), false);
+		else if (id == ID_LAVA)
+			block.setTypeIdAndData(ID_STATIONARY_LAVA, block.getData(), false);
 	}
 
 	/**
-	 * call the physics around the center block.
+	 * call the physics around the center block.<br>
+	 * The physics are called by the {@link BlockWriteQueue} within the next ticks.
 	 * @param center
 	 */
 	public void callPhysics(final Block center) {
+		final TickGovernor governor = plugin.getGovernor();
+		if (governor != null && governor.isDeferringPhysics()
+				&& defer(deferredPhysics, deferredPhysicsSet, BlockKey.pack(center.getX(), center.getY(), center.getZ())))
+			return;
+		doCallPhysics(center);
+	}
+
+	/**
+	 * call the physics around the center block, even while the {@link TickGovernor} holds back work.
+	 * @param center
+	 */
+	private void doCallPhysics(final Block center) {
+		final WorldPolicy policy = policy(center);
+		final int range = policy.getRange();
+		if (planInBackground(center, policy, range + 1, false, metrics.callPhysics)) return;
+		final long start = System.nanoTime();
+		final Object jfr = Tracing.beginScan();
 		// range+1 to trigger blocks around
-		for (int x = -(range+1); x <= (range+1); x++)
-			for (int y = -(range+1); y <= (range+1); y++)
-				for (int z = -(range+1); z <= (range+1); z++) {
-					final Block block = center.getRelative(x,y,z);
-					if (isSuckable(block)) {
-						final int id = block.getTypeId();
-						final byte data = block.getData();
-						block.setTypeIdAndData(0, (byte) 0, false);
-						block.setTypeIdAndData(id, data, true);
-					}
-				}
+		final OffsetTable offsets = policy.getPhysicsOffsets();
+		final LongQueue found = SCRATCH.get().blocks;
+		final int modified = findSuckables(center, policy, offsets, found);
+		writes.triggerAll(found);
+		metrics.blocksScanned.add(offsets.size());
+		metrics.record(metrics.callPhysics, start);
+		Tracing.scan(jfr, "callPhysics", center, range, offsets.size(), modified);
+	}
+
+	/**
+	 * do work held back by the {@link TickGovernor}.
+	 * @param max the maximum number of sponges to handle.
+	 * @return the number of sponges handled.
+	 */
+	public int replayDeferred(final int max) {
+		int done = 0;
+		while (done < max) {
+			final long key;
+			final boolean absorb;
+			synchronized (this) {
+				absorb = !deferredAbsorptions.isEmpty();
+				if (absorb) {
+					key = deferredAbsorptions.poll();
+					deferredAbsorptionSet.remove(key);
+				} else if (!deferredPhysics.isEmpty()) {
+					key = deferredPhysics.poll();
+					deferredPhysicsSet.remove(key);
+				} else
+					break;
+			}
+			done++;
+			final Block block = deferredBlock(key);
+			if (block == null) continue;
+			if (!absorb) {
+				doCallPhysics(block);
+			} else if (block.getTypeId() == ID_SPONGE) {
+				// the sponge may be gone meanwhile
+				final WorldPolicy policy = policy(block);
+				removeSuckables(block, policy, policy.getRange());
+			}
+		}
+		return done;
+	}
+
+	/**
+	 * @return the block at these coordinates, or null if its chunk is not loaded anymore.
+	 */
+	private Block deferredBlock(final long key) {
+		final int x = BlockKey.x(key), z = BlockKey.z(key);
+		if (!world.isChunkLoaded(x >> 4, z >> 4)) return null;
+		return world.getBlockAt(x, BlockKey.y(key), z);
 	}
 
 	public boolean bucketContainsSuckable(final Material bucket) {
-		final String str = bucket.toString();
-		return (str.contains("WATER") && isWaterSuckable()) || (str.contains("LAVA") && isLavaSuckable());
+		return policy().isSuckableBucket(bucket);
+	}
+
+	/**
+	 * check whether a bucket emptied at this block contains something suckable there.
+	 * @param bucket
+	 * @param block
+	 * @return true if so, false otherwise.
+	 */
+	public boolean bucketContainsSuckable(final Material bucket, final Block block) {
+		return policy(block).isSuckableBucket(bucket);
 	}
 
 }
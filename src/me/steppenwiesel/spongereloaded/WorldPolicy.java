@@ -0,0 +1,237 @@
+package me.steppenwiesel.spongereloaded;
+
+import org.bukkit.Material;
+import org.bukkit.configuration.ConfigurationSection;
+
+/**
+ * The settings of one world, compiled into lookup tables when the configuration is read.<br>
+ * Objects of this class never change, so they are safe to share.
+ * @author Steppenwiesel
+ *
+ */
+public final class WorldPolicy {
+
+	/** block IDs are below this */
+	private static final int MAX_BLOCK_ID = 4096;
+
+	private final Settings settings;
+	private final boolean enabled;
+	private final int range;
+	private final boolean soakWater;
+	private final boolean soakLava;
+	private final boolean soakFire;
+	/** true to absorb connected blocks only, instead of the whole cube */
+	private final boolean flood;
+	private final int floodDistance;
+	private final int floodBlocks;
+	private final RangeShape shape;
+	/** the blocks in range, built when first needed */
+	private volatile OffsetTable absorbOffsets;
+	/** the blocks in range and the layer around them, built when first needed */
+	private volatile OffsetTable physicsOffsets;
+	/** suckable blocks, indexed by block ID */
+	private final boolean[] suckable;
+	/** buckets containing something suckable, indexed by material ID */
+	private final boolean[] suckableBucket;
+
+	private WorldPolicy(final Settings settings, final boolean enabled, final int range, final boolean soakWater, final boolean soakLava, final boolean soakFire,
+			final boolean flood, final int floodDistance, final int floodBlocks, final RangeShape shape) {
+		this.settings = settings;
+		this.enabled = enabled;
+		this.range = range;
+		this.soakWater = soakWater;
+		this.soakLava = soakLava;
+		this.soakFire = soakFire;
+		this.flood = flood;
+		this.floodDistance = floodDistance;
+		this.floodBlocks = floodBlocks;
+		this.shape = shape;
+
+		suckable = new boolean[MAX_BLOCK_ID];
+		if (soakWater) suckable[WorldConfig.ID_WATER] = suckable[WorldConfig.ID_STATIONARY_WATER] = true;
+		if (soakLava) suckable[WorldConfig.ID_LAVA] = suckable[WorldConfig.ID_STATIONARY_LAVA] = true;
+		if (soakFire) suckable[WorldConfig.ID_FIRE] = true;
+
+		int maxId = 0;
+		for (final Material m : Material.values())
+			maxId = Math.max(maxId, m.getId());
+		suckableBucket = new boolean[maxId + 1];
+		for (final Material m : Material.values()) {
+			final String str = m.toString();
+			if ((str.contains("WATER") && soakWater) || (str.contains("LAVA") && soakLava))
+				suckableBucket[m.getId()] = true;
+		}
+	}
+
+	/**
+	 * read the settings of a world. Settings under {@code worlds.<name>} override the global ones.
+	 * @param settings the configuration version these settings belong to.
+	 * @param conf the plugin configuration.
+	 * @param worldName the name of the world.
+	 * @return the compiled settings.
+	 */
+	static WorldPolicy compile(final Settings settings, final ConfigurationSection conf, final String worldName) {
+		return compile(settings, conf, worldName, null);
+	}
+
+	/**
+	 * read the settings of a region. Settings of the region override the ones of the world, which override the global ones.
+	 * @param settings the configuration version these settings belong to.
+	 * @param conf the plugin configuration.
+	 * @param worldName the name of the world.
+	 * @param region the section of the region, null for the settings of the whole world.
+	 * @return the compiled settings.
+	 */
+	static WorldPolicy compile(final Settings settings, final ConfigurationSection conf, final String worldName, final ConfigurationSection region) {
+		final String wn = worldName;
+		boolean enabled   = getBoolean(conf, region, wn, "enabled"   );
+		boolean soakWater = getBoolean(conf, region, wn, "soak_water");
+		boolean soakLava  = getBoolean(conf, region, wn, "soak_lava" );
+		boolean soakFire  = getBoolean(conf, region, wn, "soak_fire" );
+
+		int range = region != null ? region.getInt("radius", 0) : 0;
+		if (range <= 0) range = conf.getInt("worlds." + wn + ".radius", 0);
+		if (range <= 0) range = conf.getInt("radius");
+		if (range <= 0) range = 2;
+
+		final RangeShape shape = RangeShape.parse(getString(conf, region, wn, "shape", "cube"));
+
+		final String absorbMode = getString(conf, region, wn, "absorb_mode", "cube");
+		final boolean flood = "flood".equalsIgnoreCase(absorbMode);
+		int floodDistance = getInt(conf, region, wn, "flood_max_distance", 0);
+		// the cube is the limit anyway, its corners are 3 * range steps away
+		if (floodDistance <= 0 || floodDistance > 3 * range) floodDistance = 3 * range;
+		int floodBlocks = getInt(conf, region, wn, "flood_max_blocks", 0);
+		if (floodBlocks <= 0) floodBlocks = Integer.MAX_VALUE;
+
+		if (!(soakWater || soakLava || soakFire)) enabled = false;
+		soakWater = enabled && soakWater;
+		soakLava = enabled && soakLava;
+		soakFire = enabled && soakFire;
+		return new WorldPolicy(settings, enabled, range, soakWater, soakLava, soakFire, flood, floodDistance, floodBlocks, shape);
+	}
+
+	private static boolean getBoolean(final ConfigurationSection conf, final ConfigurationSection region, final String wn, final String key) {
+		if (region != null && region.isSet(key)) return region.getBoolean(key);
+		return conf.getBoolean("worlds." + wn + "." + key, conf.getBoolean(key));
+	}
+
+	private static int getInt(final ConfigurationSection conf, final ConfigurationSection region, final String wn, final String key, final int def) {
+		if (region != null && region.isSet(key)) return region.getInt(key);
+		return conf.getInt("worlds." + wn + "." + key, conf.getInt(key, def));
+	}
+
+	private static String getString(final ConfigurationSection conf, final ConfigurationSection region, final String wn, final String key, final String def) {
+		if (region != null && region.isSet(key)) return region.getString(key);
+		return conf.getString("worlds." + wn + "." + key, conf.getString(key, def));
+	}
+
+	/**
+	 * @return the configuration version these settings belong to.
+	 */
+	public Settings getSettings() {
+		return settings;
+	}
+
+	/**
+	 * check whether blocks of this type are suckable.
+	 * @param id the block ID.
+	 * @return true if so, false otherwise.
+	 */
+	public boolean isSuckable(final int id) {
+		return id >= 0 && id < suckable.length && suckable[id];
+	}
+
+	/**
+	 * check whether this bucket contains something suckable.
+	 * @param bucket
+	 * @return true if so, false otherwise.
+	 */
+	public boolean isSuckableBucket(final Material bucket) {
+		final int id = bucket.getId();
+		return id >= 0 && id < suckableBucket.length && suckableBucket[id];
+	}
+
+	/**
+	 * @return true if sponges are enabled.
+	 */
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * @return the radius around sponges.
+	 */
+	public int getRange() {
+		return range;
+	}
+
+	/**
+	 * @return the shape of the range around sponges.
+	 */
+	public RangeShape getShape() {
+		return shape;
+	}
+
+	/**
+	 * @return the blocks within the radius around sponges, nearest first.
+	 */
+	public OffsetTable getAbsorbOffsets() {
+		OffsetTable offsets = absorbOffsets;
+		// never changes once built, building it twice does no harm
+		if (offsets == null) absorbOffsets = offsets = shape.offsets(range);
+		return offsets;
+	}
+
+	/**
+	 * @return the blocks within the radius plus one around sponges, nearest first.
+	 */
+	public OffsetTable getPhysicsOffsets() {
+		OffsetTable offsets = physicsOffsets;
+		if (offsets == null) physicsOffsets = offsets = shape.offsets(range + 1);
+		return offsets;
+	}
+
+	/**
+	 * @return true if sponges only absorb the blocks connected to them, false if they absorb the whole cube.
+	 */
+	public boolean isFlood() {
+		return flood;
+	}
+
+	/**
+	 * @return how many steps from the sponge connected blocks are absorbed.
+	 */
+	public int getFloodDistance() {
+		return floodDistance;
+	}
+
+	/**
+	 * @return how many connected blocks a sponge absorbs at most.
+	 */
+	public int getFloodBlocks() {
+		return floodBlocks;
+	}
+
+	/**
+	 * @return true if sponges soak up water.
+	 */
+	public boolean isWaterSuckable() {
+		return soakWater;
+	}
+
+	/**
+	 * @return true if sponges soak up lava.
+	 */
+	public boolean isLavaSuckable() {
+		return soakLava;
+	}
+
+	/**
+	 * @return true if sponges soak up fire.
+	 */
+	public boolean isFireSuckable() {
+		return soakFire;
+	}
+
+}
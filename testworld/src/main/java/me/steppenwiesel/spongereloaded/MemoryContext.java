@@ -0,0 +1,158 @@
+package me.steppenwiesel.spongereloaded;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Function;
+import java.util.logging.Logger;
+
+import org.bukkit.World;
+import org.bukkit.block.Block;
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.bukkit.event.Listener;
+
+/**
+ * Runs the sponge logic without a server: the settings come from the default config.yml with some values replaced,
+ * there is no background scanning or planning, and the index is not kept on disk unless the settings ask for it.
+ * @author Steppenwiesel
+ *
+ */
+public final class MemoryContext implements SpongeContext {
+
+	private static final Logger LOGGER = Logger.getLogger("SpongeReloaded");
+
+	private final ConcurrentMap<World, WorldConfig> configs = new ConcurrentHashMap<>();
+	private final Metrics metrics = new Metrics();
+	private final File dataFolder;
+	private volatile Settings settings;
+	private volatile TickGovernor governor;
+
+	/**
+	 * @param overrides the settings that differ from the default config.yml, by their paths.
+	 */
+	public MemoryContext(final Map<String, ?> overrides) {
+		this.dataFolder = new File(System.getProperty("java.io.tmpdir"), "spongereloaded-" + Long.toHexString(System.nanoTime()));
+		configure(overrides);
+	}
+
+	/**
+	 * replace the settings, as a reload of the configuration would.
+	 * @param overrides the settings that differ from the default config.yml, by their paths.
+	 */
+	public void configure(final Map<String, ?> overrides) {
+		final YamlConfiguration conf;
+		try (final InputStream in = MemoryContext.class.getResourceAsStream("/config.yml")) {
+			if (in == null) throw new IllegalStateException("config.yml is not on the class path");
+			conf = YamlConfiguration.loadConfiguration(new InputStreamReader(in, StandardCharsets.UTF_8));
+		} catch (final IOException e) {
+			throw new IllegalStateException(e);
+		}
+		// nothing on disk unless asked for
+		conf.set("persist_index", false);
+		for (final Map.Entry<String, ?> i : overrides.entrySet())
+			conf.set(i.getKey(), i.getValue());
+		final Settings settings = new Settings(conf);
+		metrics.setEnabled(settings.isMetricsEnabled());
+		this.settings = settings;
+	}
+
+	/**
+	 * @param governor holds back work while ticks are slow, may be null.
+	 */
+	public void setGovernor(final TickGovernor governor) {
+		this.governor = governor;
+	}
+
+	@Override
+	public Settings getSettings() {
+		return settings;
+	}
+
+	@Override
+	public Metrics getMetrics() {
+		return metrics;
+	}
+
+	@Override
+	public File getDataFolder() {
+		return dataFolder;
+	}
+
+	@Override
+	public Logger getLogger() {
+		return LOGGER;
+	}
+
+	@Override
+	public ChunkScanner getChunkScanner() {
+		return null;
+	}
+
+	@Override
+	public AbsorbPlanner getAbsorbPlanner() {
+		return null;
+	}
+
+	@Override
+	public TickGovernor getGovernor() {
+		return governor;
+	}
+
+	@Override
+	public WorldConfig getWorldConfig(final World world) {
+		final WorldConfig wconf = configs.get(world);
+		if (wconf != null) return wconf;
+		return configs.computeIfAbsent(world, new Function<World, WorldConfig>() {
+			@Override
+			public WorldConfig apply(final World world) {
+				return new WorldConfig(world, MemoryContext.this);
+			}
+		});
+	}
+
+	@Override
+	public void replayDeferred(int max) {
+		for (final WorldConfig i : configs.values()) {
+			if (max <= 0) return;
+			max -= i.replayDeferred(max);
+		}
+	}
+
+	@Override
+	public void handled(final HandlerType type, final long start, final Object jfr, final Block block, final boolean cancelled) {
+		metrics.record(type, start, cancelled);
+		Tracing.handler(jfr, type, block, cancelled);
+	}
+
+	/**
+	 * create the event listeners of the plugin, to be called the way the server would.
+	 * @return the listeners for sponges, fluids and fire.
+	 */
+	public List<Listener> createListeners() {
+		return Arrays.<Listener> asList(new SpongeListener(this), new FluidListener(this), new FireListener(this));
+	}
+
+	/**
+	 * do the work the plugin does at the end of every tick: forget the range checks and do queued block changes.
+	 * Dry zones are not swept, there are no players to sweep around.
+	 */
+	public void tick() {
+		final Settings settings = this.settings;
+		for (final WorldConfig i : configs.values())
+			i.endTick();
+		final long deadline = System.nanoTime() + settings.getWriteNanosPerTick();
+		int maxBlocks = settings.getWriteBlocksPerTick();
+		for (final WorldConfig i : configs.values()) {
+			if (maxBlocks <= 0 || System.nanoTime() >= deadline) return;
+			maxBlocks -= i.getWriteQueue().drain(maxBlocks, deadline);
+		}
+	}
+
+}
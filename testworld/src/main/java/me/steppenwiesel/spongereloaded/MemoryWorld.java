@@ -0,0 +1,479 @@
+package me.steppenwiesel.spongereloaded;
+
+import java.io.File;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.bukkit.Chunk;
+import org.bukkit.ChunkSnapshot;
+import org.bukkit.Location;
+import org.bukkit.Material;
+import org.bukkit.World;
+import org.bukkit.block.Block;
+import org.bukkit.block.BlockFace;
+
+/**
+ * A world that only exists in memory, for running the sponge logic without a server.<br>
+ * Only the parts of {@link World}, {@link Chunk}, {@link ChunkSnapshot} and {@link Block} the plugin uses are implemented,
+ * everything else throws an {@link UnsupportedOperationException}. Chunks are created empty when they are first loaded.
+ * Block changes may come from several threads, each block is read and written as a whole.
+ * @author Steppenwiesel
+ *
+ */
+public final class MemoryWorld {
+
+	/**
+	 * gets told about the changes in a {@link MemoryWorld}, on the thread doing them.
+	 */
+	public interface Observer {
+
+		/**
+		 * a block was changed through the {@link Block} interface.
+		 * @param block
+		 * @param oldId the type the block had before.
+		 * @param applyPhysics whether the change asked for a physics update.
+		 */
+		void blockChanged(Block block, int oldId, boolean applyPhysics);
+
+		/**
+		 * a chunk was loaded.
+		 * @param chunk
+		 */
+		void chunkLoaded(Chunk chunk);
+
+		/**
+		 * a chunk is about to be unloaded.
+		 * @param chunk
+		 */
+		void chunkUnloaded(Chunk chunk);
+	}
+
+	/**
+	 * the blocks of one chunk, type and data in one short per block.
+	 */
+	private static final class Column {
+		final short[] blocks;
+		volatile boolean loaded;
+
+		Column(final int maxHeight) {
+			blocks = new short[256 * maxHeight];
+		}
+	}
+
+	/** creating proxies through their constructors skips looking up their classes every time */
+	private static final Constructor<? extends Block> BLOCK = proxyConstructor(Block.class);
+	private static final Constructor<? extends Chunk> CHUNK = proxyConstructor(Chunk.class);
+
+	private final String name;
+	private final UUID uid = UUID.randomUUID();
+	private final int maxHeight;
+	private final World world;
+	private final ConcurrentMap<Long, Column> columns = new ConcurrentHashMap<>();
+	private volatile Observer observer;
+	/** true to ignore block changes through the {@link Block} interface */
+	private volatile boolean frozen;
+
+	/**
+	 * @param name the name of the world.
+	 * @param maxHeight the height of the world, a multiple of 16.
+	 */
+	public MemoryWorld(final String name, final int maxHeight) {
+		this.name = name;
+		this.maxHeight = maxHeight;
+		this.world = (World) Proxy.newProxyInstance(World.class.getClassLoader(), new Class<?>[] { World.class }, new WorldHandler());
+	}
+
+	/**
+	 * @return this world as seen by the plugin.
+	 */
+	public World getWorld() {
+		return world;
+	}
+
+	/**
+	 * @param observer gets told about block changes and chunk loads, may be null.
+	 */
+	public void setObserver(final Observer observer) {
+		this.observer = observer;
+	}
+
+	/**
+	 * @param frozen true to ignore block changes done by the plugin, so the same work can be repeated.
+	 */
+	public void setFrozen(final boolean frozen) {
+		this.frozen = frozen;
+	}
+
+	/**
+	 * @return the height of the world.
+	 */
+	public int getMaxHeight() {
+		return maxHeight;
+	}
+
+	/**
+	 * get a block, loading its chunk.
+	 * @return the block.
+	 */
+	public Block getBlock(final int x, final int y, final int z) {
+		return block(x, y, z);
+	}
+
+	/**
+	 * @return the type of a block, 0 above and below the world.
+	 */
+	public int getTypeId(final int x, final int y, final int z) {
+		if (y < 0 || y >= maxHeight) return 0;
+		return column(x >> 4, z >> 4).blocks[index(x, y, z)] >>> 4 & 0xFFF;
+	}
+
+	/**
+	 * @return the data of a block.
+	 */
+	public byte getData(final int x, final int y, final int z) {
+		if (y < 0 || y >= maxHeight) return 0;
+		return (byte) (column(x >> 4, z >> 4).blocks[index(x, y, z)] & 15);
+	}
+
+	/**
+	 * change a block without telling the observer, for building scenes.
+	 */
+	public void set(final int x, final int y, final int z, final int id, final int data) {
+		if (y < 0 || y >= maxHeight) return;
+		column(x >> 4, z >> 4).blocks[index(x, y, z)] = (short) (id << 4 | data & 15);
+	}
+
+	/**
+	 * change a cuboid of blocks without telling the observer, for building scenes.
+	 */
+	public void fill(final int minX, final int minY, final int minZ, final int maxX, final int maxY, final int maxZ, final int id) {
+		for (int x = minX; x <= maxX; x++)
+			for (int z = minZ; z <= maxZ; z++)
+				for (int y = minY; y <= maxY; y++)
+					set(x, y, z, id, 0);
+	}
+
+	/**
+	 * count the blocks of a type in a cuboid.
+	 * @return the number of blocks.
+	 */
+	public int count(final int minX, final int minY, final int minZ, final int maxX, final int maxY, final int maxZ, final int id) {
+		int count = 0;
+		for (int x = minX; x <= maxX; x++)
+			for (int z = minZ; z <= maxZ; z++)
+				for (int y = minY; y <= maxY; y++)
+					if (getTypeId(x, y, z) == id) count++;
+		return count;
+	}
+
+	/**
+	 * unload a chunk. Its blocks are kept and come back when it is loaded again.
+	 * @param cx chunk x
+	 * @param cz chunk z
+	 */
+	public void unloadChunk(final int cx, final int cz) {
+		final Column column = columns.get(key(cx, cz));
+		if (column == null || !column.loaded) return;
+		final Observer observer = this.observer;
+		if (observer != null) observer.chunkUnloaded(chunk(cx, cz));
+		column.loaded = false;
+	}
+
+	/**
+	 * get the blocks of a chunk, loading it.
+	 */
+	private Column column(final int cx, final int cz) {
+		final Long key = key(cx, cz);
+		Column column = columns.get(key);
+		if (column == null) {
+			final Column created = new Column(maxHeight);
+			column = columns.putIfAbsent(key, created);
+			if (column == null) column = created;
+		}
+		if (!column.loaded) {
+			boolean loading = false;
+			synchronized (column) {
+				if (!column.loaded) column.loaded = loading = true;
+			}
+			final Observer observer = this.observer;
+			// like the server, the load event is fired by whatever loads the chunk
+			if (loading && observer != null) observer.chunkLoaded(chunk(cx, cz));
+		}
+		return column;
+	}
+
+	private boolean isLoaded(final int cx, final int cz) {
+		final Column column = columns.get(key(cx, cz));
+		return column != null && column.loaded;
+	}
+
+	private static Long key(final int cx, final int cz) {
+		return (long) cx << 32 | cz & 0xFFFFFFFFL;
+	}
+
+	private static int index(final int x, final int y, final int z) {
+		return (y << 8) | ((z & 15) << 4) | (x & 15);
+	}
+
+	/**
+	 * change a block the way the plugin does.
+	 * @return false if the world is frozen.
+	 */
+	private boolean change(final int x, final int y, final int z, final int id, final byte data, final boolean applyPhysics) {
+		if (frozen || y < 0 || y >= maxHeight) return false;
+		final short[] blocks = column(x >> 4, z >> 4).blocks;
+		final int i = index(x, y, z);
+		final int oldId = blocks[i] >>> 4 & 0xFFF;
+		blocks[i] = (short) (id << 4 | data & 15);
+		final Observer observer = this.observer;
+		if (observer != null) observer.blockChanged(block(x, y, z), oldId, applyPhysics);
+		return true;
+	}
+
+	private Block block(final int x, final int y, final int z) {
+		return newProxy(BLOCK, new BlockHandler(x, y, z));
+	}
+
+	private Chunk chunk(final int cx, final int cz) {
+		return newProxy(CHUNK, new ChunkHandler(cx, cz));
+	}
+
+	private static <T> Constructor<? extends T> proxyConstructor(final Class<T> type) {
+		final Object proxy = Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type }, new InvocationHandler() {
+			@Override
+			public Object invoke(final Object proxy, final Method method, final Object[] args) {
+				return null;
+			}
+		});
+		try {
+			return proxy.getClass().asSubclass(type).getConstructor(InvocationHandler.class);
+		} catch (final NoSuchMethodException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static <T> T newProxy(final Constructor<? extends T> constructor, final InvocationHandler handler) {
+		try {
+			return constructor.newInstance(handler);
+		} catch (final ReflectiveOperationException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static UnsupportedOperationException unsupported(final Method method) {
+		return new UnsupportedOperationException(method.toString());
+	}
+
+	private final class WorldHandler implements InvocationHandler {
+		@Override
+		public Object invoke(final Object proxy, final Method method, final Object[] args) {
+			switch (method.getName()) {
+			case "getName":
+				return name;
+			case "getUID":
+				return uid;
+			case "getMaxHeight":
+				return maxHeight;
+			case "getBlockAt":
+				if (args.length == 3) return block((Integer) args[0], (Integer) args[1], (Integer) args[2]);
+				break;
+			case "getBlockTypeIdAt":
+				if (args.length == 3) return getTypeId((Integer) args[0], (Integer) args[1], (Integer) args[2]);
+				break;
+			case "isChunkLoaded":
+				if (args.length == 2) return isLoaded((Integer) args[0], (Integer) args[1]);
+				break;
+			case "getChunkAt":
+				if (args.length == 2 && args[0] instanceof Integer) {
+					final int cx = (Integer) args[0], cz = (Integer) args[1];
+					column(cx, cz);
+					return chunk(cx, cz);
+				}
+				break;
+			case "getLoadedChunks": {
+				final List<Chunk> loaded = new ArrayList<>();
+				for (final Long key : columns.keySet())
+					if (columns.get(key).loaded) loaded.add(chunk((int) (key >> 32), (int) (long) key));
+				return loaded.toArray(new Chunk[loaded.size()]);
+			}
+			case "refreshChunk":
+				return true;
+			case "getPlayers":
+				return Collections.emptyList();
+			case "getWorldFolder":
+				return new File(name);
+			case "equals":
+				return proxy == args[0];
+			case "hashCode":
+				return uid.hashCode();
+			case "toString":
+				return "MemoryWorld{name=" + name + "}";
+			}
+			throw unsupported(method);
+		}
+	}
+
+	private final class ChunkHandler implements InvocationHandler {
+		private final int cx, cz;
+
+		ChunkHandler(final int cx, final int cz) {
+			this.cx = cx;
+			this.cz = cz;
+		}
+
+		@Override
+		public Object invoke(final Object proxy, final Method method, final Object[] args) {
+			switch (method.getName()) {
+			case "getX":
+				return cx;
+			case "getZ":
+				return cz;
+			case "getWorld":
+				return world;
+			case "isLoaded":
+				return isLoaded(cx, cz);
+			case "getBlock":
+				return block(cx << 4 | (Integer) args[0], (Integer) args[1], cz << 4 | (Integer) args[2]);
+			case "getChunkSnapshot":
+				return snapshot(cx, cz, column(cx, cz).blocks.clone());
+			case "equals":
+				return args[0] instanceof Chunk && Proxy.isProxyClass(args[0].getClass()) && Proxy.getInvocationHandler(args[0]).equals(this);
+			case "hashCode":
+				return hashCode();
+			case "toString":
+				return "MemoryChunk{" + cx + "," + cz + "}";
+			}
+			throw unsupported(method);
+		}
+
+		@Override
+		public boolean equals(final Object o) {
+			return o instanceof ChunkHandler && ((ChunkHandler) o).cx == cx && ((ChunkHandler) o).cz == cz && ((ChunkHandler) o).world() == world;
+		}
+
+		@Override
+		public int hashCode() {
+			return cx * 31 + cz;
+		}
+
+		private World world() {
+			return world;
+		}
+	}
+
+	private ChunkSnapshot snapshot(final int cx, final int cz, final short[] blocks) {
+		return (ChunkSnapshot) Proxy.newProxyInstance(ChunkSnapshot.class.getClassLoader(), new Class<?>[] { ChunkSnapshot.class }, new InvocationHandler() {
+			@Override
+			public Object invoke(final Object proxy, final Method method, final Object[] args) {
+				switch (method.getName()) {
+				case "getX":
+					return cx;
+				case "getZ":
+					return cz;
+				case "getWorldName":
+					return name;
+				case "getBlockTypeId":
+					return blocks[index((Integer) args[0], (Integer) args[1], (Integer) args[2])] >>> 4 & 0xFFF;
+				case "getBlockData":
+					return blocks[index((Integer) args[0], (Integer) args[1], (Integer) args[2])] & 15;
+				case "isSectionEmpty": {
+					final int from = (Integer) args[0] << 12;
+					for (int i = from; i < from + 4096 && i < blocks.length; i++)
+						if (blocks[i] != 0) return false;
+					return true;
+				}
+				case "equals":
+					return proxy == args[0];
+				case "hashCode":
+					return System.identityHashCode(proxy);
+				case "toString":
+					return "MemoryChunkSnapshot{" + cx + "," + cz + "}";
+				}
+				throw unsupported(method);
+			}
+		});
+	}
+
+	private final class BlockHandler implements InvocationHandler {
+		private final int x, y, z;
+
+		BlockHandler(final int x, final int y, final int z) {
+			this.x = x;
+			this.y = y;
+			this.z = z;
+		}
+
+		@Override
+		public Object invoke(final Object proxy, final Method method, final Object[] args) {
+			switch (method.getName()) {
+			case "getX":
+				return x;
+			case "getY":
+				return y;
+			case "getZ":
+				return z;
+			case "getWorld":
+				return world;
+			case "getChunk":
+				return world.getChunkAt(x >> 4, z >> 4);
+			case "getLocation":
+				if (args == null) return new Location(world, x, y, z);
+				break;
+			case "getTypeId":
+				return getTypeId(x, y, z);
+			case "getData":
+				return getData(x, y, z);
+			case "getType":
+				return Material.getMaterial(getTypeId(x, y, z));
+			case "isEmpty":
+				return getTypeId(x, y, z) == 0;
+			case "isLiquid": {
+				final int id = getTypeId(x, y, z);
+				return id >= WorldConfig.ID_WATER && id <= WorldConfig.ID_STATIONARY_LAVA;
+			}
+			case "setTypeIdAndData":
+				return change(x, y, z, (Integer) args[0], (Byte) args[1], (Boolean) args[2]);
+			case "setTypeId":
+				return change(x, y, z, (Integer) args[0], (byte) 0, args.length < 2 || (Boolean) args[1]);
+			case "setType":
+				return change(x, y, z, ((Material) args[0]).getId(), (byte) 0, args.length < 2 || (Boolean) args[1]);
+			case "getRelative":
+				if (args.length == 3) return block(x + (Integer) args[0], y + (Integer) args[1], z + (Integer) args[2]);
+				final BlockFace face = (BlockFace) args[0];
+				final int distance = args.length == 2 ? (Integer) args[1] : 1;
+				return block(x + face.getModX() * distance, y + face.getModY() * distance, z + face.getModZ() * distance);
+			case "equals":
+				return args[0] instanceof Block && Proxy.isProxyClass(args[0].getClass()) && Proxy.getInvocationHandler(args[0]).equals(this);
+			case "hashCode":
+				return hashCode();
+			case "toString":
+				return "MemoryBlock{" + x + "," + y + "," + z + "}";
+			}
+			throw unsupported(method);
+		}
+
+		@Override
+		public boolean equals(final Object o) {
+			return o instanceof BlockHandler && ((BlockHandler) o).x == x && ((BlockHandler) o).y == y && ((BlockHandler) o).z == z
+					&& ((BlockHandler) o).world() == world;
+		}
+
+		@Override
+		public int hashCode() {
+			return (y * 31 + z) * 31 + x;
+		}
+
+		private World world() {
+			return world;
+		}
+	}
+
+}
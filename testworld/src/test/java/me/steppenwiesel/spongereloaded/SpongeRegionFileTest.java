@@ -0,0 +1,170 @@
+package me.steppenwiesel.spongereloaded;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.logging.Logger;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Writes sponge region files, opens them again and checks what the index gets back.
+ * @author Steppenwiesel
+ *
+ */
+public class SpongeRegionFileTest {
+
+	/** a chunk of region 1,-1 */
+	private static final int CX = 33, CZ = -3;
+
+	@Rule
+	public final TemporaryFolder temp = new TemporaryFolder();
+
+	private File folder;
+	private File worldFolder;
+	private File file;
+
+	@Before
+	public void setUp() throws IOException {
+		folder = temp.newFolder("index");
+		worldFolder = temp.newFolder("world");
+		file = new File(folder, "r.1.-1.spi");
+	}
+
+	/**
+	 * scanned chunks and single sponge changes survive closing and opening the store.
+	 */
+	@Test
+	public void roundTrip() {
+		RegionStore store = store();
+		assertNull(store.claim(CX, CZ));
+		store.writeChunk(CX, CZ, sponges(sponge(0, 10, 0), sponge(1, 20, 2)));
+		store.writeChunk(CX + 1, CZ, new LongHashSet());
+		store.add(sponge(15, 255, 15));
+		store.remove(sponge(1, 20, 2));
+		store.close();
+
+		store = store();
+		final LongHashSet set = store.claim(CX, CZ);
+		assertNotNull(set);
+		assertEquals(2, set.size());
+		assertTrue(set.contains(sponge(0, 10, 0)));
+		assertTrue(set.contains(sponge(15, 255, 15)));
+		// a chunk without sponges is still known to be scanned
+		assertEquals(0, store.claim(CX + 1, CZ).size());
+		assertNull(store.claim(CX + 2, CZ));
+		// the index owns the sponges of a claimed chunk
+		assertNull(store.claim(CX, CZ));
+		store.close();
+	}
+
+	/**
+	 * a file whose records do not match the checksum in its header is started over.
+	 */
+	@Test
+	public void corruptFileIsStartedOver() throws IOException {
+		RegionStore store = store();
+		store.writeChunk(CX, CZ, sponges(sponge(3, 40, 3)));
+		store.close();
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			// flip a bit of the first record
+			raf.seek(SpongeRegionFile.HEADER);
+			final int record = raf.readInt();
+			raf.seek(SpongeRegionFile.HEADER);
+			raf.writeInt(record ^ 1);
+		}
+		store = store();
+		assertNull(store.claim(CX, CZ));
+		store.close();
+	}
+
+	/**
+	 * a file that was not closed properly is started over.
+	 */
+	@Test
+	public void unfinishedFileIsStartedOver() {
+		final RegionStore store = store();
+		store.writeChunk(CX, CZ, sponges(sponge(3, 40, 3)));
+		// the server crashed, the file was never closed
+		final RegionStore next = store();
+		assertNull(next.claim(CX, CZ));
+		next.close();
+		store.close();
+	}
+
+	/**
+	 * a log with many more records than sponges is rewritten when it is opened.
+	 */
+	@Test
+	public void compaction() {
+		RegionStore store = store();
+		store.writeChunk(CX, CZ, sponges(sponge(5, 50, 5)));
+		for (int i = 0; i < 1000; i++) {
+			store.add(sponge(6, 60, 6));
+			store.remove(sponge(6, 60, 6));
+		}
+		store.close();
+		final long before = file.length();
+
+		// the file is opened by the first claim
+		store = store();
+		final LongHashSet set = store.claim(CX, CZ);
+		assertEquals(1, set.size());
+		assertTrue(set.contains(sponge(5, 50, 5)));
+		store.close();
+		assertTrue("the log was not compacted, " + file.length() + " bytes", file.length() < before / 10);
+	}
+
+	/**
+	 * the file is not trusted if the world's own region file was written long after it.
+	 */
+	@Test
+	public void staleFileIsStartedOver() throws IOException {
+		RegionStore store = store();
+		store.writeChunk(CX, CZ, sponges(sponge(7, 70, 7)));
+		store.close();
+		final File region = new File(worldFolder, "region");
+		assertTrue(region.mkdirs());
+		final File mca = new File(region, "r.1.-1.mca");
+		assertTrue(mca.createNewFile());
+
+		// written by the server shortly after the index, as it happens on every save
+		assertTrue(mca.setLastModified(file.lastModified() + 60 * 1000));
+		store = store();
+		assertNotNull(store.claim(CX, CZ));
+		store.close();
+
+		// changed without the plugin, by an older server or an editor
+		assertTrue(mca.setLastModified(file.lastModified() + 60 * 60 * 1000));
+		store = store();
+		assertNull(store.claim(CX, CZ));
+		store.close();
+	}
+
+	private RegionStore store() {
+		return new RegionStore(folder, worldFolder, Logger.getLogger("test"));
+	}
+
+	/**
+	 * @return the packed key of a block in the chunk {@link #CX}, {@link #CZ}.
+	 */
+	private static long sponge(final int x, final int y, final int z) {
+		return BlockKey.pack((CX << 4) + x, y, (CZ << 4) + z);
+	}
+
+	private static LongHashSet sponges(final long... keys) {
+		final LongHashSet set = new LongHashSet();
+		for (final long key : keys)
+			set.add(key);
+		return set;
+	}
+
+}
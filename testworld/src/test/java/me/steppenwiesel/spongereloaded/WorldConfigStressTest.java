@@ -0,0 +1,292 @@
+package me.steppenwiesel.spongereloaded;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.bukkit.World;
+import org.bukkit.block.Block;
+import org.bukkit.block.BlockFace;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Runs the handlers of one world on several threads at once, the way a region-threaded server would,
+ * while another thread ends ticks, drains the write queue and unloads chunks.
+ * @author Steppenwiesel
+ *
+ */
+public class WorldConfigStressTest {
+
+	private static final int THREADS = 8;
+	/** the area the threads work in, it crosses the border of two region files at x = 512 */
+	private static final int MIN_X = 496, MAX_X = 527, MIN_Y = 8, MAX_Y = 23, MIN_Z = -16, MAX_Z = 15;
+	private static final int RADIUS = 2;
+
+	private MemoryWorld memory;
+	private World world;
+	private MemoryContext context;
+	private WorldConfig wconf;
+	private final ConcurrentLinkedQueue<Throwable> errors = new ConcurrentLinkedQueue<>();
+
+	@Before
+	public void setUp() {
+		final Map<String, Object> settings = new HashMap<>();
+		settings.put("radius", RADIUS);
+		settings.put("flow_frontier_ticks", 20);
+		context = new MemoryContext(settings);
+		memory = new MemoryWorld("stress", 64);
+		world = memory.getWorld();
+		wconf = context.getWorldConfig(world);
+		memory.fill(MIN_X - RADIUS, MIN_Y - RADIUS, MIN_Z - RADIUS, MAX_X + RADIUS, MAX_Y + RADIUS, MAX_Z + RADIUS, WorldConfig.ID_STATIONARY_WATER);
+	}
+
+	/**
+	 * sponges are placed, broken and moved while range checks, flows and absorptions run everywhere.
+	 * Afterwards the index has to know every sponge in the world.
+	 */
+	@Test(timeout = 60000)
+	public void handlersKeepTheIndexComplete() throws InterruptedException {
+		final AtomicBoolean running = new AtomicBoolean(true);
+		final Thread ticker = ticker(running, true);
+		runWorkers(new Worker() {
+			@Override
+			public void run(final int thread, final Random random) {
+				for (int round = 0; round < 4000; round++) {
+					// blocks are only changed in the columns of this thread, one block is never changed by two threads at once
+					final int x = MIN_X + thread + THREADS * random.nextInt((MAX_X - MIN_X + 1) / THREADS);
+					final int y = MIN_Y + random.nextInt(MAX_Y - MIN_Y + 1), z = MIN_Z + random.nextInt(MAX_Z - MIN_Z + 1);
+					final Block block = world.getBlockAt(x, y, z);
+					switch (random.nextInt(6)) {
+					case 0:
+						if (block.getTypeId() == WorldConfig.ID_SPONGE) break;
+						memory.set(x, y, z, WorldConfig.ID_SPONGE, 0);
+						wconf.addSponge(block);
+						wconf.removeSuckables(block);
+						break;
+					case 1:
+						if (block.getTypeId() != WorldConfig.ID_SPONGE) break;
+						memory.set(x, y, z, 0, 0);
+						wconf.removeSponge(block);
+						wconf.callPhysics(block);
+						break;
+					case 2:
+						final BlockFace face = random.nextBoolean() ? BlockFace.SOUTH : BlockFace.NORTH;
+						final Block to = block.getRelative(face);
+						if (block.getTypeId() != WorldConfig.ID_SPONGE || to.getTypeId() == WorldConfig.ID_SPONGE || to.getZ() > MAX_Z || to.getZ() < MIN_Z) break;
+						memory.set(to.getX(), to.getY(), to.getZ(), WorldConfig.ID_SPONGE, 0);
+						memory.set(x, y, z, 0, 0);
+						wconf.removeSponge(block);
+						wconf.addSponge(to);
+						wconf.moveSponge(block, face);
+						break;
+					case 3:
+						wconf.isFlowBlocked(block, block.getRelative(BlockFace.DOWN));
+						break;
+					default:
+						wconf.spongeInRange(randomBlock(random));
+					}
+				}
+			}
+		});
+		running.set(false);
+		ticker.join();
+		assertNoErrors();
+
+		wconf.endTick();
+		wconf.flush();
+		assertEquals(0, wconf.getWriteQueue().size());
+		assertRangeChecksExact();
+		// and the queue did its work: nothing suckable is left next to a sponge
+		for (int x = MIN_X; x <= MAX_X; x++)
+			for (int y = MIN_Y; y <= MAX_Y; y++)
+				for (int z = MIN_Z; z <= MAX_Z; z++)
+					if (memory.getTypeId(x, y, z) == WorldConfig.ID_SPONGE) wconf.removeSuckables(world.getBlockAt(x, y, z));
+		wconf.flush();
+		for (int x = MIN_X; x <= MAX_X; x++)
+			for (int y = MIN_Y; y <= MAX_Y; y++)
+				for (int z = MIN_Z; z <= MAX_Z; z++) {
+					final int id = memory.getTypeId(x, y, z);
+					if (id == WorldConfig.ID_WATER || id == WorldConfig.ID_STATIONARY_WATER)
+						assertTrue("water next to a sponge at " + x + "," + y + "," + z, !spongeNear(x, y, z));
+				}
+	}
+
+	/**
+	 * range checks run while chunks are unloaded and indexed again under their feet. The world does not change,
+	 * so every single check has to be right.
+	 */
+	@Test(timeout = 60000)
+	public void rangeChecksSurviveChunkUnloads() throws InterruptedException {
+		final Random setup = new Random(1);
+		for (int i = 0; i < 200; i++) {
+			final Block block = randomBlock(setup);
+			memory.set(block.getX(), block.getY(), block.getZ(), WorldConfig.ID_SPONGE, 0);
+			wconf.addSponge(block);
+		}
+		final AtomicBoolean running = new AtomicBoolean(true);
+		final Thread ticker = ticker(running, false);
+		runWorkers(new Worker() {
+			@Override
+			public void run(final int thread, final Random random) {
+				for (int round = 0; round < 20000; round++) {
+					final Block block = randomBlock(random);
+					final boolean expected = spongeNear(block.getX(), block.getY(), block.getZ());
+					if (wconf.spongeInRange(block) != expected) throw new AssertionError("wrong range check at " + block);
+					if (round % 1000 == 0) wconf.describeMemory();
+				}
+			}
+		});
+		running.set(false);
+		ticker.join();
+		assertNoErrors();
+		assertEquals(200, memory.count(MIN_X, MIN_Y, MIN_Z, MAX_X, MAX_Y, MAX_Z, WorldConfig.ID_SPONGE));
+	}
+
+	/**
+	 * several threads queue block changes while another drains the queue a few blocks at a time. No change may get lost.
+	 */
+	@Test(timeout = 60000)
+	public void writeQueueKeepsEveryChange() throws InterruptedException {
+		final BlockWriteQueue writes = wconf.getWriteQueue();
+		final AtomicBoolean running = new AtomicBoolean(true);
+		final Thread drainer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					while (running.get())
+						writes.drain(100, Long.MAX_VALUE);
+				} catch (final Throwable e) {
+					errors.add(e);
+				}
+			}
+		});
+		drainer.start();
+		runWorkers(new Worker() {
+			@Override
+			public void run(final int thread, final Random random) {
+				final LongQueue batch = new LongQueue();
+				// blocks removed already are queued again, they are skipped when their turn comes
+				for (int round = 0; round < 50; round++)
+					for (int x = MIN_X + thread; x <= MAX_X; x += THREADS)
+						for (int z = MIN_Z; z <= MAX_Z; z++) {
+							for (int y = MIN_Y; y <= MAX_Y; y += 2)
+								writes.clear(x, y, z);
+							for (int y = MIN_Y + 1; y <= MAX_Y; y += 2)
+								batch.push(BlockKey.pack(x, y, z));
+							writes.clearAll(batch);
+							writes.trigger(x, MIN_Y + random.nextInt(MAX_Y - MIN_Y + 1), z);
+						}
+			}
+		});
+		running.set(false);
+		drainer.join();
+		assertNoErrors();
+		writes.flush();
+		assertEquals(0, writes.size());
+		assertEquals(0, memory.count(MIN_X, MIN_Y, MIN_Z, MAX_X, MAX_Y, MAX_Z, WorldConfig.ID_STATIONARY_WATER));
+	}
+
+	/**
+	 * the work of one thread.
+	 */
+	private interface Worker {
+		void run(int thread, Random random);
+	}
+
+	/**
+	 * run a worker on {@link #THREADS} threads at once and wait for all of them.
+	 */
+	private void runWorkers(final Worker worker) throws InterruptedException {
+		final CountDownLatch start = new CountDownLatch(1);
+		final List<Thread> threads = new ArrayList<>();
+		for (int i = 0; i < THREADS; i++) {
+			final int thread = i;
+			threads.add(new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+						worker.run(thread, new Random(thread));
+					} catch (final Throwable e) {
+						errors.add(e);
+					}
+				}
+			}, "stress #" + i));
+		}
+		for (final Thread i : threads)
+			i.start();
+		start.countDown();
+		for (final Thread i : threads)
+			i.join();
+	}
+
+	/**
+	 * start the thread that does what the server does between the handlers: end ticks and unload chunks.
+	 * @param drain true to do the queued block changes at the end of every tick.
+	 */
+	private Thread ticker(final AtomicBoolean running, final boolean drain) {
+		final Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				final Random random = new Random(-1);
+				try {
+					while (running.get()) {
+						if (drain)
+							context.tick();
+						else
+							wconf.endTick();
+						final int cx = (MIN_X >> 4) + random.nextInt(((MAX_X - MIN_X) >> 4) + 1);
+						final int cz = (MIN_Z >> 4) + random.nextInt(((MAX_Z - MIN_Z) >> 4) + 1);
+						wconf.chunkUnloaded(world.getChunkAt(cx, cz));
+						memory.unloadChunk(cx, cz);
+						Thread.yield();
+					}
+				} catch (final Throwable e) {
+					errors.add(e);
+				}
+			}
+		}, "stress ticker");
+		thread.start();
+		return thread;
+	}
+
+	private Block randomBlock(final Random random) {
+		return world.getBlockAt(MIN_X + random.nextInt(MAX_X - MIN_X + 1), MIN_Y + random.nextInt(MAX_Y - MIN_Y + 1),
+				MIN_Z + random.nextInt(MAX_Z - MIN_Z + 1));
+	}
+
+	/**
+	 * @return true if a sponge is in the cube of {@link #RADIUS} around the block, looked up block by block.
+	 */
+	private boolean spongeNear(final int x, final int y, final int z) {
+		return memory.count(x - RADIUS, y - RADIUS, z - RADIUS, x + RADIUS, y + RADIUS, z + RADIUS, WorldConfig.ID_SPONGE) > 0;
+	}
+
+	/**
+	 * compare the range check of every block in the area with a look at the blocks around it.
+	 */
+	private void assertRangeChecksExact() {
+		for (int x = MIN_X; x <= MAX_X; x++)
+			for (int y = MIN_Y; y <= MAX_Y; y++)
+				for (int z = MIN_Z; z <= MAX_Z; z++)
+					assertEquals("range check at " + x + "," + y + "," + z, spongeNear(x, y, z), wconf.spongeInRange(world.getBlockAt(x, y, z)));
+	}
+
+	private void assertNoErrors() {
+		final Throwable error = errors.peek();
+		if (error == null) return;
+		final AssertionError failure = new AssertionError(errors.size() + " threads failed");
+		failure.initCause(error);
+		throw failure;
+	}
+
+}